@@ -0,0 +1,41 @@
+package ro.top.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns notification data into bytes and back. <br>
+ * The first byte of every encoded payload is the id of the codec that wrote it,
+ * so a payload is always decoded by the codec that encoded it, whatever codec
+ * the reading side uses for its own notifications. A codec must be registered
+ * in PayloadCodecs, with the same id, on the clients and on the server
+ * @author Alexandru Topala
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return the id of this codec, written before the data it encodes; 
+     * 0 and 1 are taken by the built-in codecs
+     */
+    public byte getId();
+
+    /**
+     * Writes the data, without the codec id
+     * @param data - the notification data, may be null
+     * @param out
+     * @return false if this codec cannot encode the data; whatever it wrote is discarded 
+     * and Java serialization is used instead
+     * @throws IOException
+     */
+    public boolean encode(Object data, OutputStream out) throws IOException;
+
+    /**
+     * Reads data written by encode
+     * @param in - positioned after the codec id
+     * @return a new copy of the notification data
+     * @throws IOException
+     * @throws ClassNotFoundException if the data class is unknown to this side
+     */
+    public Object decode(InputStream in) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,134 @@
+package ro.top.filter;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Reads a field of the notification data, with the same rules as the filters. <br>
+ * The reflective lookup of each field is done once per class and cached
+ * @author Alexandru Topala
+ */
+public final class FieldAccess implements Filter.Node {
+    /**
+     * The value of a field the data does not have
+     */
+    static final Object MISSING = new Object();
+
+    private static final Map<Class<?>, Map<String, Function<Object, Object>>> ACCESSORS = new ConcurrentHashMap<>();
+    private static final Function<Object, Object> NO_ACCESSOR = data -> MISSING;
+
+    private final String[] path;
+
+    FieldAccess(String[] path) {
+        this.path = path;
+    }
+
+    /**
+     * @param path - the field name, nested with dots: order.side
+     * @return the access to that field
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public static FieldAccess of(String path) {
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("The field path is empty");
+        }
+        String[] names = path.split("\\.", -1);
+        for (String name : names) {
+            if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))
+                    || !name.chars().allMatch(Character::isJavaIdentifierPart)) {
+                throw new IllegalArgumentException("Invalid field path \"" + path + "\"");
+            }
+        }
+        return new FieldAccess(names);
+    }
+
+    /**
+     * @param data
+     * @return the value of the field, null if the data does not have it or it cannot be read
+     */
+    public Object read(Object data) {
+        try {
+            Object value = evaluate(data);
+            return value == MISSING ? null : value;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public Object evaluate(Object data) {
+        Object value = data;
+        for (String name : path) {
+            if (value == null || value == MISSING) {
+                return MISSING;
+            }
+            value = read(value, name);
+        }
+        return value;
+    }
+
+    private static Object read(Object data, String name) {
+        if (data instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) data;
+            return map.containsKey(name) ? map.get(name) : MISSING;
+        }
+        return ACCESSORS
+                .computeIfAbsent(data.getClass(), c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, n -> findAccessor(data.getClass(), n))
+                .apply(data);
+    }
+
+    private static Function<Object, Object> findAccessor(Class<?> type, String name) {
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String candidate : new String[]{"get" + capitalized, "is" + capitalized, name}) {
+            try {
+                Method method = type.getMethod(candidate);
+                if (!Modifier.isStatic(method.getModifiers()) && method.getReturnType() != void.class
+                        && accessible(method)) {
+                    return data -> {
+                        try {
+                            return method.invoke(data);
+                        } catch (ReflectiveOperationException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    };
+                }
+            } catch (NoSuchMethodException ex) {
+                // try the next form
+            }
+        }
+        try {
+            Field field = type.getField(name);
+            if (!Modifier.isStatic(field.getModifiers()) && accessible(field)) {
+                return data -> {
+                    try {
+                        return field.get(data);
+                    } catch (IllegalAccessException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                };
+            }
+        } catch (NoSuchFieldException ex) {
+            // the data has no such field
+        }
+        return NO_ACCESSOR;
+    }
+
+    /**
+     * Public members of non public classes need to be made accessible
+     */
+    private static <T extends AccessibleObject & Member> boolean accessible(T member) {
+        try {
+            member.setAccessible(true);
+            return true;
+        } catch (RuntimeException ex) {
+            return Modifier.isPublic(member.getDeclaringClass().getModifiers());
+        }
+    }
+}
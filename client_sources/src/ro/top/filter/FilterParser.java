@@ -0,0 +1,255 @@
+package ro.top.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a filter expression into a tree of nodes, by recursive descent: <br>
+ * or := and ('||' and)* <br>
+ * and := not ('&amp;&amp;' not)* <br>
+ * not := '!' not | '(' or ')' | comparison <br>
+ * comparison := operand (('==' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=') operand)? <br>
+ * operand := field | number | string | true | false | null
+ * @author Alexandru Topala
+ */
+final class FilterParser {
+    private final String expression;
+    private int position;
+
+    FilterParser(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            throw new IllegalArgumentException("The filter expression is empty");
+        }
+        this.expression = expression;
+    }
+
+    Filter.Node parse() {
+        Filter.Node node = parseOr();
+        skipSpaces();
+        if (position < expression.length()) {
+            throw error("Unexpected '" + expression.charAt(position) + "'");
+        }
+        return node;
+    }
+
+    private Filter.Node parseOr() {
+        Filter.Node left = parseAnd();
+        while (consume("||")) {
+            Filter.Node l = left;
+            Filter.Node r = parseAnd();
+            left = data -> Boolean.TRUE.equals(l.evaluate(data)) || Boolean.TRUE.equals(r.evaluate(data));
+        }
+        return left;
+    }
+
+    private Filter.Node parseAnd() {
+        Filter.Node left = parseNot();
+        while (consume("&&")) {
+            Filter.Node l = left;
+            Filter.Node r = parseNot();
+            left = data -> Boolean.TRUE.equals(l.evaluate(data)) && Boolean.TRUE.equals(r.evaluate(data));
+        }
+        return left;
+    }
+
+    private Filter.Node parseNot() {
+        if (peek("!=")) {
+            throw error("Unexpected '!='");
+        }
+        if (consume("!")) {
+            Filter.Node operand = parseNot();
+            return data -> {
+                Object value = operand.evaluate(data);
+                return value instanceof Boolean ? !((Boolean) value) : Boolean.FALSE;
+            };
+        }
+        if (consume("(")) {
+            Filter.Node inner = parseOr();
+            if (!consume(")")) {
+                throw error("Expected ')'");
+            }
+            return inner;
+        }
+        return parseComparison();
+    }
+
+    private Filter.Node parseComparison() {
+        Filter.Node left = parseOperand();
+        for (String operator : new String[]{"==", "!=", "<=", ">=", "<", ">"}) {
+            if (consume(operator)) {
+                Filter.Node right = parseOperand();
+                return comparison(operator, left, right);
+            }
+        }
+        return left;
+    }
+
+    private Filter.Node parseOperand() {
+        skipSpaces();
+        if (position == expression.length()) {
+            throw error("Expected a field or a constant");
+        }
+        char c = expression.charAt(position);
+        if (c == '\'' || c == '"') {
+            Object value = parseString(c);
+            return data -> value;
+        }
+        if (Character.isDigit(c) || c == '-' || c == '.') {
+            Object value = parseNumber();
+            return data -> value;
+        }
+        if (Character.isJavaIdentifierStart(c)) {
+            List<String> path = new ArrayList<>();
+            path.add(parseIdentifier());
+            while (position < expression.length() && expression.charAt(position) == '.') {
+                position++;
+                path.add(parseIdentifier());
+            }
+            if (path.size() == 1) {
+                switch (path.get(0)) {
+                    case "true":
+                        return data -> Boolean.TRUE;
+                    case "false":
+                        return data -> Boolean.FALSE;
+                    case "null":
+                        return data -> null;
+                    default:
+                        break;
+                }
+            }
+            return new FieldAccess(path.toArray(new String[0]));
+        }
+        throw error("Unexpected '" + c + "'");
+    }
+
+    private String parseString(char quote) {
+        StringBuilder value = new StringBuilder();
+        position++;
+        while (position < expression.length()) {
+            char c = expression.charAt(position++);
+            if (c == quote) {
+                return value.toString();
+            }
+            if (c == '\\' && position < expression.length()) {
+                c = expression.charAt(position++);
+            }
+            value.append(c);
+        }
+        throw error("Unterminated string");
+    }
+
+    private Object parseNumber() {
+        int start = position;
+        if (expression.charAt(position) == '-') {
+            position++;
+        }
+        while (position < expression.length()) {
+            char c = expression.charAt(position);
+            boolean exponentSign = (c == '+' || c == '-') && "eE".indexOf(expression.charAt(position - 1)) >= 0;
+            if (!Character.isDigit(c) && c != '.' && c != 'e' && c != 'E' && !exponentSign) {
+                break;
+            }
+            position++;
+        }
+        try {
+            return Double.valueOf(expression.substring(start, position));
+        } catch (NumberFormatException ex) {
+            throw error("Invalid number '" + expression.substring(start, position) + "'");
+        }
+    }
+
+    private String parseIdentifier() {
+        if (position == expression.length() || !Character.isJavaIdentifierStart(expression.charAt(position))) {
+            throw error("Expected a field name");
+        }
+        int start = position;
+        while (position < expression.length() && Character.isJavaIdentifierPart(expression.charAt(position))) {
+            position++;
+        }
+        return expression.substring(start, position);
+    }
+
+    private static Filter.Node comparison(String operator, Filter.Node left, Filter.Node right) {
+        return data -> {
+            Object l = left.evaluate(data);
+            Object r = right.evaluate(data);
+            if (l == FieldAccess.MISSING || r == FieldAccess.MISSING) {
+                return Boolean.FALSE;
+            }
+            switch (operator) {
+                case "==":
+                    return equal(l, r);
+                case "!=":
+                    return !equal(l, r);
+                default:
+                    Integer order = compare(l, r);
+                    if (order == null) {
+                        return Boolean.FALSE;
+                    }
+                    switch (operator) {
+                        case "<":
+                            return order < 0;
+                        case "<=":
+                            return order <= 0;
+                        case ">":
+                            return order > 0;
+                        default:
+                            return order >= 0;
+                    }
+            }
+        };
+    }
+
+    private static boolean equal(Object l, Object r) {
+        if (l == null || r == null) {
+            return l == r;
+        }
+        Integer order = compare(l, r);
+        return order != null ? order == 0 : l.equals(r);
+    }
+
+    /**
+     * @return the order of the values, or null if they cannot be compared
+     */
+    private static Integer compare(Object l, Object r) {
+        if (l instanceof Number && r instanceof Number) {
+            return Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+        }
+        if (isText(l) && isText(r)) {
+            return text(l).compareTo(text(r));
+        }
+        return null;
+    }
+
+    private static boolean isText(Object value) {
+        return value instanceof CharSequence || value instanceof Character || value instanceof Enum;
+    }
+
+    private static String text(Object value) {
+        return value instanceof Enum ? ((Enum<?>) value).name() : value.toString();
+    }
+
+    private boolean peek(String token) {
+        skipSpaces();
+        return expression.startsWith(token, position);
+    }
+
+    private boolean consume(String token) {
+        if (peek(token)) {
+            position += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void skipSpaces() {
+        while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+            position++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position
+                + " of filter \"" + expression + "\"");
+    }
+}
@@ -0,0 +1,83 @@
+package ro.top.proxy;
+
+import java.io.Serializable;
+
+/**
+ * One notification of a batch pushed by the server to a client. 
+ * Notifications of a topic kept in the durable log carry their offset in that log
+ * @author Alexandru Topala
+ */
+public final class Notification implements Serializable {
+    private static final long serialVersionUID = 2L;
+    
+    /**
+     * The offset of a notification that is not kept in a log
+     */
+    public static final long NO_OFFSET = -1;
+    
+    private final String topicName;
+    private final EncodedPayload data;
+    private final long offset;
+    
+    private Notification(String topicName, EncodedPayload data, long offset) {
+        this.topicName = topicName;
+        this.data = data;
+        this.offset = offset;
+    }
+    
+    /**
+     * @param topicName - the name of the topic
+     * @return a notification without data
+     */
+    public static Notification of(String topicName) {
+        return new Notification(topicName, null, NO_OFFSET);
+    }
+    
+    /**
+     * @param data - the encoded notification data
+     * @param topicName - the name of the topic
+     * @return a notification with data attached
+     */
+    public static Notification of(EncodedPayload data, String topicName) {
+        if (data == null) {
+            throw new IllegalArgumentException("Notification data cannot be null");
+        }
+        return new Notification(topicName, data, NO_OFFSET);
+    }
+    
+    /**
+     * @param offset - the offset of this notification in the log of its topic
+     * @return a copy of this notification, carrying the offset
+     */
+    public Notification atOffset(long offset) {
+        return new Notification(topicName, data, offset);
+    }
+
+    /**
+     * @return the name of the topic
+     */
+    public String getTopicName() {
+        return topicName;
+    }
+
+    /**
+     * @return the encoded notification data, or null if there is none
+     */
+    public EncodedPayload getData() {
+        return data;
+    }
+    
+    /**
+     * @return true if this notification has data attached
+     */
+    public boolean hasData() {
+        return data != null;
+    }
+    
+    /**
+     * @return the offset of this notification in the log of its topic, or NO_OFFSET
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -3,6 +3,7 @@ package ro.top.proxy;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import ro.top.exception.TopicDoesNotExistException;
 
 /**
@@ -21,6 +22,16 @@ public interface NotificationProxy extends Remote {
      */
     public String registerClient(String clientSocket) throws RemoteException;
     
+    /**
+     * Registers the calling client, allocating an auto-generate clientId. 
+     * The server will reach the client through the given callback, 
+     * so the client does not need a registry of its own
+     * @param callback - the exported proxy through which the client receives notifications
+     * @return clientId - the auto-generated client id
+     * @throws java.rmi.RemoteException
+     */
+    public String registerClient(ClientNotificationProxy callback) throws RemoteException;
+    
     /**
      * Unregisters the client identified by the given client id
      * @param clientId 
@@ -28,6 +39,16 @@ public interface NotificationProxy extends Remote {
      */
     public void unregisterClient(String clientId)  throws RemoteException;
     
+    /**
+     * Keeps the client registered for another lease. The server also renews the lease 
+     * on the other requests of the client and on every notification it pushes to it, 
+     * so the client only needs to call this when it has been quiet for a while
+     * @param clientId
+     * @return the lease duration, in milliseconds, or -1 if the client is not registered anymore
+     * @throws java.rmi.RemoteException 
+     */
+    public long renewLease(String clientId) throws RemoteException;
+    
     
     /**
      * Subscribe the client to the specified topic.
@@ -39,6 +60,36 @@ public interface NotificationProxy extends Remote {
      */
     public void subscribe(String name, String clientId) throws Exception, RemoteException;
     
+    /**
+     * Subscribe the client to the specified topic, with the given options.
+     * If the client is already subscribed, only its options are replaced
+     * @param name the name of the topic
+     * @param clientId
+     * @param options - the filter for the data notifications
+     * @throws Exception
+     * @throws IllegalArgumentException - if the filter is not valid
+     * @throws java.rmi.RemoteException
+     */
+    public void subscribe(String name, String clientId, SubscribeOptions options) throws Exception, RemoteException;
+    
+    /**
+     * Subscribe the client to all the specified topics, in a single call. 
+     * Either all the subscriptions are made or, if one of them fails, none is
+     * @param names - the names of the topics
+     * @param clientId
+     * @throws Exception
+     * @throws java.rmi.RemoteException
+     */
+    public void subscribeAll(List<String> names, String clientId) throws Exception, RemoteException;
+    
+    /**
+     * Unsubscribe the client from all the specified topics, in a single call
+     * @param names - the names of the topics
+     * @param clientId
+     * @throws java.rmi.RemoteException
+     */
+    public void unsubscribeAll(List<String> names, String clientId) throws RemoteException;
+    
     /**
      * Unsubscribe the client from the specified topic.
      * If the topic does not exists, nothing happens
@@ -71,7 +122,7 @@ public interface NotificationProxy extends Remote {
      * Deletes the specified topic, notifying all the subscribers with the specified data
      * that they were unsubscribed
      * @param nume the name of the topic
-     * @param data data for the subscribers
+     * @param data data for the subscribers, or an EncodedPayload of it
      * @throws java.rmi.RemoteException
      * @throws TopicDoesNotExistException - if the topic does not exist
      */
@@ -87,13 +138,47 @@ public interface NotificationProxy extends Remote {
     
     /**
      * Send this data to all subscribers of specified topic
-     * @param data - the data to be sent to the listeners
+     * @param data - the data to be sent to the listeners, or an EncodedPayload of it
      * @param name - the name of the topic
      * @throws java.rmi.RemoteException
      * @throws TopicDoesNotExistException
      */
     public void dataNotifyTopic(Object data, String name) throws RemoteException;
     
+    /**
+     * Queues the notification for all subscribers of specified topic. The call returns 
+     * as soon as the server accepted the notification, without waiting for it to be handed 
+     * to the subscribers, so it takes as long however many subscribers the topic has. <br>
+     * The queued notifications of a topic are published in the order of their sequence numbers
+     * @param data - the encoded data, null for a notification without data
+     * @param name - the name of the topic
+     * @return the sequence number the server gave the notification
+     * @throws java.rmi.RemoteException
+     */
+    public long publishQueued(EncodedPayload data, String name) throws RemoteException;
+    
+    /**
+     * Publishes all the notifications, in a single call, in the order of the list. 
+     * Each one reaches the subscribers as if it had been published on its own
+     * @param notifications - notifications built with Notification.of
+     * @throws java.rmi.RemoteException
+     */
+    public void publishBatch(List<Notification> notifications) throws RemoteException;
+    
+    /**
+     * Sends the notification to all subscribers of specified topic and reports back
+     * the outcome. The call returns as soon as the notification is handed to the subscribers
+     * outboxes; the DeliveryReport comes later, through the receiveDeliveryReports 
+     * method of the publishing client
+     * @param data - the encoded data, null for a notification without data
+     * @param name - the name of the topic
+     * @param clientId - the publishing client, which receives the report
+     * @param publishId - identifies the report, chosen by the client
+     * @throws Exception if the client is not registered
+     * @throws java.rmi.RemoteException
+     */
+    public void publishConfirmed(EncodedPayload data, String name, String clientId, long publishId) throws Exception, RemoteException;
+    
     /**
      * Tests if the specified topic exists
      * @param topicName - the name of the topic
@@ -5,55 +5,121 @@
  */
 package ro.top.service;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
 import java.net.SocketException;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ro.top.exception.UnreachableServerException;
+import ro.top.proxy.DeliveryReport;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
 import ro.top.subscriber.Subscriber;
 
 /**
  *
  * Basically, the asynchronous version of ClientNotificationController class. 
  * Both of them can be used simultaneously for initialization and posting notification
- * without causing any problem
+ * without causing any problem. <br>
+ * No method waits for the server: the connection is made in the background and every
+ * operation returns a CompletableFuture. The operations issued before the connection is up
+ * are queued and run in the order they were issued, once it is
  * @author Alexandru Topala
  */
 public class ClientNotificationAsyncController implements AutoCloseable {
     private static String DEFAULT_SERVER_SOCKET;
     private static int DEFAULT_CLIENT_PORT;
     private static ClientNotificationAsyncController singleton;
+    
+    /**
+     * How long, in milliseconds, an operation waits for the connection before failing 
+     * with an UnreachableServerException
+     */
+    public static final long CONNECT_TIMEOUT = 15000;
+    
+    /**
+     * Times out the operations waiting for the connection, for all the instances
+     */
+    private static final ScheduledThreadPoolExecutor TIMEOUTS;
+    
     private ExecutorService service;
-    private Future<ClientNotificationController> futureController;
-    private ClientNotificationController controller;
+    
+    /**
+     * Set once the connection is up and the queued operations were run
+     */
+    private volatile ClientNotificationController controller;
+    
+    /**
+     * The operations issued while connecting, in order. Guarded by itself
+     */
+    private final Queue<PendingCall<?>> waiting = new ArrayDeque<>();
+    
+    /**
+     * A single timer expires the waiting operations, oldest first. Guarded by waiting
+     */
+    private boolean expiryScheduled;
+    private RuntimeException connectFailure;
+    private boolean closed;
+    private final CompletableFuture<ClientNotificationController> connection;
+    
+    /**
+     * By default, a batch is published once it holds DEFAULT_MAX_BATCH_SIZE notifications, 
+     * or DEFAULT_MAX_BATCH_DELAY milliseconds after its first notification was posted
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_MAX_BATCH_DELAY = 5;
+    public static final int DEFAULT_BATCH_CAPACITY = 16384;
+    private volatile PublishBatcher batcher;
     
     static {
         DEFAULT_CLIENT_PORT = ClientNotificationController.DEFAULT_PORT;
         DEFAULT_SERVER_SOCKET = ClientNotificationController.serverSocket;
+        TIMEOUTS = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "notification-async-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
     }
     
-    private ClientNotificationAsyncController(final String serverSocket, final int port) {
+    private ClientNotificationAsyncController(Supplier<ClientNotificationController> connect) {
         service = Executors.newCachedThreadPool();
-        futureController = service.submit(() -> ClientNotificationController.getInstance(serverSocket, port));
+        connection = CompletableFuture.supplyAsync(connect, service);
+        connection.whenComplete(this::connected);
     }
     
     public static ClientNotificationAsyncController getInstance(String serverSocket, int port) {
         if (singleton == null) {
             synchronized (ClientNotificationAsyncController.class) {
                 if (singleton == null) {
-                    singleton = new ClientNotificationAsyncController(serverSocket, port);
+                    singleton = new ClientNotificationAsyncController(
+                            () -> ClientNotificationController.getInstance(serverSocket, port));
                 }
             }
         }
         return singleton;
     }
     
+    /**
+     * Connects, in the background, a new client independent of the one used by getInstance
+     * @param builder - the configuration of the client, see ClientNotificationController.builder()
+     * @return the asynchronous controller of the new client
+     */
+    public static ClientNotificationAsyncController create(ClientNotificationController.Builder builder) {
+        return new ClientNotificationAsyncController(builder::build);
+    }
+    
     public static String getLocalIp() throws SocketException {
         return ClientNotificationController.getLocalIp();
     }
@@ -66,69 +132,356 @@ public class ClientNotificationAsyncController implements AutoCloseable {
         return getInstance(DEFAULT_SERVER_SOCKET, DEFAULT_CLIENT_PORT);
     }
     
-    private void ensureControllerInstanceExists() {
-        if (controller != null) {
-            return;
+    /**
+     * An operation of the controller
+     */
+    @FunctionalInterface
+    private interface ControllerCall<T> {
+        T apply(ClientNotificationController controller) throws Exception;
+    }
+    
+    /**
+     * An operation and its outcome
+     */
+    private static final class PendingCall<T> {
+        final ControllerCall<T> call;
+        final CompletableFuture<T> result;
+        
+        /**
+         * When the operation stops waiting for the connection, in System.nanoTime
+         */
+        long deadline;
+        
+        PendingCall(ControllerCall<T> call) {
+            this.call = call;
+            this.result = new CompletableFuture<>();
         }
         
+        void run(ClientNotificationController controller) {
+            try {
+                result.complete(call.apply(controller));
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+    
+    /**
+     * Runs the operation on the executor, or queues it if the connection is not up yet
+     */
+    private <T> CompletableFuture<T> call(ControllerCall<T> call) {
+        PendingCall<T> pending = new PendingCall<>(call);
+        ClientNotificationController connected = controller;
+        if (connected == null) {
+            synchronized (waiting) {
+                connected = controller;
+                if (closed) {
+                    pending.result.completeExceptionally(new IllegalStateException("The controller is closed"));
+                    return pending.result;
+                }
+                if (connectFailure != null) {
+                    pending.result.completeExceptionally(connectFailure);
+                    return pending.result;
+                }
+                if (connected == null) {
+                    pending.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+                    waiting.add(pending);
+                    if (!expiryScheduled) {
+                        expiryScheduled = true;
+                        TIMEOUTS.schedule(this::expireWaiting, CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+                    }
+                    return pending.result;
+                }
+            }
+        }
+        final ClientNotificationController target = connected;
+        try {
+            service.execute(() -> pending.run(target));
+        } catch (RejectedExecutionException ex) {
+            pending.result.completeExceptionally(new IllegalStateException("The controller is closed", ex));
+        }
+        return pending.result;
+    }
+    
+    /**
+     * Fails the operations that waited CONNECT_TIMEOUT for the connection, 
+     * then waits for the deadline of the oldest one left
+     */
+    private void expireWaiting() {
+        List<PendingCall<?>> expired = new ArrayList<>();
+        synchronized (waiting) {
+            long now = System.nanoTime();
+            PendingCall<?> oldest;
+            while ((oldest = waiting.peek()) != null && oldest.deadline - now <= 0) {
+                expired.add(waiting.poll());
+            }
+            expiryScheduled = oldest != null;
+            if (oldest != null) {
+                TIMEOUTS.schedule(this::expireWaiting, oldest.deadline - now, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        Logger.getLogger(ClientNotificationAsyncController.class.getName()).log(Level.SEVERE, 
+                "The server was not reached in {0} ms", CONNECT_TIMEOUT);
+        expired.forEach(pending -> pending.result.completeExceptionally(new UnreachableServerException()));
+    }
+    
+    /**
+     * Runs the queued operations in the order they were issued, then lets the new ones 
+     * run right away
+     */
+    private void connected(ClientNotificationController connected, Throwable failure) {
+        if (failure != null) {
+            Logger.getLogger(ClientNotificationAsyncController.class.getName()).log(Level.SEVERE, null, failure);
+            List<PendingCall<?>> failed;
+            synchronized (waiting) {
+                connectFailure = new UnreachableServerException();
+                connectFailure.initCause(failure);
+                failed = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            failed.forEach(pending -> pending.result.completeExceptionally(connectFailure));
+            return;
+        }
+        while (true) {
+            PendingCall<?> pending;
+            synchronized (waiting) {
+                pending = waiting.poll();
+                if (pending == null) {
+                    controller = connected;
+                    return;
+                }
+            }
+            pending.run(connected);
+        }
+    }
+    
+    public CompletableFuture<Void> postNotification(String topicName) {
+        return call(c -> {
+            c.postNotification(topicName);
+            return null;
+        });
+    }
+    
+    public CompletableFuture<Void> postDataNotification(Object data, String topicName) {
+        return call(c -> {
+            c.postDataNotification(data, topicName);
+            return null;
+        });
+    }
+    
+    /**
+     * Notifies all the subscribers for the specified topic, through the publish batch. <br>
+     * The notification is sent to the server together with the ones posted around it, 
+     * see setPublishBatching. The call never waits for the server
+     * @param topicName
+     * @return false if too many notifications wait to be sent and this one was refused
+     */
+    public boolean postBatchedNotification(String topicName) {
+        return batcher().offer(Notification.of(topicName));
+    }
+    
+    /**
+     * Notifies all the subscribers for the specified topic with the given data, 
+     * through the publish batch. See postBatchedNotification(String)
+     * @param data
+     * @param topicName
+     * @return false if too many notifications wait to be sent and this one was refused
+     * @throws IllegalArgumentException if the data cannot be serialized
+     */
+    public boolean postBatchedDataNotification(Object data, String topicName) {
+        EncodedPayload payload;
         try {
-            controller = futureController.get(15, TimeUnit.SECONDS);
-        } catch (InterruptedException | ExecutionException | TimeoutException ex) {
-            Logger.getLogger(ClientNotificationAsyncController.class.getName()).log(Level.SEVERE, null, ex);
-            throw new UnreachableServerException();
+            payload = EncodedPayload.encode(data);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Data for topic " + topicName + " could not be serialized", ex);
+        }
+        return batcher().offer(Notification.of(payload, topicName));
+    }
+    
+    /**
+     * Sets how the batched notifications are sent, from now on. 
+     * The notifications waiting in the current batch are sent first
+     * @param maxBatchSize - how many notifications a request to the server carries at most
+     * @param maxDelay - how long a notification waits, at most, for its batch to fill up
+     * @param unit - the unit of maxDelay
+     * @param capacity - how many notifications may wait before new ones are refused
+     */
+    public synchronized void setPublishBatching(int maxBatchSize, long maxDelay, TimeUnit unit, int capacity) {
+        PublishBatcher previous = batcher;
+        batcher = new PublishBatcher(this::publishBatch, maxBatchSize, maxDelay, unit, capacity);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+    
+    /**
+     * Sends the batched notifications right away
+     */
+    public void flushBatchedNotifications() {
+        PublishBatcher current = batcher;
+        if (current != null) {
+            current.flush();
+        }
+    }
+    
+    /**
+     * @return how many batched notifications wait to be sent
+     */
+    public int getBatchedNotificationsCount() {
+        PublishBatcher current = batcher;
+        return current != null ? current.getPendingCount() : 0;
+    }
+    
+    /**
+     * @return how many batched notifications were refused, because too many were waiting
+     */
+    public long getRejectedNotificationsCount() {
+        PublishBatcher current = batcher;
+        return current != null ? current.getRejectedCount() : 0;
+    }
+    
+    private PublishBatcher batcher() {
+        PublishBatcher current = batcher;
+        if (current == null) {
+            synchronized (this) {
+                if (batcher == null) {
+                    batcher = new PublishBatcher(this::publishBatch, DEFAULT_MAX_BATCH_SIZE, 
+                            DEFAULT_MAX_BATCH_DELAY, TimeUnit.MILLISECONDS, DEFAULT_BATCH_CAPACITY);
+                }
+                current = batcher;
+            }
         }
+        return current;
     }
     
-    public void postNotification(String topicName) {
-        ensureControllerInstanceExists();
-        service.submit(() -> controller.postNotification(topicName));
+    /**
+     * Runs on the thread of the batcher, which sends one batch at a time
+     */
+    private boolean publishBatch(List<Notification> notifications) {
+        return call(c -> c.postNotifications(notifications)).join();
     }
     
-    public void postDataNotification(Object data, String topicName) {
-        ensureControllerInstanceExists();
-        service.submit(() -> controller.postDataNotification(data, topicName));
+    /**
+     * Notifies all the subscribers for the specified topic and reports the outcome, 
+     * see ClientNotificationController.publish(String)
+     * @param topicName
+     * @return completed with the report of the publish
+     */
+    public CompletableFuture<DeliveryReport> publish(String topicName) {
+        return call(c -> c.publish(topicName)).thenCompose(report -> report);
     }
     
-    public Future<Boolean> addSubscriber(String topicName, Subscriber s) throws Exception {
-        ensureControllerInstanceExists();
-        return service.submit(() -> controller.addSubscriber(topicName, s));
+    /**
+     * Notifies all the subscribers for the specified topic with the given data and reports 
+     * the outcome, see ClientNotificationController.publish(Object, String)
+     * @param data
+     * @param topicName
+     * @return completed with the report of the publish
+     */
+    public CompletableFuture<DeliveryReport> publish(Object data, String topicName) {
+        return call(c -> c.publish(data, topicName)).thenCompose(report -> report);
     }
     
-    public Future<Boolean> removeSubscriber(String topicName, Subscriber s)  {
-        ensureControllerInstanceExists();
-        return service.submit(() -> controller.removeSubscriber(topicName, s));
+    /**
+     * See ClientNotificationController.enqueueNotification(String)
+     * @param topicName
+     * @return the sequence number the server gave the notification, -1 if it was not accepted
+     */
+    public CompletableFuture<Long> enqueueNotification(String topicName) {
+        return call(c -> c.enqueueNotification(topicName));
+    }
+
+    /**
+     * See ClientNotificationController.enqueueDataNotification(Object, String)
+     * @param data
+     * @param topicName
+     * @return the sequence number the server gave the notification, -1 if it was not accepted
+     */
+    public CompletableFuture<Long> enqueueDataNotification(Object data, String topicName) {
+        return call(c -> c.enqueueDataNotification(data, topicName));
+    }
+
+    public CompletableFuture<Boolean> addSubscriber(String topicName, Subscriber s) {
+        return call(c -> c.addSubscriber(topicName, s));
     }
     
-    public Future<Boolean> exists(String topicName) { 
-        ensureControllerInstanceExists();
-        return service.submit(() -> controller.exists(topicName));
+    public CompletableFuture<Boolean> removeSubscriber(String topicName, Subscriber s)  {
+        return call(c -> c.removeSubscriber(topicName, s));
     }
     
-    public Future<Integer> getSubscribersCountForTopic(String topicName) {
-        ensureControllerInstanceExists();
-        return service.submit(() -> controller.getSubscribersCountForTopic(topicName));
+    /**
+     * See ClientNotificationController.addSubscriber(Collection, Subscriber)
+     * @param topicNames
+     * @param s
+     * @return the number of topics the subscriber was not subscribed to already
+     */
+    public CompletableFuture<Integer> addSubscriber(Collection<String> topicNames, Subscriber s) {
+        return call(c -> c.addSubscriber(topicNames, s));
     }
     
-    public void deleteTopic(String topicName) {
-        ensureControllerInstanceExists();
-        service.submit(() -> controller.deleteTopic(topicName));
+    /**
+     * See ClientNotificationController.removeSubscriber(Collection, Subscriber)
+     * @param topicNames
+     * @param s
+     * @return the number of topics the subscriber was removed from
+     */
+    public CompletableFuture<Integer> removeSubscriber(Collection<String> topicNames, Subscriber s) {
+        return call(c -> c.removeSubscriber(topicNames, s));
     }
     
-    public void deleteTopic(String topicName, boolean notifySubscribers) {
-        ensureControllerInstanceExists();
-        service.submit(() -> controller.deleteTopic(topicName, notifySubscribers));
+    public CompletableFuture<Boolean> exists(String topicName) {
+        return call(c -> c.exists(topicName));
     }
     
-    public void deleteTopic(String topicName, Object data) {
-        ensureControllerInstanceExists();
-        service.submit(() -> controller.deleteTopic(topicName, data));
+    public CompletableFuture<Integer> getSubscribersCountForTopic(String topicName) {
+        return call(c -> c.getSubscribersCountForTopic(topicName));
+    }
+    
+    public CompletableFuture<Void> deleteTopic(String topicName) {
+        return call(c -> {
+            c.deleteTopic(topicName);
+            return null;
+        });
+    }
+    
+    public CompletableFuture<Void> deleteTopic(String topicName, boolean notifySubscribers) {
+        return call(c -> {
+            c.deleteTopic(topicName, notifySubscribers);
+            return null;
+        });
+    }
+    
+    public CompletableFuture<Void> deleteTopic(String topicName, Object data) {
+        return call(c -> {
+            c.deleteTopic(topicName, data);
+            return null;
+        });
     }
     
     @Override
     public void close() {
-        if (controller != null) {
-            controller.close();
+        PublishBatcher current = batcher;
+        if (current != null) {
+            current.close();
+        }
+        List<PendingCall<?>> dropped;
+        synchronized (waiting) {
+            closed = true;
+            dropped = new ArrayList<>(waiting);
+            waiting.clear();
         }
+        dropped.forEach(pending -> pending.result.completeExceptionally(
+                new IllegalStateException("The controller was closed before the connection was up")));
+        // closed once it is up, if still connecting
+        connection.thenAccept(ClientNotificationController::close);
         service.shutdown();
+        synchronized (ClientNotificationAsyncController.class) {
+            if (singleton == this) {
+                singleton = null;
+            }
+        }
     }
 }
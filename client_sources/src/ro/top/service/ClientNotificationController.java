@@ -1,35 +1,56 @@
 package ro.top.service;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ro.top.exception.UninitializedNotificationServerException;
+import ro.top.filter.Filter;
+import ro.top.proxy.DeliveryReport;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
 import ro.top.proxy.NotificationProxy;
+import ro.top.proxy.SubscribeOptions;
+import ro.top.proxy.TopicNames;
 import ro.top.subscriber.Subscriber;
+import ro.top.transport.ClientTransport;
+import ro.top.transport.RmiClientTransport;
 
 /**
  * The main class for client.
  * To prevent unexpected behaviors, make sure you make the very first use 
  * of this class by calling the getInstance(String serverSocket, int clientPort) method, 
- * that fully configures the client side
+ * that fully configures the client side. <br>
+ * getInstance returns the default client of the JVM. Any number of independent clients, 
+ * each with its own connection, subscriptions and mailboxes, are made with builder(); 
+ * they share the threads notifying the subscribers and the timer of the heartbeats
  * 
  * @since 1.8
  * @author Alexandru Topala
@@ -38,32 +59,224 @@ public final class ClientNotificationController implements AutoCloseable {
     private static ClientNotificationController singleton;
     
     private static final String NOTIFICATION_SERVER_NAME = "PushNotificationServerTop";
-    public static final int DEFAULT_PORT = 9999;
+    /**
+     * The callback of the client is exported on any free port
+     */
+    public static final int DEFAULT_PORT = RmiClientTransport.ANONYMOUS_PORT;
     public static final int DEFAULT_SERVER_PORT = 4444;
+    
+    /**
+     * The server the clients connect to when none is given
+     */
     public static String serverSocket = "localhost:" + DEFAULT_SERVER_PORT;
     
-    private Map<String, Set<Subscriber>> topics;
-    private static NotificationProxy proxy;
+    /**
+     * key - a subscribed topic or pattern
+     * value - its filter and local subscribers, read without locking by the notifications
+     */
+    private final Map<String, TopicSubscription> topics = new ConcurrentHashMap<>();
+    
+    /**
+     * The subscribed topics that contain wildcards
+     */
+    private final Set<String> patterns = new CopyOnWriteArraySet<>();
+    
+    /**
+     * key - a topic kept in a durable log by the server
+     * value - the offset of the last notification received for that topic
+     */
+    private final Map<String, Long> lastOffsets = new ConcurrentHashMap<>();
+    
+    /**
+     * key - the id of a confirmed publish
+     * value - completed with the report of the publish, once the server sends it
+     */
+    private final Map<Long, CompletableFuture<DeliveryReport>> pendingReports = new ConcurrentHashMap<>();
+    private final AtomicLong publishIds = new AtomicLong();
+    
+    /**
+     * When true, postNotification and postDataNotification only wait for the server to queue the notification
+     */
+    private volatile boolean queuedPublish;
+    private volatile NotificationProxy proxy;
+    
+    /**
+     * Set once by close, under the class lock
+     */
+    private volatile boolean closed;
+    
+    private volatile String clientId;
+    private final String serverAddress;
+    private final ClientTransport transport;
+    
+    private final ExecutorService notificationPusher;
+    
+    /**
+     * How many notifications may wait for a single subscriber, by default, before new ones get dropped
+     */
+    public static final int DEFAULT_MAILBOX_CAPACITY = 65536;
+    private volatile int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+    
+    /**
+     * key - a subscriber
+     * value - the notifications waiting for it, handed over in order by the notification pusher
+     */
+    private final Map<Subscriber, SubscriberMailbox> mailboxes = new ConcurrentHashMap<>();
+    
+    /**
+     * key - a subscriber
+     * value - how many of the topics of this client it is subscribed to; 
+     * its mailbox is retired once it has none left and nothing waits in it
+     */
+    private final Map<Subscriber, Integer> subscriptionCounts = new ConcurrentHashMap<>();
+    
+    /**
+     * The lease assumed when the server does not tell it
+     */
+    private static final long DEFAULT_LEASE_MILLIS = 30000;
+    
+    /**
+     * Renews the lease of this client when it has been quiet for a third of the lease, 
+     * so a single lost heartbeat does not get it evicted
+     */
+    private final ScheduledFuture<?> heartbeat;
+    private final long heartbeatMillis;
+    
+    /**
+     * A renewal is running, the heartbeats due meanwhile are skipped
+     */
+    private final AtomicBoolean renewing = new AtomicBoolean();
     
-    private static String CLIENT_ID;
-    private final int CLIENT_PORT;
+    /**
+     * The threads shared by all the clients: the pusher notifies the subscribers and renews the leases, 
+     * the heartbeat only times the renewals, so a client slow to renew does not delay the others. 
+     * Started with the first client and stopped when the last one is closed
+     */
+    private static ExecutorService sharedPusher;
+    private static ScheduledExecutorService sharedHeartbeat;
+    private static int openClients;
     
-    private ExecutorService notificationPusher;
+    /**
+     * When the server was last heard of; every notification it pushes renews the lease
+     */
+    private volatile long lastContact;
     
-    private ClientNotificationController(String serverSocket, int clientPort) {   
-        CLIENT_PORT = clientPort;
+    private ClientNotificationController(Builder builder) {   
+        this.serverAddress = builder.serverSocket;
+        this.transport = builder.transport != null ? builder.transport : new RmiClientTransport(builder.clientPort);
+        this.mailboxCapacity = builder.mailboxCapacity;
         try {            
-            init(serverSocket, clientPort);
-        } catch (MalformedURLException | NotBoundException | RemoteException | UnknownHostException | SocketException e) {
+            init();
+        } catch (IOException | NotBoundException e) {
             e.printStackTrace();
+            proxy = null;
         } 
         
         if (proxy == null) {
+            transport.close();
             throw new UninitializedNotificationServerException();
         }
-        topics = new HashMap<>();
-        
-        notificationPusher = Executors.newCachedThreadPool();
+        heartbeatMillis = Math.max(1, leaseMillis() / 3);
+        synchronized (ClientNotificationController.class) {
+            if (openClients++ == 0) {
+                sharedPusher = newNotificationPusher();
+                sharedHeartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "client-lease-heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            notificationPusher = sharedPusher;
+            heartbeat = sharedHeartbeat.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, 
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private long leaseMillis() {
+        try {
+            long lease = proxy.renewLease(clientId);
+            lastContact = System.currentTimeMillis();
+            return lease > 0 ? lease : DEFAULT_LEASE_MILLIS;
+        } catch (RemoteException ex) {
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING, 
+                    "The lease could not be read, it is assumed to last " + DEFAULT_LEASE_MILLIS + " ms", ex);
+            return DEFAULT_LEASE_MILLIS;
+        }
+    }
+    
+    /**
+     * Run by the shared timer: hands the renewal to the notification pusher, 
+     * unless the previous one is still running
+     */
+    private void heartbeat() {
+        if (!renewing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            notificationPusher.execute(() -> {
+                try {
+                    renewLease();
+                } finally {
+                    renewing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // the last client is closing
+            renewing.set(false);
+        }
+    }
+    
+    /**
+     * Sends a heartbeat, unless the server was heard of recently. 
+     * If the server evicted this client meanwhile, or the connection was lost, 
+     * the client registers again
+     */
+    private void renewLease() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!transport.isConnected()) {
+                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING, 
+                        "Connection of client {0} was lost, reconnecting", new Object[]{clientId});
+                reconnect();
+                return;
+            }
+            if (System.currentTimeMillis() - lastContact < heartbeatMillis) {
+                return;
+            }
+            if (proxy.renewLease(clientId) >= 0) {
+                lastContact = System.currentTimeMillis();
+                return;
+            }
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING, 
+                    "Client {0} was evicted by the server, reconnecting", new Object[]{clientId});
+            reconnect();
+        } catch (Exception ex) {
+            if (closed) {
+                // closed while renewing
+                return;
+            }
+            // the next heartbeat tries again, the lease lasts for three of them
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING, 
+                    "Lease of client " + clientId + " could not be renewed", ex);
+        }
+    }
+    
+    /**
+     * The subscribers are notified on virtual threads when the system property 
+     * "ro.top.virtualThreads" is true and the JVM supports them (JDK 21+), 
+     * otherwise on a platform thread pool
+     */
+    private static ExecutorService newNotificationPusher() {
+        if (VirtualThreads.isRequested()) {
+            if (VirtualThreads.isAvailable()) {
+                return VirtualThreads.newThreadPerTaskExecutor();
+            }
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING, 
+                    "Virtual threads are not supported by this JVM, subscribers are notified on platform threads");
+        }
+        return Executors.newCachedThreadPool();
     }
     
     /**
@@ -71,20 +284,39 @@ public final class ClientNotificationController implements AutoCloseable {
      * It is highly recommended to use this method for the very first use of this class  
      * 
      * @param serverSocket socket of the Notification Server under the forma "host:port"   
-     * @param clientPort at which port should this client create its registry   
+     * @param clientPort at which port should this client export its callback, DEFAULT_PORT for any free port   
      * @return singleton     
     */
     public static ClientNotificationController getInstance(String serverSocket, int clientPort) {
+        return getInstance(serverSocket, new RmiClientTransport(clientPort));
+    }
+    
+    /**
+     * Initialize the client using the given transport and returns the singleton instance.
+     * The server must be started with the matching server transport
+     * 
+     * @param serverSocket socket of the Notification Server under the forma "host:port"   
+     * @param transport how to reach the server (RmiClientTransport, NioClientTransport)
+     * @return singleton     
+    */
+    public static ClientNotificationController getInstance(String serverSocket, ClientTransport transport) {
         if (singleton == null) {
             synchronized(ClientNotificationController.class) {
                 if (singleton == null) {
-                    singleton = new ClientNotificationController(serverSocket, clientPort);
+                    singleton = builder().serverSocket(serverSocket).transport(transport).build();
                 }
             }
         }
         return singleton;
     }
     
+    /**
+     * @return a builder of a new client, independent of the one returned by getInstance
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+    
     /**
      * Initialize the client with default configurations and returns the singleton instance.
      * It is highly recommended to use getInstance(String serverSocket, int clientPort) method for the very 
@@ -92,7 +324,7 @@ public final class ClientNotificationController implements AutoCloseable {
      * 
      * The default configurations are : <br>
      * - serverSocket : localhost:4444 <br>
-     * - clientSocket : local_ip_address:9999
+     * - clientSocket : local_ip_address:any_free_port
      *   
      * @return singleton     
     */
@@ -107,7 +339,7 @@ public final class ClientNotificationController implements AutoCloseable {
      * Server Socket format : "host:port" <br>
      * 
      * The default configurations are : 
-     * - clientSocket : this_local_ip_address:9999
+     * - clientSocket : this_local_ip_address:any_free_port
      *   
      * @param serverSocket
      * @return singleton     
@@ -145,74 +377,156 @@ public final class ClientNotificationController implements AutoCloseable {
     /**
      * Initialize the ClientNotification and establishes the
      * connection with NotificationServer, situated at the specified address
-     * @param serverSocket - the socket of the NotificationServer application
-     * @param clientSocket
      * @throws java.rmi.NotBoundException
-     * @throws java.net.MalformedURLException
-     * @throws java.rmi.RemoteException
+     * @throws java.io.IOException
      */
-    private void init(String serverSocket, int clientPort) throws NotBoundException, MalformedURLException, RemoteException, UnknownHostException, SocketException {
-        String clientSocket = getLocalIp() + ":" + clientPort;
-        ClientNotificationController.serverSocket = serverSocket;
-        
-        String[] socket = serverSocket.split(":");
-        String serverHost = socket[0];
-        int serverPort = Integer.parseInt(socket[1]);
-        
-        
-        proxy = (NotificationProxy) LocateRegistry.getRegistry(serverHost, serverPort).lookup(NOTIFICATION_SERVER_NAME);
-        //proxy = (NotificationProxy) Naming.lookup("rmi://" + serverHost + "/" + NOTIFICATION_SERVER_NAME);
-        CLIENT_ID = proxy.registerClient(clientSocket);
-        
-        Registry registry;
-        try {
-            registry = LocateRegistry.createRegistry(clientPort);
-        } catch (RemoteException e) {
-            registry = LocateRegistry.getRegistry("localhost", clientPort);
-        }
-        registry.rebind(CLIENT_ID, new ClientNotificationService());
-        Logger.getGlobal().log(Level.INFO, "Created client registry {0} at {1}", new Object[]{CLIENT_ID, clientSocket});
-        //Naming.rebind("rmi://" + clientSocket + "/" + CLIENT_ID, new ClientNotificationService());
+    private void init() throws NotBoundException, IOException {
+        clientId = transport.connect(serverAddress, new ClientNotificationService(this));
+        proxy = transport.getProxy();
     }  
         
     void receiveNotification(String topicName) {
-        if (topics.containsKey(topicName)) {
-            List<Callable<String>> tasks = new ArrayList<>();
-           
-            topics.get(topicName)
-                    .forEach(s ->  { 
-                        tasks.add(() -> { 
-                            s.newNotification(topicName);
-                            return "";
-                        });                       
-                    });
-            
-            try {
-                notificationPusher.invokeAll(tasks);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        receiveNotification(topicName, Notification.NO_OFFSET);
+    }
+    
+    void receiveNotification(String topicName, long offset) {
+        lastContact = System.currentTimeMillis();
+        if (!isNew(topicName, offset)) {
+            return;
+        }
+        Collection<Subscriber> subscribers = subscribersOf(topicName, false, null);
+        if (offset == Notification.NO_OFFSET) {
+            post(subscribers, topicName, s -> s.newNotification(topicName));
+        } else {
+            post(subscribers, topicName, s -> s.newNotification(topicName, offset));
         }
     }
     
     void receiveDataNotification(Object data, String topicName) {
-        if (topics.containsKey(topicName)) {
-            List<Callable<String>> tasks = new ArrayList<>();
-           
-            topics.get(topicName)
-                    .forEach(s ->  { 
-                        tasks.add(() -> { 
-                            s.newDataNotification(data, topicName);
-                            return "";
-                        });                       
-                    });
-            
-            try {
-                notificationPusher.invokeAll(tasks);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+        receiveDataNotification(data, topicName, Notification.NO_OFFSET);
+    }
+    
+    void receiveDataNotification(Object data, String topicName, long offset) {
+        lastContact = System.currentTimeMillis();
+        if (!isNew(topicName, offset)) {
+            return;
+        }
+        Collection<Subscriber> subscribers = subscribersOf(topicName, true, data);
+        if (offset == Notification.NO_OFFSET) {
+            post(subscribers, topicName, s -> s.newDataNotification(data, topicName));
+        } else {
+            post(subscribers, topicName, s -> s.newDataNotification(data, topicName, offset));
+        }
+    }
+    
+    /**
+     * Enqueues the notification in the mailbox of every subscriber, without waiting for any of them. 
+     * Each subscriber gets its notifications one at a time, in the order they were received
+     */
+    private void post(Collection<Subscriber> subscribers, String topicName, Consumer<Subscriber> notification) {
+        for (Subscriber subscriber : subscribers) {
+            // offered inside compute, so a mailbox cannot be retired between being looked up and offered to
+            mailboxes.compute(subscriber, (s, mailbox) -> {
+                if (mailbox == null) {
+                    mailbox = new SubscriberMailbox(s, mailboxCapacity, notificationPusher, this::retireMailbox);
+                }
+                mailbox.offer(notification, topicName);
+                return mailbox;
+            });
+        }
+    }
+    
+    /**
+     * @param subscriber
+     * @return a snapshot of the mailbox of the subscriber, null if it got no notification yet
+     */
+    public MailboxStats getMailboxStats(Subscriber subscriber) {
+        SubscriberMailbox mailbox = mailboxes.get(subscriber);
+        return mailbox != null ? mailbox.getStats() : null;
+    }
+    
+    /**
+     * @return a snapshot of the mailboxes of all the subscribers that got notifications
+     */
+    public Map<Subscriber, MailboxStats> getMailboxStats() {
+        Map<Subscriber, MailboxStats> stats = new HashMap<>();
+        mailboxes.forEach((subscriber, mailbox) -> stats.put(subscriber, mailbox.getStats()));
+        return stats;
+    }
+    
+    /**
+     * Sets how many notifications may wait for a single subscriber before new ones get dropped. 
+     * Applies to the subscribers that get their first notification from now on
+     * @param mailboxCapacity
+     */
+    public void setMailboxCapacity(int mailboxCapacity) {
+        if (mailboxCapacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be positive (value=" + mailboxCapacity + ")");
+        }
+        this.mailboxCapacity = mailboxCapacity;
+    }
+    
+    /**
+     * Records the offset of a logged notification
+     * @return false if a notification with the same or a later offset was already received
+     */
+    private boolean isNew(String topicName, long offset) {
+        if (offset == Notification.NO_OFFSET) {
+            return true;
+        }
+        boolean[] isNew = new boolean[1];
+        lastOffsets.compute(topicName, (t, last) -> {
+            isNew[0] = last == null || offset > last;
+            return isNew[0] ? offset : last;
+        });
+        return isNew[0];
+    }
+    
+    /**
+     * For topics kept in a durable log by the server, tells where to resume from: 
+     * SubscribeOptions.defaults().fromOffset(getLastOffset(topicName) + 1)
+     * @param topicName
+     * @return the offset of the last notification received for the topic, 
+     * or Notification.NO_OFFSET if none was received
+     */
+    public long getLastOffset(String topicName) {
+        return lastOffsets.getOrDefault(topicName, Notification.NO_OFFSET);
+    }
+    
+    /**
+     * The server pushes a notification when any subscription of this client wants it, 
+     * so the filters are checked again for the topics and patterns it matched
+     * @param topicName - the topic of a received notification
+     * @param hasData - false for notifications without data, which bypass the filters
+     * @param data
+     * @return the subscribers of the topic and of the patterns matching it, each only once
+     */
+    private Collection<Subscriber> subscribersOf(String topicName, boolean hasData, Object data) {
+        boolean patternsMatch = !patterns.isEmpty() && !TopicNames.isPattern(topicName);
+        if (!patternsMatch) {
+            TopicSubscription exact = topics.get(topicName);
+            if (exact == null) {
+                return Collections.emptySet();
+            }
+            if (exact.filter == null) {
+                return exact.subscribers;
             }
         }
+        Set<Subscriber> subscribers = new LinkedHashSet<>();
+        addSubscribers(topicName, hasData, data, subscribers);
+        if (patternsMatch) {
+            patterns.stream()
+                    .filter(pattern -> TopicNames.matches(pattern, topicName))
+                    .forEach(pattern -> addSubscribers(pattern, hasData, data, subscribers));
+        }
+        return subscribers;
+    }
+    
+    private void addSubscribers(String subscribedTopic, boolean hasData, Object data, Set<Subscriber> subscribers) {
+        TopicSubscription subscribed = topics.get(subscribedTopic);
+        if (subscribed != null && (!hasData || subscribed.filter == null || subscribed.filter.test(data))) {
+            subscribers.addAll(subscribed.subscribers);
+        }
     }
     
     /**
@@ -220,7 +534,14 @@ public final class ClientNotificationController implements AutoCloseable {
      * @return the id associated with this client 
      */
     public String getClientId() {
-        return CLIENT_ID;
+        return clientId;
+    }
+    
+    /**
+     * @return the socket of the server this client is connected to, under the form "host:port"
+     */
+    public String getServerSocket() {
+        return serverAddress;
     }
     
     /**
@@ -228,6 +549,10 @@ public final class ClientNotificationController implements AutoCloseable {
      * @param topicName 
      */
     public void postNotification(String topicName) {
+        if (queuedPublish) {
+            enqueueNotification(topicName);
+            return;
+        }
         try {
             proxy.notifyTopic(topicName);
         } catch (RemoteException ex) {
@@ -241,30 +566,272 @@ public final class ClientNotificationController implements AutoCloseable {
      * @param topicName 
      */
     public void postDataNotification(Object data, String topicName) {
+        if (queuedPublish) {
+            enqueueDataNotification(data, topicName);
+            return;
+        }
+        try {
+            // encoded here, so RMI only carries the bytes of the payload codec
+            proxy.dataNotifyTopic(EncodedPayload.encode(data), topicName);
+        } catch (IOException ex) {
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Publishes all the notifications with a single request to the server, in the order 
+     * of the list. Each one reaches the subscribers as if it had been posted on its own
+     * @param notifications - built with Notification.of
+     * @return false if the server could not be reached
+     */
+    public boolean postNotifications(List<Notification> notifications) {
+        try {
+            proxy.publishBatch(notifications);
+            return true;
+        } catch (RemoteException ex) {
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, 
+                    "A batch of " + notifications.size() + " notifications could not be published", ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Sets whether postNotification and postDataNotification return as soon as the server 
+     * queued the notification, like enqueueNotification, instead of once it was handed 
+     * to all the subscribers. Off by default
+     * @param queuedPublish
+     */
+    public void setQueuedPublish(boolean queuedPublish) {
+        this.queuedPublish = queuedPublish;
+    }
+    
+    /**
+     * @return true if postNotification and postDataNotification only wait for the server to queue the notification
+     */
+    public boolean isQueuedPublish() {
+        return queuedPublish;
+    }
+    
+    /**
+     * Notifies all the subscribers for the specified topic, only waiting for the server 
+     * to queue the notification, so the call takes as long however many subscribers the topic has. 
+     * The queued notifications of a topic are published in the order of their sequence numbers
+     * @param topicName
+     * @return the sequence number the server gave the notification, -1 if it was not accepted
+     */
+    public long enqueueNotification(String topicName) {
+        return enqueueEncoded(null, topicName);
+    }
+    
+    /**
+     * Notifies all the subscribers for the specified topic with the given data, 
+     * only waiting for the server to queue the notification. See enqueueNotification(String)
+     * @param data
+     * @param topicName
+     * @return the sequence number the server gave the notification, -1 if it was not accepted
+     */
+    public long enqueueDataNotification(Object data, String topicName) {
+        try {
+            return enqueueEncoded(EncodedPayload.encode(data), topicName);
+        } catch (IOException ex) {
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, 
+                    "Data for topic " + topicName + " could not be serialized", ex);
+            return -1;
+        }
+    }
+    
+    private long enqueueEncoded(EncodedPayload data, String topicName) {
         try {
-            proxy.dataNotifyTopic(data, topicName);
+            return proxy.publishQueued(data, topicName);
         } catch (RemoteException ex) {
             Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+            return -1;
         }
     }
     
     /**
-     * Subscribe the specified subscriber from the specified topic
+     * Notifies all the subscribers for the specified topic and reports the outcome. <br>
+     * The call only waits for the server to accept the notification, so many publishes 
+     * may be in flight at once; the server sends the reports back in batches. 
+     * If this client is disconnected before the report arrives, the future completes exceptionally
+     * @param topicName
+     * @return completed with the report of the publish
+     */
+    public CompletableFuture<DeliveryReport> publish(String topicName) {
+        return publishEncoded(null, topicName);
+    }
+    
+    /**
+     * Notifies all the subscribers for the specified topic with the given data 
+     * and reports the outcome. See publish(String)
+     * @param data
+     * @param topicName
+     * @return completed with the report of the publish
+     */
+    public CompletableFuture<DeliveryReport> publish(Object data, String topicName) {
+        EncodedPayload payload;
+        try {
+            payload = EncodedPayload.encode(data);
+        } catch (IOException ex) {
+            CompletableFuture<DeliveryReport> report = new CompletableFuture<>();
+            report.completeExceptionally(ex);
+            return report;
+        }
+        return publishEncoded(payload, topicName);
+    }
+    
+    private CompletableFuture<DeliveryReport> publishEncoded(EncodedPayload data, String topicName) {
+        long publishId = publishIds.incrementAndGet();
+        CompletableFuture<DeliveryReport> report = new CompletableFuture<>();
+        pendingReports.put(publishId, report);
+        try {
+            proxy.publishConfirmed(data, topicName, clientId, publishId);
+        } catch (Exception ex) {
+            pendingReports.remove(publishId);
+            report.completeExceptionally(ex);
+        }
+        return report;
+    }
+    
+    void receiveDeliveryReports(List<DeliveryReport> reports) {
+        lastContact = System.currentTimeMillis();
+        reports.forEach(received -> {
+            CompletableFuture<DeliveryReport> report = pendingReports.remove(received.getPublishId());
+            if (report != null) {
+                report.complete(received);
+            }
+        });
+    }
+    
+    /**
+     * The server sends the reports to the client id that published, so they cannot arrive anymore
+     */
+    private void failPendingReports(String reason) {
+        IllegalStateException lost = new IllegalStateException(reason);
+        pendingReports.keySet().forEach(publishId -> {
+            CompletableFuture<DeliveryReport> report = pendingReports.remove(publishId);
+            if (report != null) {
+                report.completeExceptionally(lost);
+            }
+        });
+    }
+    
+    /**
+     * Subscribe the specified subscriber from the specified topic. <br>
+     * The topic may contain wildcards: "prices.*.EURUSD" covers every topic with one segment
+     * in place of "*", "prices.#" covers every topic starting with "prices". <br>
+     * On the topics the server retains, the last published data is delivered right away
      * @param topicName
      * @param s - the subscriber
      * @return true if the subscriber was added successfully, false otherwise
      * @throws java.lang.Exception
      */
     public boolean addSubscriber(String topicName, Subscriber s) throws Exception {
-        synchronized (ClientNotificationController.class) {
-            if (!topics.containsKey(topicName)) {
-                proxy.subscribe(topicName, CLIENT_ID);            
-                topics.put(topicName, new CopyOnWriteArraySet<>());
+        return addSubscriber(topicName, s, SubscribeOptions.defaults());
+    }
+    
+    /**
+     * Subscribe the specified subscriber from the specified topic, with the given options. <br>
+     * A filter, like SubscribeOptions.defaults().filter("price &gt; 10"), is applied by the server, 
+     * so the data notifications it rejects are never sent to this client. 
+     * All the subscribers of a topic share the filter the topic was first subscribed with. <br>
+     * For topics the server keeps in a durable log, SubscribeOptions.defaults().fromOffset(offset)
+     * replays the kept notifications from that offset on, before the live ones
+     * @param topicName
+     * @param s - the subscriber
+     * @param options
+     * @return true if the subscriber was added successfully, false otherwise
+     * @throws IllegalArgumentException if the filter is not valid, the topic was 
+     * already subscribed with another filter or a replay was requested for a topic already subscribed
+     * @throws java.lang.Exception
+     */
+    public boolean addSubscriber(String topicName, Subscriber s, SubscribeOptions options) throws Exception {
+        Filter filter = options.getFilter() != null ? Filter.compile(options.getFilter()) : null;
+        boolean replay = options.getFromOffset() != SubscribeOptions.LIVE;
+        TopicSubscription topic = lockTopic(topicName, filter);
+        try {
+            if (topic.subscribers.isEmpty()) {
+                // registered before subscribing, the server may push a replay before answering
+                topic.subscribers.add(s);
+                subscribed(s);
+                if (replay) {
+                    // the requested notifications are delivered, even if they were received before
+                    lastOffsets.put(topicName, options.getFromOffset() - 1);
+                }
+                try {
+                    if (filter == null && !replay) {
+                        proxy.subscribe(topicName, clientId);
+                    } else {
+                        proxy.subscribe(topicName, clientId, options);
+                    }
+                } catch (Exception ex) {
+                    removeTopic(topic);
+                    unsubscribed(s);
+                    throw ex;
+                }
+                return true;
+            } else if (replay) {
+                throw new IllegalArgumentException("Topic " + topicName + " is already subscribed, it cannot be replayed");
+            } else if (!Objects.equals(topic.filter, filter)) {
+                throw new IllegalArgumentException("Topic " + topicName + " is already subscribed with filter " 
+                        + topic.filter);
+            }
+            if (!topic.subscribers.add(s)) {
+                return false;
+            }
+            subscribed(s);
+            return true;
+        } finally {
+            topic.lock.unlock();
+        }
+    }
+    
+    /**
+     * Subscribe the specified subscriber to all the specified topics, without filters. <br>
+     * The server is asked, in a single call, only for the topics this client was not 
+     * subscribed to yet. If that fails, the subscriber is added to none of the topics
+     * @param topicNames - topics or topic patterns
+     * @param s - the subscriber
+     * @return the number of topics the subscriber was not subscribed to already
+     * @throws IllegalArgumentException if one of the topics is already subscribed with a filter
+     * @throws java.lang.Exception
+     */
+    public int addSubscriber(Collection<String> topicNames, Subscriber s) throws Exception {
+        List<TopicSubscription> locked = new ArrayList<>();
+        List<TopicSubscription> added = new ArrayList<>();
+        List<String> subscribing = new ArrayList<>();
+        try {
+            // always locked in the same order, so two batches cannot wait for each other
+            for (String topicName : new TreeSet<>(topicNames)) {
+                TopicSubscription topic = lockTopic(topicName, null);
+                locked.add(topic);
+                if (topic.subscribers.isEmpty()) {
+                    subscribing.add(topicName);
+                } else if (topic.filter != null) {
+                    throw new IllegalArgumentException("Topic " + topicName + " is already subscribed with filter " 
+                            + topic.filter);
+                }
+                if (topic.subscribers.add(s)) {
+                    added.add(topic);
+                    subscribed(s);
+                }
+            }
+            if (!subscribing.isEmpty()) {
+                proxy.subscribeAll(subscribing, clientId);
             }
+            return added.size();
+        } catch (Exception ex) {
+            added.forEach(topic -> {
+                topic.subscribers.remove(s);
+                unsubscribed(s);
+            });
+            locked.stream()
+                    .filter(topic -> topic.subscribers.isEmpty())
+                    .forEach(this::removeTopic);
+            throw ex;
+        } finally {
+            locked.forEach(topic -> topic.lock.unlock());
         }
-        //TODO: remove these
-        System.out.println("Vrea si " + s + " sa stie"); // DEBUG
-        return topics.get(topicName).add(s);
     }
     
     /**
@@ -274,20 +841,198 @@ public final class ClientNotificationController implements AutoCloseable {
      * @return true if the subscriber s does not listen anymore, false otherwise 
      */
     public boolean removeSubscriber(String topicName, Subscriber s)  {
-        if (!topics.containsKey(topicName)) {
+        TopicSubscription topic = topics.get(topicName);
+        if (topic == null) {
             return true;
         }
-        boolean rez = topics.get(topicName).remove(s);
-        if (topics.get(topicName).isEmpty()) {
+        boolean rez;
+        topic.lock.lock();
+        try {
+            if (topic.removed) {
+                return true;
+            }
+            rez = topic.subscribers.remove(s);
+            if (rez) {
+                unsubscribed(s);
+            }
+            if (topic.subscribers.isEmpty()) {
+                removeTopic(topic);
+                try {
+                    proxy.unsubscribe(topicName, clientId);
+                } catch (RemoteException ex) {
+                    Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        } finally {
+            topic.lock.unlock();
+        }
+        return rez;
+    }
+    
+    /**
+     * Unsubscribe the specified subscriber from all the specified topics. 
+     * The server is told, in a single call, about the topics left without subscribers
+     * @param topicNames
+     * @param s - the subscriber
+     * @return the number of topics the subscriber was removed from
+     */
+    public int removeSubscriber(Collection<String> topicNames, Subscriber s) {
+        List<TopicSubscription> locked = new ArrayList<>();
+        List<String> unsubscribing = new ArrayList<>();
+        int removed = 0;
+        try {
+            for (String topicName : new TreeSet<>(topicNames)) {
+                TopicSubscription topic = topics.get(topicName);
+                if (topic == null) {
+                    continue;
+                }
+                topic.lock.lock();
+                locked.add(topic);
+                if (topic.removed) {
+                    continue;
+                }
+                if (topic.subscribers.remove(s)) {
+                    removed++;
+                    unsubscribed(s);
+                }
+                if (topic.subscribers.isEmpty()) {
+                    removeTopic(topic);
+                    unsubscribing.add(topicName);
+                }
+            }
+            if (!unsubscribing.isEmpty()) {
+                try {
+                    proxy.unsubscribeAll(unsubscribing, clientId);
+                } catch (RemoteException ex) {
+                    Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        } finally {
+            locked.forEach(topic -> topic.lock.unlock());
+        }
+        return removed;
+    }
+    
+    /**
+     * @return the subscription of the topic, created if needed, holding its lock
+     */
+    private TopicSubscription lockTopic(String topicName, Filter filter) {
+        while (true) {
+            TopicSubscription topic = topics.get(topicName);
+            if (topic == null) {
+                TopicSubscription created = new TopicSubscription(topicName, filter);
+                created.lock.lock();
+                topic = topics.putIfAbsent(topicName, created);
+                if (topic == null) {
+                    if (TopicNames.isPattern(topicName)) {
+                        patterns.add(topicName);
+                    }
+                    return created;
+                }
+                created.lock.unlock();
+            }
+            topic.lock.lock();
+            if (!topic.removed) {
+                return topic;
+            }
+            topic.lock.unlock();
+        }
+    }
+    
+    /**
+     * Called holding the lock of the topic
+     */
+    private void removeTopic(TopicSubscription topic) {
+        topic.removed = true;
+        topics.remove(topic.topicName, topic);
+        patterns.remove(topic.topicName);
+    }
+    
+    /**
+     * Called holding the lock of the topic the subscriber was added to
+     */
+    private void subscribed(Subscriber s) {
+        subscriptionCounts.merge(s, 1, Integer::sum);
+    }
+    
+    /**
+     * Called holding the lock of the topic the subscriber was removed from
+     */
+    private void unsubscribed(Subscriber s) {
+        if (subscriptionCounts.computeIfPresent(s, (k, count) -> count > 1 ? count - 1 : null) == null) {
+            retireMailbox(s);
+        }
+    }
+    
+    /**
+     * Drops the mailbox of a subscriber left without topics, once nothing waits in it. 
+     * A busy mailbox is kept, and retired by its drain task when it runs out of notifications
+     */
+    private void retireMailbox(Subscriber s) {
+        if (!subscriptionCounts.containsKey(s)) {
+            mailboxes.computeIfPresent(s, (k, mailbox) -> 
+                    mailbox.isIdle() && !subscriptionCounts.containsKey(k) ? null : mailbox);
+        }
+    }
+    
+    /**
+     * Registers this client again, for instance after an outage made the server evict it, 
+     * and subscribes again to all its topics, with the same filters. <br>
+     * The topics the server keeps in a history or in a durable log resume right after the 
+     * last notification received, so only the missed ones are delivered, as long as the 
+     * server still keeps them
+     * @throws Exception if the server cannot be reached
+     */
+    public void reconnect() throws Exception {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Client " + clientId + " is closed");
+            }
             try {
-                proxy.unsubscribe(topicName, CLIENT_ID);
+                proxy.unregisterClient(clientId);
             } catch (RemoteException ex) {
-                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+                // the server most likely evicted this client already
+            }
+            transport.close();
+            failPendingReports("Client " + clientId + " reconnected before the delivery report arrived");
+            init();
+            lastContact = System.currentTimeMillis();
+            for (TopicSubscription topic : topics.values()) {
+                topic.lock.lock();
+                try {
+                    if (!topic.removed) {
+                        resubscribe(topic);
+                    }
+                } finally {
+                    topic.lock.unlock();
+                }
             }
-            topics.remove(topicName);
         }
-        return rez;
-    }    
+        Logger.getGlobal().log(Level.INFO, "Client reconnected as {0}", new Object[]{clientId});
+    }
+    
+    private void resubscribe(TopicSubscription topic) throws Exception {
+        String topicName = topic.topicName;
+        Filter filter = topic.filter;
+        SubscribeOptions options = SubscribeOptions.defaults().filter(filter != null ? filter.getExpression() : null);
+        Long lastOffset = lastOffsets.get(topicName);
+        if (lastOffset != null) {
+            try {
+                proxy.subscribe(topicName, clientId, options.fromOffset(lastOffset + 1));
+                return;
+            } catch (Exception ex) {
+                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING, 
+                        "Topic {0} could not be caught up, only the new notifications will be received: {1}", 
+                        new Object[]{topicName, ex.getMessage()});
+                options.fromOffset(SubscribeOptions.LIVE);
+            }
+        }
+        if (filter == null) {
+            proxy.subscribe(topicName, clientId);
+        } else {
+            proxy.subscribe(topicName, clientId, options);
+        }
+    }
     
     /**
      * Tests if the specified topic exists
@@ -349,24 +1094,117 @@ public final class ClientNotificationController implements AutoCloseable {
      */
     public void deleteTopic(String topicName, Object data) {
         try {
-            proxy.deleteTopic(topicName, data);
-        } catch (RemoteException ex) {
+            proxy.deleteTopic(topicName, EncodedPayload.encode(data));
+        } catch (IOException ex) {
             Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
+    /**
+     * Unregisters this client and releases its resources. Closing it again does nothing
+     */
     @Override
     public void close() {
+        synchronized (ClientNotificationController.class) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
         //topics.forEach((k, v) -> v.forEach(s -> removeSubscriber(k, s)));        
         topics.clear();
-        try {
-            proxy.unregisterClient(CLIENT_ID);
-            LocateRegistry.getRegistry(CLIENT_PORT).unbind(CLIENT_ID);
-        } catch (NotBoundException | RemoteException ex) {
-            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+        patterns.clear();
+        subscriptionCounts.clear();
+        mailboxes.clear();
+        heartbeat.cancel(false);
+        // waits for a reconnect of the heartbeat already running
+        synchronized (this) {
+            try {
+                proxy.unregisterClient(clientId);
+            } catch (RemoteException ex) {
+                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            transport.close();
+        }
+        failPendingReports("Client " + clientId + " closed before the delivery report arrived");
+        synchronized (ClientNotificationController.class) {
+            if (--openClients == 0) {
+                // the mailboxes still hand over the notifications already received
+                sharedPusher.shutdown();
+                sharedHeartbeat.shutdownNow();
+                sharedPusher = null;
+                sharedHeartbeat = null;
+            }
+            if (singleton == this) {
+                singleton = null;
+            }
         }
-        singleton = null;
         proxy = null;
-        Logger.getGlobal().log(Level.INFO, "Client server {0} hopefully closed", new Object[]{CLIENT_ID});
+        Logger.getGlobal().log(Level.INFO, "Client server {0} hopefully closed", new Object[]{clientId});
+    }
+    
+    /**
+     * Configures a client. 
+     * build() connects a new client, independent of the other ones of this JVM
+     */
+    public static final class Builder {
+        private String serverSocket = ClientNotificationController.serverSocket;
+        private int clientPort = DEFAULT_PORT;
+        private ClientTransport transport;
+        private int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+        
+        private Builder() {
+        }
+        
+        /**
+         * @param serverSocket - socket of the Notification Server under the form "host:port"
+         * @return this builder
+         */
+        public Builder serverSocket(String serverSocket) {
+            this.serverSocket = serverSocket;
+            return this;
+        }
+        
+        /**
+         * @param clientPort - at which port the RMI transport exports the callback of the client, 
+         * DEFAULT_PORT for any free port. Ignored when a transport is given
+         * @return this builder
+         */
+        public Builder clientPort(int clientPort) {
+            this.clientPort = clientPort;
+            return this;
+        }
+        
+        /**
+         * @param transport - how to reach the server, a RmiClientTransport by default. 
+         * Every client needs a transport of its own
+         * @return this builder
+         */
+        public Builder transport(ClientTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+        
+        /**
+         * @param mailboxCapacity - how many notifications may wait for a single subscriber
+         * before new ones get dropped
+         * @return this builder
+         */
+        public Builder mailboxCapacity(int mailboxCapacity) {
+            if (mailboxCapacity < 1) {
+                throw new IllegalArgumentException("Mailbox capacity must be positive (value=" + mailboxCapacity + ")");
+            }
+            this.mailboxCapacity = mailboxCapacity;
+            return this;
+        }
+        
+        /**
+         * Connects a new client with this configuration
+         * @return the client
+         * @throws UninitializedNotificationServerException if the server cannot be reached
+         */
+        public ClientNotificationController build() {
+            return new ClientNotificationController(this);
+        }
     }
 }
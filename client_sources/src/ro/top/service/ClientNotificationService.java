@@ -1,27 +1,72 @@
 package ro.top.service;
 
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.DeliveryReport;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
 
 /**
- *
+ * The implementation for the ClientNotificationProxy interface. 
+ * The client transport exposes it to the server, one for each client
  * @author Alexandru Topala
  */
-public class ClientNotificationService extends UnicastRemoteObject implements ClientNotificationProxy {
-    private static final long serialVersionUID = 1L;
+public class ClientNotificationService implements ClientNotificationProxy {
+    private final ClientNotificationController controller;
     
-    public ClientNotificationService() throws RemoteException {        
+    /**
+     * @param controller - the client receiving what the server pushes
+     */
+    public ClientNotificationService(ClientNotificationController controller) {        
+        this.controller = controller;
     }
 
     @Override
     public void receiveNotification(String name) {
-        ClientNotificationController.getInstance().receiveNotification(name);
+        controller.receiveNotification(name);
     }
 
     @Override
     public void receiveDataNotification(Object data, String name) {
-        ClientNotificationController.getInstance().receiveDataNotification(data, name);
+        controller.receiveDataNotification(data, name);
+    }
+
+    @Override
+    public void receiveEncodedDataNotification(EncodedPayload data, String name) {
+        receiveEncodedDataNotification(data, name, Notification.NO_OFFSET);
+    }
+    
+    private void receiveEncodedDataNotification(EncodedPayload data, String name, long offset) {
+        Object decoded;
+        try {
+            decoded = data.decode();
+        } catch (IOException | ClassNotFoundException ex) {
+            Logger.getLogger(ClientNotificationService.class.getName()).log(Level.SEVERE, 
+                    "Data received for topic " + name + " could not be decoded", ex);
+            return;
+        }
+        controller.receiveDataNotification(decoded, name, offset);
+    }
+
+    @Override
+    public void receiveNotifications(List<Notification> notifications) {
+        notifications.forEach(notification -> {
+            if (notification.hasData()) {
+                receiveEncodedDataNotification(notification.getData(), notification.getTopicName(), 
+                        notification.getOffset());
+            } else {
+                controller.receiveNotification(notification.getTopicName(), 
+                        notification.getOffset());
+            }
+        });
+    }
+
+    @Override
+    public void receiveDeliveryReports(List<DeliveryReport> reports) {
+        controller.receiveDeliveryReports(reports);
     }
 
     
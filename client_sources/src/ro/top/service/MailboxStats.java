@@ -0,0 +1,80 @@
+package ro.top.service;
+
+/**
+ * A snapshot of the mailbox of a Subscriber
+ * @author Alexandru Topala
+ */
+public final class MailboxStats {
+    private final int depth;
+    private final long delivered;
+    private final long dropped;
+    private final long failed;
+    private final long totalProcessingNanos;
+    private final long maxProcessingNanos;
+
+    MailboxStats(int depth, long delivered, long dropped, long failed, 
+            long totalProcessingNanos, long maxProcessingNanos) {
+        this.depth = depth;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.failed = failed;
+        this.totalProcessingNanos = totalProcessingNanos;
+        this.maxProcessingNanos = maxProcessingNanos;
+    }
+
+    /**
+     * @return the number of notifications waiting for the subscriber
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of notifications handed to the subscriber
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the number of notifications dropped because the mailbox was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of notifications the subscriber threw an exception for
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the time the subscriber spent handling all the delivered notifications, in nanoseconds
+     */
+    public long getTotalProcessingNanos() {
+        return totalProcessingNanos;
+    }
+
+    /**
+     * @return the average time the subscriber spent handling a notification, in nanoseconds
+     */
+    public long getAverageProcessingNanos() {
+        return delivered == 0 ? 0 : totalProcessingNanos / delivered;
+    }
+
+    /**
+     * @return the longest time the subscriber spent handling a notification, in nanoseconds
+     */
+    public long getMaxProcessingNanos() {
+        return maxProcessingNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MailboxStats{depth=" + depth + ", delivered=" + delivered + ", dropped=" + dropped
+                + ", failed=" + failed + ", averageProcessingNanos=" + getAverageProcessingNanos()
+                + ", maxProcessingNanos=" + maxProcessingNanos + '}';
+    }
+}
@@ -0,0 +1,199 @@
+package ro.top.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.proxy.Notification;
+
+/**
+ * Buffers the posted notifications and publishes them in batches, with one request each. <br>
+ * A batch is sent as soon as maxBatchSize notifications are waiting, or once the oldest
+ * of them waited maxDelay. The batches are sent one at a time, by a single thread,
+ * so the notifications reach the server in the order they were posted.
+ * When capacity notifications are waiting, new ones are refused
+ * @author Alexandru Topala
+ */
+final class PublishBatcher implements AutoCloseable {
+    private final Predicate<List<Notification>> sink;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final int capacity;
+    private final ScheduledExecutorService flusher;
+    private final Queue<Notification> queue;
+    private final AtomicInteger pending;
+
+    /**
+     * A flush is scheduled at the end of the delay of the oldest waiting notification
+     */
+    private final AtomicBoolean flushDue;
+
+    /**
+     * A flush is requested right away, because a batch is full
+     */
+    private final AtomicBoolean flushNow;
+    private final AtomicLong rejected;
+    private final AtomicLong failed;
+    private volatile boolean closed;
+
+    /**
+     * @param sink - publishes a batch, returns false if it failed
+     * @param maxBatchSize - how many notifications a request carries at most
+     * @param maxDelay - how long a notification waits, at most, for its batch to fill up
+     * @param unit - the unit of maxDelay
+     * @param capacity - how many notifications may wait before new ones are refused
+     */
+    PublishBatcher(Predicate<List<Notification>> sink, int maxBatchSize, long maxDelay, TimeUnit unit, int capacity) {
+        if (maxBatchSize < 1 || maxDelay < 0 || capacity < maxBatchSize) {
+            throw new IllegalArgumentException("Invalid batching: maxBatchSize=" + maxBatchSize
+                    + ", maxDelay=" + maxDelay + ", capacity=" + capacity);
+        }
+        this.sink = sink;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.capacity = capacity;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "notification-publish-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicInteger();
+        this.flushDue = new AtomicBoolean();
+        this.flushNow = new AtomicBoolean();
+        this.rejected = new AtomicLong();
+        this.failed = new AtomicLong();
+    }
+
+    /**
+     * Adds the notification to the current batch, without waiting for the server
+     * @param notification
+     * @return false if too many notifications are waiting, or the batcher is closed,
+     * and the notification was refused
+     */
+    boolean offer(Notification notification) {
+        if (closed) {
+            return false;
+        }
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        queue.add(notification);
+        if (pending.get() >= maxBatchSize) {
+            flush();
+        } else if (flushDue.compareAndSet(false, true)) {
+            try {
+                flusher.schedule(this::drain, maxDelayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // closing, close drains what is left
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the waiting notifications right away, without waiting for the batch to fill up
+     */
+    void flush() {
+        if (!flushNow.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flusher.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            // closing, close drains what is left
+        }
+    }
+
+    /**
+     * @return how many notifications wait to be sent
+     */
+    int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return how many notifications were refused, because too many were waiting
+     */
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how many notifications were lost, because their batch could not be published
+     */
+    long getFailedCount() {
+        return failed.get();
+    }
+
+    private void drain() {
+        // cleared before polling: whatever is added from now on asks for a flush of its own
+        flushNow.set(false);
+        flushDue.set(false);
+        while (true) {
+            List<Notification> batch = new ArrayList<>(Math.min(maxBatchSize, Math.max(1, pending.get())));
+            Notification notification;
+            while (batch.size() < maxBatchSize && (notification = queue.poll()) != null) {
+                batch.add(notification);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            pending.addAndGet(-batch.size());
+            send(batch);
+            if (batch.size() < maxBatchSize) {
+                return;
+            }
+        }
+    }
+
+    private void send(List<Notification> batch) {
+        boolean sent;
+        try {
+            sent = sink.test(batch);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(PublishBatcher.class.getName()).log(Level.SEVERE,
+                    "A batch of " + batch.size() + " notifications could not be published", ex);
+            sent = false;
+        }
+        if (!sent) {
+            failed.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * Refuses new notifications and waits for the waiting ones to be sent
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            flusher.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                Logger.getLogger(PublishBatcher.class.getName()).log(Level.WARNING,
+                        "{0} batched notifications were not published before closing", pending.get());
+                flusher.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            flusher.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ro.top.service;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.subscriber.Subscriber;
+
+/**
+ * The notifications waiting for one Subscriber. <br>
+ * Receiving a notification only enqueues it here; a single drain task at a time,
+ * run by the notification pusher, hands them to the subscriber in the order they
+ * were received. So a subscriber is never called concurrently and a slow one only
+ * delays itself, not the server nor the other subscribers
+ * @author Alexandru Topala
+ */
+final class SubscriberMailbox {
+    /**
+     * How many notifications a drain task hands over before giving its thread
+     * to other mailboxes
+     */
+    private static final int DRAIN_BUDGET = 256;
+
+    /**
+     * While the mailbox stays full, how often the drops are logged again
+     */
+    private static final long DROP_LOG_MILLIS = 10000;
+
+    private final Subscriber subscriber;
+    private final int capacity;
+    private final Executor executor;
+    private final Consumer<Subscriber> onIdle;
+    private final Queue<Consumer<Subscriber>> queue;
+    private final AtomicInteger depth;
+    private final AtomicBoolean scheduled;
+    private final AtomicLong dropped;
+
+    /**
+     * When the drops were last logged, 0 while the mailbox accepts notifications
+     */
+    private final AtomicLong dropLoggedAt;
+
+    /**
+     * Written only by the drain task running at the time
+     */
+    private volatile long delivered;
+    private volatile long failed;
+    private volatile long totalProcessingNanos;
+    private volatile long maxProcessingNanos;
+
+    /**
+     * @param subscriber
+     * @param capacity - how many notifications may wait before new ones get dropped
+     * @param executor - runs the drain tasks
+     * @param onIdle - called by a drain task that left the mailbox empty
+     */
+    SubscriberMailbox(Subscriber subscriber, int capacity, Executor executor, Consumer<Subscriber> onIdle) {
+        this.subscriber = subscriber;
+        this.capacity = capacity;
+        this.executor = executor;
+        this.onIdle = onIdle;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.depth = new AtomicInteger();
+        this.scheduled = new AtomicBoolean();
+        this.dropped = new AtomicLong();
+        this.dropLoggedAt = new AtomicLong();
+    }
+
+    /**
+     * Enqueues the notification without waiting for the subscriber
+     * @param notification - calls the subscriber
+     * @param topicName - for logging
+     * @return false if the mailbox is full and the notification was dropped
+     */
+    boolean offer(Consumer<Subscriber> notification, String topicName) {
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            long count = dropped.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long loggedAt = dropLoggedAt.get();
+            if ((loggedAt == 0 || now - loggedAt >= DROP_LOG_MILLIS) && dropLoggedAt.compareAndSet(loggedAt, now)) {
+                Logger.getLogger(ClientNotificationController.class.getName()).log(Level.WARNING,
+                        "Mailbox of subscriber {0} is full, notifications are dropped ({1} so far, last for topic {2})",
+                        new Object[]{subscriber, count, topicName});
+            }
+            return false;
+        }
+        if (dropLoggedAt.get() != 0 && dropLoggedAt.getAndSet(0) != 0) {
+            Logger.getLogger(ClientNotificationController.class.getName()).log(Level.INFO,
+                    "Mailbox of subscriber {0} accepts notifications again ({1} dropped so far)",
+                    new Object[]{subscriber, dropped.get()});
+        }
+        queue.add(notification);
+        schedule();
+        return true;
+    }
+
+    /**
+     * @return true if no notification waits and no drain task is scheduled
+     */
+    boolean isIdle() {
+        return !scheduled.get() && depth.get() == 0;
+    }
+
+    /**
+     * @return a snapshot of this mailbox
+     */
+    MailboxStats getStats() {
+        return new MailboxStats(depth.get(), delivered, dropped.get(), failed,
+                totalProcessingNanos, maxProcessingNanos);
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            // the client is closing
+            scheduled.set(false);
+        }
+    }
+
+    private void drain() {
+        try {
+            Consumer<Subscriber> notification;
+            int handed = 0;
+            while (handed++ < DRAIN_BUDGET && (notification = queue.poll()) != null) {
+                depth.decrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    notification.accept(subscriber);
+                } catch (RuntimeException ex) {
+                    failed++;
+                    Logger.getLogger(ClientNotificationController.class.getName()).log(Level.SEVERE,
+                            "Subscriber " + subscriber + " failed to handle a notification", ex);
+                }
+                long elapsed = System.nanoTime() - start;
+                delivered++;
+                totalProcessingNanos += elapsed;
+                if (elapsed > maxProcessingNanos) {
+                    maxProcessingNanos = elapsed;
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        if (!queue.isEmpty()) {
+            schedule();
+        } else {
+            onIdle.accept(subscriber);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ro.top.service;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
+import ro.top.filter.Filter;
+import ro.top.subscriber.Subscriber;
+
+/**
+ * A topic, or a topic pattern, this client subscribed to, with its local subscribers. <br>
+ * The subscribers are read without any lock when notifications arrive. Changing them,
+ * and telling the server about it, happens holding the lock of the topic, so the server
+ * is subscribed exactly while the topic has subscribers. A removed topic is never used
+ * again; whoever finds it removed looks the topic up anew
+ * @author Alexandru Topala
+ */
+final class TopicSubscription {
+    final String topicName;
+
+    /**
+     * The filter the topic was subscribed with, null for none
+     */
+    final Filter filter;
+    final Set<Subscriber> subscribers;
+    final ReentrantLock lock;
+
+    /**
+     * Guarded by lock
+     */
+    boolean removed;
+
+    TopicSubscription(String topicName, Filter filter) {
+        this.topicName = topicName;
+        this.filter = filter;
+        this.subscribers = new CopyOnWriteArraySet<>();
+        this.lock = new ReentrantLock();
+    }
+}
@@ -0,0 +1,77 @@
+package ro.top.service;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of JDK 21+, while still compiling for Java 8. 
+ * On older runtimes isAvailable() returns false and callers fall back to platform threads
+ * @author Alexandru Topala
+ */
+final class VirtualThreads {
+    /**
+     * System property that turns on virtual threads by default, where available
+     */
+    static final String ENABLE_PROPERTY = "ro.top.virtualThreads";
+    
+    private static final int FIRST_SUPPORTED_VERSION = 21;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    static boolean isAvailable() {
+        return NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return true if virtual threads were requested through the system property
+     */
+    static boolean isRequested() {
+        return Boolean.getBoolean(ENABLE_PROPERTY);
+    }
+
+    /**
+     * @return an executor starting a new virtual thread for each task
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads require JDK " + FIRST_SUPPORTED_VERSION + "+");
+        }
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Virtual threads could not be started", ex);
+        }
+    }
+
+    private static Method findFactory() {
+        if (featureVersion() < FIRST_SUPPORTED_VERSION) {
+            return null;
+        }
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static int featureVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        int end = version.indexOf('.');
+        try {
+            return Integer.parseInt(end < 0 ? version : version.substring(0, end));
+        } catch (NumberFormatException ex) {
+            return 8;
+        }
+    }
+}
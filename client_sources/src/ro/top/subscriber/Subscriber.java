@@ -17,4 +17,25 @@ public interface Subscriber {
      * @param name - the name of the topic     * 
      */
     public void newDataNotification(Object data, String name);
+    
+    /**
+     * Called when somebody notified the topic specified by this name, 
+     * for topics the server keeps in a durable log
+     * @param name - the name of the topic
+     * @param offset - the offset of the notification in the log of the topic
+     */
+    default void newNotification(String name, long offset) {
+        newNotification(name);
+    }
+    
+    /**
+     * Called when somebody notified the topic specified by this name, 
+     * for topics the server keeps in a durable log
+     * @param data - the data sent from the server
+     * @param name - the name of the topic
+     * @param offset - the offset of the notification in the log of the topic
+     */
+    default void newDataNotification(Object data, String name, long offset) {
+        newDataNotification(data, name);
+    }
 }
@@ -0,0 +1,46 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.NotificationProxy;
+
+/**
+ * The way this client reaches the notification server and receives the
+ * notifications pushed by it. <br>
+ * RmiClientTransport is the default one; NioClientTransport is a lighter alternative
+ * that requires the server to run a NioServerTransport
+ * @author Alexandru Topala
+ */
+public interface ClientTransport {
+    
+    /**
+     * Connects to the notification server and registers this client, so the server
+     * can push notifications through the given callback
+     * @param serverSocket - the socket of the server, under the form "host:port"
+     * @param callback - receives the notifications pushed by the server
+     * @return the client id allocated by the server
+     * @throws IOException if the server could not be reached
+     * @throws NotBoundException if the server is not started at that socket
+     */
+    public String connect(String serverSocket, ClientNotificationProxy callback) throws IOException, NotBoundException;
+    
+    /**
+     * @return the proxy of the server, available after connect
+     */
+    public NotificationProxy getProxy();
+    
+    /**
+     * @return false once the connection with the server is lost; the server then 
+     * forgets this client, so it must connect and register again
+     */
+    public default boolean isConnected() {
+        return true;
+    }
+    
+    /**
+     * Stops receiving notifications and releases the transport resources. 
+     * The client should be unregistered through the proxy first
+     */
+    public void close();
+}
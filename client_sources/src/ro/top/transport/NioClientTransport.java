@@ -0,0 +1,395 @@
+package ro.top.transport;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
+import ro.top.proxy.NotificationProxy;
+import ro.top.proxy.SubscribeOptions;
+
+/**
+ * A selector based TCP transport speaking the binary Protocol,
+ * to be used with a server running a NioServerTransport. <br>
+ * All the requests of this client and the notifications pushed to it share one
+ * persistent connection. Requests are tagged with a correlation id, so requests
+ * made from different threads are in flight at the same time. <br>
+ * The notifications are handed to the callback on a single thread, in the order
+ * the server pushed them. <br>
+ * All the NIO clients of the JVM share one reactor thread
+ * @author Alexandru Topala
+ */
+public final class NioClientTransport implements ClientTransport {
+    public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+
+    /**
+     * The reactor of all the connected transports, closed with the last one
+     */
+    private static NioReactor sharedReactor;
+    private static int reactorUsers;
+
+    private final long requestTimeout;
+    private final Map<Integer, CompletableFuture<Protocol.Frame>> pendingRequests;
+    private final AtomicInteger correlationIds;
+    private final NotificationProxy proxy;
+    private volatile NioReactor reactor;
+    private volatile NioConnection connection;
+    private ExecutorService callbackExecutor;
+    private ClientNotificationProxy callback;
+
+    public NioClientTransport() {
+        this(DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * @param requestTimeout - how long, in milliseconds, to wait for the server to answer a request
+     */
+    public NioClientTransport(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        this.pendingRequests = new ConcurrentHashMap<>();
+        this.correlationIds = new AtomicInteger();
+        this.proxy = new NioNotificationProxy();
+    }
+
+    @Override
+    public String connect(String serverSocket, ClientNotificationProxy callback) throws IOException {
+        String[] socket = serverSocket.split(":");
+        String serverHost = socket[0];
+        int serverPort = Integer.parseInt(socket[1]);
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+        channel.socket().setTcpNoDelay(true);
+        this.callback = callback;
+        this.callbackExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "notification-nio-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reactor = acquireReactor();
+        connection = new NioConnection(channel, reactor, new ConnectionListener());
+        connection.start();
+
+        return proxy.registerClient(callback);
+    }
+
+    @Override
+    public NotificationProxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * The server unregisters the clients of a connection when it closes
+     */
+    @Override
+    public boolean isConnected() {
+        NioConnection current = connection;
+        return reactor != null && current != null && !current.isClosed();
+    }
+
+    @Override
+    public void close() {
+        if (reactor == null) {
+            return;
+        }
+        connection.close();
+        releaseReactor();
+        callbackExecutor.shutdown();
+        reactor = null;
+    }
+
+    private static synchronized NioReactor acquireReactor() throws IOException {
+        if (reactorUsers++ == 0) {
+            try {
+                sharedReactor = new NioReactor("notification-nio-client");
+            } catch (IOException ex) {
+                reactorUsers--;
+                throw ex;
+            }
+        }
+        return sharedReactor;
+    }
+
+    private static synchronized void releaseReactor() {
+        if (--reactorUsers == 0) {
+            sharedReactor.close();
+            sharedReactor = null;
+        }
+    }
+
+    /**
+     * Writes the body of a request
+     */
+    private interface RequestBody {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends the request and waits for the answer of the server
+     * @return the RESPONSE frame
+     * @throws RemoteException if the server answered with an ERROR or could not be reached
+     */
+    private Protocol.Frame call(byte type, RequestBody body) throws RemoteException {
+        int correlationId = correlationIds.incrementAndGet();
+        CompletableFuture<Protocol.Frame> response = new CompletableFuture<>();
+        pendingRequests.put(correlationId, response);
+        try {
+            Protocol.FrameWriter out = new Protocol.FrameWriter(type, correlationId);
+            body.writeTo(out);
+            connection.send(out.toBuffer());
+            Protocol.Frame frame = response.get(requestTimeout, TimeUnit.MILLISECONDS);
+            if (frame.type == Protocol.ERROR) {
+                throw new RemoteException(frame.body.readUTF());
+            }
+            return frame;
+        } catch (RemoteException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new RemoteException("Connection with the server failed", ex);
+        } catch (ExecutionException ex) {
+            throw new RemoteException("Connection with the server failed", ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new RemoteException("The server did not answer in " + requestTimeout + " ms");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the server", ex);
+        } finally {
+            pendingRequests.remove(correlationId);
+        }
+    }
+
+    private final class ConnectionListener implements NioConnection.Listener {
+
+        @Override
+        public void onFrame(NioConnection connection, Protocol.Frame frame) {
+            if (frame.type != Protocol.PUSH && frame.type != Protocol.REPORTS) {
+                CompletableFuture<Protocol.Frame> response = pendingRequests.get(frame.correlationId);
+                if (response != null) {
+                    response.complete(frame);
+                }
+                return;
+            }
+            try {
+                callbackExecutor.execute(() -> {
+                    try {
+                        if (frame.type == Protocol.REPORTS) {
+                            callback.receiveDeliveryReports(Protocol.readReports(frame.body));
+                        } else {
+                            callback.receiveNotifications(Protocol.readNotifications(frame.body));
+                        }
+                    } catch (IOException ex) {
+                        Logger.getLogger(NioClientTransport.class.getName()).log(Level.SEVERE,
+                                "Notifications pushed by the server could not be read", ex);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the transport is closing
+            }
+        }
+
+        @Override
+        public void onClosed(NioConnection connection) {
+            IOException closed = new IOException("Connection with the server was closed");
+            pendingRequests.values().forEach(response -> response.completeExceptionally(closed));
+        }
+    }
+
+    /**
+     * The NotificationProxy operations, translated to Protocol requests
+     */
+    private final class NioNotificationProxy implements NotificationProxy {
+
+        @Override
+        public String registerClient(String clientSocket) throws RemoteException {
+            Protocol.Frame response = call(Protocol.REGISTER, out -> out.writeUTF(clientSocket));
+            try {
+                return response.body.readUTF();
+            } catch (IOException ex) {
+                throw new RemoteException("Invalid response from the server", ex);
+            }
+        }
+
+        /**
+         * The server always reaches a NIO client through its connection, 
+         * so the callback is not sent
+         */
+        @Override
+        public String registerClient(ClientNotificationProxy callback) throws RemoteException {
+            return registerClient(connection.getLocalAddress());
+        }
+
+        @Override
+        public void unregisterClient(String clientId) throws RemoteException {
+            call(Protocol.UNREGISTER, out -> out.writeUTF(clientId));
+        }
+
+        @Override
+        public void subscribe(String name, String clientId) throws RemoteException {
+            call(Protocol.SUBSCRIBE, out -> {
+                out.writeUTF(name);
+                out.writeUTF(clientId);
+            });
+        }
+
+        @Override
+        public void subscribe(String name, String clientId, SubscribeOptions options) throws RemoteException {
+            call(Protocol.SUBSCRIBE_WITH_OPTIONS, out -> {
+                out.writeUTF(name);
+                out.writeUTF(clientId);
+                options.writeTo(out);
+            });
+        }
+
+        @Override
+        public void unsubscribe(String name, String clientId) throws RemoteException {
+            call(Protocol.UNSUBSCRIBE, out -> {
+                out.writeUTF(name);
+                out.writeUTF(clientId);
+            });
+        }
+
+        @Override
+        public void subscribeAll(List<String> names, String clientId) throws RemoteException {
+            call(Protocol.SUBSCRIBE_ALL, out -> {
+                Protocol.writeTopics(out, names);
+                out.writeUTF(clientId);
+            });
+        }
+
+        @Override
+        public void unsubscribeAll(List<String> names, String clientId) throws RemoteException {
+            call(Protocol.UNSUBSCRIBE_ALL, out -> {
+                Protocol.writeTopics(out, names);
+                out.writeUTF(clientId);
+            });
+        }
+
+        @Override
+        public void deleteTopic(String nume) throws RemoteException {
+            deleteTopic(nume, false);
+        }
+
+        @Override
+        public void deleteTopic(String nume, boolean notifySubscribers) throws RemoteException {
+            call(Protocol.DELETE_TOPIC, out -> {
+                out.writeUTF(nume);
+                out.writeByte(notifySubscribers ? Protocol.DELETE_NOTIFYING : Protocol.DELETE_SILENTLY);
+            });
+        }
+
+        @Override
+        public void deleteTopic(String nume, Object data) throws RemoteException {
+            EncodedPayload payload = encode(data);
+            call(Protocol.DELETE_TOPIC, out -> {
+                out.writeUTF(nume);
+                out.writeByte(Protocol.DELETE_WITH_DATA);
+                payload.writeTo(out);
+            });
+        }
+
+        @Override
+        public void notifyTopic(String name) throws RemoteException {
+            call(Protocol.NOTIFY, out -> out.writeUTF(name));
+        }
+
+        @Override
+        public void dataNotifyTopic(Object data, String name) throws RemoteException {
+            EncodedPayload payload = encode(data);
+            call(Protocol.DATA_NOTIFY, out -> {
+                out.writeUTF(name);
+                payload.writeTo(out);
+            });
+        }
+
+        @Override
+        public long publishQueued(EncodedPayload data, String name) throws RemoteException {
+            Protocol.Frame response = call(Protocol.PUBLISH_QUEUED, out -> {
+                out.writeUTF(name);
+                out.writeBoolean(data != null);
+                if (data != null) {
+                    data.writeTo(out);
+                }
+            });
+            try {
+                return response.body.readLong();
+            } catch (IOException ex) {
+                throw new RemoteException("Invalid response from the server", ex);
+            }
+        }
+
+        @Override
+        public void publishBatch(List<Notification> notifications) throws RemoteException {
+            call(Protocol.PUBLISH_BATCH, out -> Protocol.writeNotifications(out, notifications));
+        }
+
+        @Override
+        public void publishConfirmed(EncodedPayload data, String name, String clientId, long publishId)
+                throws RemoteException {
+            call(Protocol.PUBLISH_CONFIRMED, out -> {
+                out.writeUTF(name);
+                out.writeUTF(clientId);
+                out.writeLong(publishId);
+                out.writeBoolean(data != null);
+                if (data != null) {
+                    data.writeTo(out);
+                }
+            });
+        }
+
+        @Override
+        public boolean exists(String topicName) throws RemoteException {
+            Protocol.Frame response = call(Protocol.EXISTS, out -> out.writeUTF(topicName));
+            try {
+                return response.body.readBoolean();
+            } catch (IOException ex) {
+                throw new RemoteException("Invalid response from the server", ex);
+            }
+        }
+
+        @Override
+        public int getSubscribersCount(String name) throws RemoteException {
+            Protocol.Frame response = call(Protocol.SUBSCRIBERS_COUNT, out -> out.writeUTF(name));
+            try {
+                return response.body.readInt();
+            } catch (IOException ex) {
+                throw new RemoteException("Invalid response from the server", ex);
+            }
+        }
+
+        @Override
+        public long renewLease(String clientId) throws RemoteException {
+            Protocol.Frame response = call(Protocol.RENEW_LEASE, out -> out.writeUTF(clientId));
+            try {
+                return response.body.readLong();
+            } catch (IOException ex) {
+                throw new RemoteException("Invalid response from the server", ex);
+            }
+        }
+
+        private EncodedPayload encode(Object data) throws RemoteException {
+            if (data instanceof EncodedPayload) {
+                return (EncodedPayload) data;
+            }
+            try {
+                return EncodedPayload.encode(data);
+            } catch (IOException ex) {
+                throw new RemoteException("Data could not be serialized", ex);
+            }
+        }
+    }
+}
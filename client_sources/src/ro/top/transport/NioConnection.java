@@ -0,0 +1,269 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One persistent connection of the NIO transport.
+ * Reads and writes happen on the reactor thread; any thread may send frames,
+ * they are queued and written as soon as the socket accepts them.
+ * <br>
+ * The same class exists, unchanged, on the server side
+ * @author Alexandru Topala
+ */
+final class NioConnection implements NioReactor.Handler {
+
+    /**
+     * Receives the frames and the end of a connection
+     */
+    interface Listener {
+        /**
+         * Called on the reactor thread for every complete frame, so it must not block
+         * @param connection
+         * @param frame
+         */
+        void onFrame(NioConnection connection, Protocol.Frame frame);
+
+        /**
+         * Called once, when the connection is closed by either side
+         * @param connection
+         */
+        void onClosed(NioConnection connection);
+    }
+
+    /**
+     * How many bytes may wait to be written before send() starts waiting for the peer
+     */
+    static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * How long, in milliseconds, send() waits for a peer that does not read
+     */
+    static final long SEND_TIMEOUT = 30000;
+
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final Listener listener;
+    private final Queue<ByteBuffer> writeQueue;
+    private final AtomicLong pendingBytes;
+    private final AtomicBoolean writeRequested;
+    private final AtomicBoolean closed;
+    private ByteBuffer readBuffer;
+    private SelectionKey key;
+    private volatile Object attachment;
+
+    NioConnection(SocketChannel channel, NioReactor reactor, Listener listener) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.listener = listener;
+        this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.pendingBytes = new AtomicLong();
+        this.writeRequested = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    }
+
+    /**
+     * Registers the connection with the reactor, after which frames start being read
+     * @throws IOException
+     */
+    void start() throws IOException {
+        channel.configureBlocking(false);
+        reactor.execute(() -> {
+            try {
+                key = channel.register(reactor.selector(), SelectionKey.OP_READ, this);
+            } catch (IOException ex) {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Queues the frame to be written. If the peer is not reading fast enough
+     * this waits until it catches up
+     * @param frame
+     * @throws IOException if the connection is closed or the peer did not catch up in time
+     */
+    void send(ByteBuffer frame) throws IOException {
+        if (pendingBytes.get() > MAX_PENDING_BYTES) {
+            awaitWritable();
+        }
+        if (closed.get()) {
+            throw new ClosedChannelException();
+        }
+        pendingBytes.addAndGet(frame.remaining());
+        writeQueue.add(frame);
+        if (writeRequested.compareAndSet(false, true)) {
+            reactor.execute(this::enableWrite);
+        }
+    }
+
+    /**
+     * @return true if the connection was closed by either side
+     */
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * @return whatever the transport attached to this connection
+     */
+    Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * @param attachment - transport specific state of this connection
+     */
+    void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * @return the address of the peer, for logging
+     */
+    String getRemoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException ex) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * @return the local address of this connection
+     */
+    String getLocalAddress() {
+        try {
+            return String.valueOf(channel.getLocalAddress());
+        } catch (IOException ex) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Closes the connection, discarding the frames not written yet
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(NioConnection.class.getName()).log(Level.FINE, null, ex);
+        }
+        writeQueue.clear();
+        synchronized (this) {
+            notifyAll();
+        }
+        listener.onClosed(this);
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(NioConnection.class.getName()).log(Level.FINE,
+                    "Connection with " + getRemoteAddress() + " failed", ex);
+            close();
+        }
+    }
+
+    @Override
+    public void onReactorClosed() {
+        close();
+    }
+
+    private synchronized void awaitWritable() throws IOException {
+        long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+        try {
+            while (pendingBytes.get() > MAX_PENDING_BYTES && !closed.get()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Peer " + getRemoteAddress() + " stopped reading");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the peer", ex);
+        }
+    }
+
+    private void enableWrite() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < Protocol.HEADER_SIZE - 4 || length > Protocol.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                if (readBuffer.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                    return;
+                }
+                break;
+            }
+            readBuffer.getInt();
+            byte type = readBuffer.get();
+            int correlationId = readBuffer.getInt();
+            byte[] body = new byte[length - (Protocol.HEADER_SIZE - 4)];
+            readBuffer.get(body);
+            listener.onFrame(this, new Protocol.Frame(type, correlationId, body));
+        }
+        readBuffer.compact();
+    }
+
+    private void write() throws IOException {
+        ByteBuffer frame;
+        while ((frame = writeQueue.peek()) != null) {
+            int written = channel.write(frame);
+            pendingBytes.addAndGet(-written);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            writeQueue.poll();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        if (writeQueue.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeRequested.set(false);
+            if (!writeQueue.isEmpty() && writeRequested.compareAndSet(false, true)) {
+                enableWrite();
+            }
+        }
+    }
+}
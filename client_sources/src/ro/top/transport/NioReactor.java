@@ -0,0 +1,109 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread multiplexing all the channels of the NIO transport over one selector.
+ * Anything touching the selector or the selection keys must run on this thread,
+ * so other threads hand such work over through execute().
+ * <br>
+ * The same class exists, unchanged, on the server side
+ * @author Alexandru Topala
+ */
+final class NioReactor implements Runnable {
+
+    /**
+     * Reacts to the readiness of a registered channel
+     */
+    interface Handler {
+        /**
+         * Called on the reactor thread when the channel is ready for the
+         * operations of interest
+         * @param key
+         */
+        void onReady(SelectionKey key);
+
+        /**
+         * Called on the reactor thread when the reactor stops
+         */
+        void onReactorClosed();
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Opens the selector and starts the reactor thread
+     * @param name - the name of the reactor thread
+     * @throws IOException
+     */
+    NioReactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.running = true;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs the task on the reactor thread
+     * @param task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return the selector, only to be used on the reactor thread
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Stops the reactor thread, closing the selector
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Handler) key.attachment()).onReady(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(NioReactor.class.getName()).log(Level.SEVERE, "NIO reactor stopped unexpectedly", ex);
+        } finally {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((Handler) key.attachment()).onReactorClosed();
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(NioReactor.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.NotificationProxy;
+
+/**
+ * The RMI transport: the server is looked up in its RMI registry, and the callback
+ * of this client is exported and handed to the server when registering, 
+ * so the client needs no registry of its own and the server no lookup
+ * @author Alexandru Topala
+ */
+public final class RmiClientTransport implements ClientTransport {
+    private static final String NOTIFICATION_SERVER_NAME = "PushNotificationServerTop";
+    
+    /**
+     * Exports the callback on any free port
+     */
+    public static final int ANONYMOUS_PORT = 0;
+    
+    private final int clientPort;
+    private final TimeoutSocketFactory callbackSocketFactory;
+    private NotificationProxy proxy;
+    private ClientNotificationProxy callback;
+
+    /**
+     * The callback of this client is exported on any free port
+     */
+    public RmiClientTransport() {
+        this(ANONYMOUS_PORT);
+    }
+
+    /**
+     * @param clientPort at which port should this client export its callback, 
+     * ANONYMOUS_PORT for any free port
+     */
+    public RmiClientTransport(int clientPort) {
+        this(clientPort, new TimeoutSocketFactory());
+    }
+
+    /**
+     * @param clientPort at which port should this client export its callback, 
+     * ANONYMOUS_PORT for any free port
+     * @param callbackSocketFactory - the timeouts of the server pushing to this client
+     */
+    public RmiClientTransport(int clientPort, TimeoutSocketFactory callbackSocketFactory) {
+        this.clientPort = clientPort;
+        this.callbackSocketFactory = callbackSocketFactory;
+    }
+
+    @Override
+    public String connect(String serverSocket, ClientNotificationProxy callback) throws IOException, NotBoundException {
+        String[] socket = serverSocket.split(":");
+        String serverHost = socket[0];
+        int serverPort = Integer.parseInt(socket[1]);
+        
+        proxy = (NotificationProxy) LocateRegistry.getRegistry(serverHost, serverPort, new TimeoutSocketFactory())
+                .lookup(NOTIFICATION_SERVER_NAME);
+        ClientNotificationProxy stub = (ClientNotificationProxy) UnicastRemoteObject.exportObject(callback, clientPort, 
+                callbackSocketFactory, null);
+        this.callback = callback;
+        String clientId = proxy.registerClient(stub);
+        Logger.getGlobal().log(Level.INFO, "Client {0} registered at {1}", new Object[]{clientId, serverSocket});
+        return clientId;
+    }
+
+    @Override
+    public NotificationProxy getProxy() {
+        return proxy;
+    }
+
+    @Override
+    public void close() {
+        if (callback == null) {
+            return;
+        }
+        try {
+            UnicastRemoteObject.unexportObject(callback, true);
+        } catch (NoSuchObjectException ex) {
+            Logger.getLogger(RmiClientTransport.class.getName()).log(Level.WARNING, null, ex);
+        }
+        callback = null;
+        proxy = null;
+    }
+}
@@ -0,0 +1,107 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the RMI connections with a connect timeout and a read timeout, so a call to 
+ * an unreachable or half-open peer fails within a bounded time instead of hanging 
+ * the calling thread until TCP gives up. <br>
+ * The client exports its callback with this factory, and the factory travels with the 
+ * callback stub to the server, so the pushes of the server time out as configured here. 
+ * A push times out when the client takes longer than the read timeout to receive it, 
+ * including the time its subscribers take to process it. <br>
+ * The same class exists, unchanged, on the server side
+ * @author Alexandru Topala
+ */
+public final class TimeoutSocketFactory implements RMIClientSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 15000;
+    
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    /**
+     * RMI sets its own read timeouts on the sockets, like the one minute of the connection
+     * handshake, so the read timeout is enforced as an upper bound of any timeout set
+     */
+    private static final class BoundedSocket extends Socket {
+        private final int maxTimeoutMillis;
+
+        BoundedSocket(int maxTimeoutMillis) {
+            this.maxTimeoutMillis = maxTimeoutMillis;
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            super.setSoTimeout(timeout == 0 || timeout > maxTimeoutMillis ? maxTimeoutMillis : timeout);
+        }
+    }
+
+    /**
+     * With the default timeouts: 5 seconds for connecting, 15 seconds for reading
+     */
+    public TimeoutSocketFactory() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param connectTimeout - how long opening a connection may take
+     * @param readTimeout - how long waiting for the answer to a call may take, 0 for no limit
+     * @param unit
+     */
+    public TimeoutSocketFactory(long connectTimeout, long readTimeout, TimeUnit unit) {
+        if (connectTimeout < 0 || readTimeout < 0) {
+            throw new IllegalArgumentException("Timeouts cannot be negative (connect=" + connectTimeout 
+                    + ", read=" + readTimeout + ")");
+        }
+        this.connectTimeoutMillis = (int) Math.min(unit.toMillis(connectTimeout), Integer.MAX_VALUE);
+        this.readTimeoutMillis = (int) Math.min(unit.toMillis(readTimeout), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = readTimeoutMillis > 0 ? new BoundedSocket(readTimeoutMillis) : new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeoutMillis);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            return socket;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * RMI reuses the connections of the stubs with equal factories
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof TimeoutSocketFactory)) {
+            return false;
+        }
+        TimeoutSocketFactory that = (TimeoutSocketFactory) other;
+        return connectTimeoutMillis == that.connectTimeoutMillis && readTimeoutMillis == that.readTimeoutMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return connectTimeoutMillis * 31 + readTimeoutMillis;
+    }
+}
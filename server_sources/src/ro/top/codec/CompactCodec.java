@@ -0,0 +1,443 @@
+package ro.top.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A binary codec for the common notification data: null, the boxed primitives, strings,
+ * byte arrays, the usual lists, sets and maps of those, and the registered classes. <br>
+ * Every value is a type byte followed by its content; the integers are written as varints
+ * and the registered classes as their tag followed by their fields, in a fixed order, so
+ * no class descriptor is ever written. The data is decoded into the same classes it was
+ * encoded from; anything else, like a TreeMap with a comparator or a cyclic graph,
+ * is left to Java serialization
+ * @author Alexandru Topala
+ */
+public final class CompactCodec implements PayloadCodec {
+    public static final byte ID = 1;
+
+    /**
+     * Deeper data is most likely cyclic
+     */
+    private static final int MAX_DEPTH = 64;
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int INT = 3;
+    private static final int LONG = 4;
+    private static final int DOUBLE = 5;
+    private static final int FLOAT = 6;
+    private static final int SHORT = 7;
+    private static final int BYTE = 8;
+    private static final int CHAR = 9;
+    private static final int STRING = 10;
+    private static final int BYTES = 11;
+    private static final int ARRAY_LIST = 12;
+    private static final int LINKED_LIST = 13;
+    private static final int HASH_MAP = 14;
+    private static final int LINKED_HASH_MAP = 15;
+    private static final int TREE_MAP = 16;
+    private static final int HASH_SET = 17;
+    private static final int LINKED_HASH_SET = 18;
+    private static final int TREE_SET = 19;
+    private static final int OBJECT = 20;
+
+    /**
+     * Signals encode() that the data has something this codec does not handle
+     */
+    private static final class UnsupportedDataException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final UnsupportedDataException UNSUPPORTED = new UnsupportedDataException();
+
+    /**
+     * A registered class, with the fields written for it
+     */
+    private static final class Type {
+        final int tag;
+        final Class<?> type;
+        final Constructor<?> constructor;
+        final Field[] fields;
+
+        Type(int tag, Class<?> type, Constructor<?> constructor, Field[] fields) {
+            this.tag = tag;
+            this.type = type;
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+    }
+
+    private final Map<Class<?>, Type> typesByClass = new ConcurrentHashMap<>();
+    private final Map<Integer, Type> typesByTag = new ConcurrentHashMap<>();
+
+    CompactCodec() {
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    /**
+     * See PayloadCodecs.registerType
+     */
+    synchronized void registerType(int tag, Class<?> type) {
+        if (tag < 0) {
+            throw new IllegalArgumentException("Type tag cannot be negative (value=" + tag + ")");
+        }
+        Type registered = typesByTag.get(tag);
+        if (registered != null) {
+            if (registered.type == type) {
+                return;
+            }
+            throw new IllegalArgumentException("Type tag " + tag + " is already taken by " + registered.type.getName());
+        }
+        if (typesByClass.containsKey(type)) {
+            throw new IllegalArgumentException(type.getName() + " is already registered with tag " + typesByClass.get(type).tag);
+        }
+        Constructor<?> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException | RuntimeException ex) {
+            throw new IllegalArgumentException(type.getName() + " has no usable constructor without arguments", ex);
+        }
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            List<Field> declared = new ArrayList<>();
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                    field.setAccessible(true);
+                    declared.add(field);
+                }
+            }
+            declared.sort(Comparator.comparing(Field::getName));
+            // the fields of the superclasses come first
+            fields.addAll(0, declared);
+        }
+        Type registering = new Type(tag, type, constructor, fields.toArray(new Field[0]));
+        typesByClass.put(type, registering);
+        typesByTag.put(tag, registering);
+    }
+
+    @Override
+    public boolean encode(Object data, OutputStream out) throws IOException {
+        try {
+            write(data, out, 0);
+            return true;
+        } catch (UnsupportedDataException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public Object decode(InputStream in) throws IOException, ClassNotFoundException {
+        return read(in, 0);
+    }
+
+    private void write(Object value, OutputStream out, int depth) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        if (depth > MAX_DEPTH) {
+            throw UNSUPPORTED;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.write(STRING);
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length, out);
+            out.write(bytes);
+        } else if (type == Integer.class) {
+            out.write(INT);
+            writeVarLong(zigZag((Integer) value), out);
+        } else if (type == Long.class) {
+            out.write(LONG);
+            writeVarLong(zigZag((Long) value), out);
+        } else if (type == Double.class) {
+            out.write(DOUBLE);
+            writeFixed(Double.doubleToRawLongBits((Double) value), 8, out);
+        } else if (type == Boolean.class) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (type == HashMap.class) {
+            writeMap(HASH_MAP, (Map<?, ?>) value, out, depth);
+        } else if (type == LinkedHashMap.class) {
+            writeMap(LINKED_HASH_MAP, (Map<?, ?>) value, out, depth);
+        } else if (type == ArrayList.class) {
+            writeCollection(ARRAY_LIST, (Collection<?>) value, out, depth);
+        } else if (type == byte[].class) {
+            out.write(BYTES);
+            byte[] bytes = (byte[]) value;
+            writeVarInt(bytes.length, out);
+            out.write(bytes);
+        } else if (type == Float.class) {
+            out.write(FLOAT);
+            writeFixed(Float.floatToRawIntBits((Float) value), 4, out);
+        } else if (type == Short.class) {
+            out.write(SHORT);
+            writeVarLong(zigZag((Short) value), out);
+        } else if (type == Byte.class) {
+            out.write(BYTE);
+            out.write((Byte) value);
+        } else if (type == Character.class) {
+            out.write(CHAR);
+            writeVarInt((Character) value, out);
+        } else if (type == LinkedList.class) {
+            writeCollection(LINKED_LIST, (Collection<?>) value, out, depth);
+        } else if (type == HashSet.class) {
+            writeCollection(HASH_SET, (Collection<?>) value, out, depth);
+        } else if (type == LinkedHashSet.class) {
+            writeCollection(LINKED_HASH_SET, (Collection<?>) value, out, depth);
+        } else if (type == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null) {
+            writeMap(TREE_MAP, (Map<?, ?>) value, out, depth);
+        } else if (type == TreeSet.class && ((TreeSet<?>) value).comparator() == null) {
+            writeCollection(TREE_SET, (Collection<?>) value, out, depth);
+        } else {
+            writeObject(value, out, depth);
+        }
+    }
+
+    private void writeMap(int kind, Map<?, ?> map, OutputStream out, int depth) throws IOException {
+        out.write(kind);
+        writeVarInt(map.size(), out);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(entry.getKey(), out, depth + 1);
+            write(entry.getValue(), out, depth + 1);
+        }
+    }
+
+    private void writeCollection(int kind, Collection<?> collection, OutputStream out, int depth) throws IOException {
+        out.write(kind);
+        writeVarInt(collection.size(), out);
+        for (Object element : collection) {
+            write(element, out, depth + 1);
+        }
+    }
+
+    private void writeObject(Object value, OutputStream out, int depth) throws IOException {
+        Type type = typesByClass.get(value.getClass());
+        if (type == null) {
+            throw UNSUPPORTED;
+        }
+        out.write(OBJECT);
+        writeVarInt(type.tag, out);
+        try {
+            for (Field field : type.fields) {
+                write(field.get(value), out, depth + 1);
+            }
+        } catch (IllegalAccessException ex) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private Object read(InputStream in, int depth) throws IOException, ClassNotFoundException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Payload nested deeper than " + MAX_DEPTH);
+        }
+        int kind = readByte(in);
+        switch (kind) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case DOUBLE:
+                return Double.longBitsToDouble(readFixed(8, in));
+            case FLOAT:
+                return Float.intBitsToFloat((int) readFixed(4, in));
+            case SHORT:
+                return (short) unZigZag(readVarLong(in));
+            case BYTE:
+                return (byte) readByte(in);
+            case CHAR:
+                return (char) readVarInt(in);
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes(in);
+            case ARRAY_LIST:
+                int listSize = readLength(in);
+                return readElements(new ArrayList<>(Math.min(listSize, 1024)), listSize, in, depth);
+            case LINKED_LIST:
+                return readElements(new LinkedList<>(), readLength(in), in, depth);
+            case HASH_SET:
+                int setSize = readLength(in);
+                return readElements(new HashSet<>(capacityFor(setSize)), setSize, in, depth);
+            case LINKED_HASH_SET:
+                int linkedSetSize = readLength(in);
+                return readElements(new LinkedHashSet<>(capacityFor(linkedSetSize)), linkedSetSize, in, depth);
+            case TREE_SET:
+                return readElements(new TreeSet<>(), readLength(in), in, depth);
+            case HASH_MAP:
+                int mapSize = readLength(in);
+                return readEntries(new HashMap<>(capacityFor(mapSize)), mapSize, in, depth);
+            case LINKED_HASH_MAP:
+                int linkedMapSize = readLength(in);
+                return readEntries(new LinkedHashMap<>(capacityFor(linkedMapSize)), linkedMapSize, in, depth);
+            case TREE_MAP:
+                return readEntries(new TreeMap<>(), readLength(in), in, depth);
+            case OBJECT:
+                return readObject(in, depth);
+            default:
+                throw new IOException("Unknown value type " + kind);
+        }
+    }
+
+    private Collection<Object> readElements(Collection<Object> elements, int size, InputStream in, int depth)
+            throws IOException, ClassNotFoundException {
+        for (int i = 0; i < size; i++) {
+            elements.add(read(in, depth + 1));
+        }
+        return elements;
+    }
+
+    private Map<Object, Object> readEntries(Map<Object, Object> entries, int size, InputStream in, int depth)
+            throws IOException, ClassNotFoundException {
+        for (int i = 0; i < size; i++) {
+            entries.put(read(in, depth + 1), read(in, depth + 1));
+        }
+        return entries;
+    }
+
+    private Object readObject(InputStream in, int depth) throws IOException, ClassNotFoundException {
+        int tag = readVarInt(in);
+        Type type = typesByTag.get(tag);
+        if (type == null) {
+            throw new ClassNotFoundException("No class is registered with tag " + tag);
+        }
+        try {
+            Object value = type.constructor.newInstance();
+            for (Field field : type.fields) {
+                field.set(value, read(in, depth + 1));
+            }
+            return value;
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | IllegalArgumentException ex) {
+            throw new IOException(type.type.getName() + " could not be decoded", ex);
+        }
+    }
+
+    private static int capacityFor(int size) {
+        return (int) Math.min(size / 0.75f + 1, 1 << 16);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(int value, OutputStream out) throws IOException {
+        writeVarLong(value & 0xffffffffL, out);
+    }
+
+    private static void writeVarLong(long value, OutputStream out) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeFixed(long value, int size, OutputStream out) throws IOException {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Truncated payload");
+        }
+        return b;
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid size " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Reads a byte count or an element count, checked against the bytes left,
+     * so a malformed payload cannot make the decoder allocate more than it holds
+     */
+    private static int readLength(InputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length + ", " + in.available() + " bytes left");
+        }
+        return length;
+    }
+
+    private static long readFixed(int size, InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        int length = readLength(in);
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Truncated payload");
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
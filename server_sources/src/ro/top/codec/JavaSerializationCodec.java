@@ -0,0 +1,34 @@
+package ro.top.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes the data with the Java serialization, which handles any Serializable
+ * object graph. It is the fallback for the data the other codecs cannot encode
+ * @author Alexandru Topala
+ */
+public final class JavaSerializationCodec implements PayloadCodec {
+    public static final byte ID = 0;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean encode(Object data, OutputStream out) throws IOException {
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(data);
+        objects.flush();
+        return true;
+    }
+
+    @Override
+    public Object decode(InputStream in) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(in).readObject();
+    }
+}
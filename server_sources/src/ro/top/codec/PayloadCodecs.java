@@ -0,0 +1,207 @@
+package ro.top.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The codecs of the notification data. <br>
+ * The data is encoded with the default codec, CompactCodec unless the system property
+ * "ro.top.codec" is "java", and falls back to Java serialization for what the default
+ * codec cannot encode. Decoding picks the codec by the id in the first byte of the payload;
+ * the payloads written before the codec ids, which start with the Java serialization
+ * header, are still decoded
+ * @author Alexandru Topala
+ */
+public final class PayloadCodecs {
+    /**
+     * System property selecting the default codec: "compact" or "java"
+     */
+    public static final String CODEC_PROPERTY = "ro.top.codec";
+
+    /**
+     * The first byte of a Java serialization stream
+     */
+    private static final byte SERIALIZATION_HEADER = (byte) 0xAC;
+
+    private static final JavaSerializationCodec JAVA = new JavaSerializationCodec();
+    private static final CompactCodec COMPACT = new CompactCodec();
+    private static final AtomicReferenceArray<PayloadCodec> CODECS = new AtomicReferenceArray<>(128);
+    private static volatile PayloadCodec defaultCodec;
+
+    static {
+        CODECS.set(JAVA.getId(), JAVA);
+        CODECS.set(COMPACT.getId(), COMPACT);
+        defaultCodec = "java".equalsIgnoreCase(System.getProperty(CODEC_PROPERTY)) ? JAVA : COMPACT;
+    }
+
+    private PayloadCodecs() {
+    }
+
+    /**
+     * Makes the codec known, so the payloads it encodes can be decoded
+     * @param codec
+     * @throws IllegalArgumentException if the id is negative or taken by another codec
+     */
+    public static void register(PayloadCodec codec) {
+        byte id = codec.getId();
+        if (id < 0) {
+            throw new IllegalArgumentException("Codec id cannot be negative (value=" + id + ")");
+        }
+        if (!CODECS.compareAndSet(id, null, codec) && CODECS.get(id) != codec) {
+            throw new IllegalArgumentException("Codec id " + id + " is already taken by " + CODECS.get(id));
+        }
+    }
+
+    /**
+     * Registers the codec, if needed, and encodes all the data with it from now on
+     * @param codec
+     */
+    public static void setDefault(PayloadCodec codec) {
+        register(codec);
+        defaultCodec = codec;
+    }
+
+    /**
+     * @return the codec encoding the notification data
+     */
+    public static PayloadCodec getDefault() {
+        return defaultCodec;
+    }
+
+    /**
+     * Lets the compact codec encode the objects of the given class field by field.
+     * The class must have a constructor without arguments and the same tag has to be
+     * registered on the clients and on the server, for the same class with the same fields
+     * @param tag - identifies the class in the encoded data
+     * @param type
+     * @throws IllegalArgumentException if the tag is taken or the class cannot be instantiated
+     */
+    public static void registerType(int tag, Class<?> type) {
+        COMPACT.registerType(tag, type);
+    }
+
+    /**
+     * Encodes the data with the default codec, or with Java serialization if the default
+     * codec cannot encode it
+     * @param data
+     * @return the codec id followed by the encoded data
+     * @throws IOException if the data could not be encoded
+     */
+    public static byte[] encode(Object data) throws IOException {
+        Output out = new Output();
+        PayloadCodec codec = defaultCodec;
+        out.write(codec.getId());
+        if (!codec.encode(data, out) && codec != JAVA) {
+            out.truncate(0);
+            out.write(JAVA.getId());
+            JAVA.encode(data, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes - written by encode
+     * @return a new copy of the notification data
+     * @throws IOException
+     * @throws ClassNotFoundException if the data class, or the codec, is unknown to this side
+     */
+    public static Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (bytes.length == 0) {
+            throw new EOFException("Empty payload");
+        }
+        if (bytes[0] == SERIALIZATION_HEADER) {
+            return JAVA.decode(new Input(bytes, 0));
+        }
+        return codecOf(bytes[0]).decode(new Input(bytes, 1));
+    }
+
+    /**
+     * @param bytes - written by encode
+     * @return the id of the codec that encoded them
+     */
+    public static byte codecIdOf(byte[] bytes) {
+        return bytes.length == 0 || bytes[0] == SERIALIZATION_HEADER ? JAVA.getId() : bytes[0];
+    }
+
+    private static PayloadCodec codecOf(byte id) throws ClassNotFoundException {
+        PayloadCodec codec = id >= 0 ? CODECS.get(id) : null;
+        if (codec == null) {
+            throw new ClassNotFoundException("No codec is registered with id " + id);
+        }
+        return codec;
+    }
+
+    /**
+     * A growing byte array, without the locking of ByteArrayOutputStream
+     */
+    private static final class Output extends OutputStream {
+        private byte[] bytes = new byte[128];
+        private int size;
+
+        @Override
+        public void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (size + len > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + len));
+            }
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads a byte array, without the locking of ByteArrayInputStream
+     */
+    private static final class Input extends InputStream {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int count = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return bytes.length - position;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package ro.top.dispatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tasks that push notifications to the clients on a bounded
+ * pool of workers fed by a bounded work queue.
+ * When both are full, the configured RejectionPolicy decides what happens
+ * with new tasks.
+ * <br>
+ * With virtual threads turned on (and a JDK 21+ runtime), every task gets its own
+ * virtual thread instead, there is no work queue and the number of workers 
+ * only bounds how many tasks may run at the same time. On older runtimes the 
+ * dispatcher falls back to the platform thread pool.
+ * <br>
+ * Use Dispatcher.builder() to configure one and pass it to
+ * NotificationController.builder()
+ * @author Alexandru Topala
+ */
+public final class Dispatcher {
+    public static final int DEFAULT_WORKERS = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final RejectionPolicy DEFAULT_REJECTION_POLICY = RejectionPolicy.BLOCK;
+    public static final int DEFAULT_VIRTUAL_WORKERS = 32768;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final ThreadLocal<Dispatcher> CURRENT = new ThreadLocal<>();
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    /**
+     * the platform thread pool, null when running on virtual threads
+     */
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * the virtual thread per task executor and the permits bounding
+     * its running tasks, null when running on platform threads
+     */
+    private final ExecutorService virtualExecutor;
+    private final Semaphore virtualPermits;
+    private final int virtualWorkers;
+    private final AtomicLong virtualCompleted;
+    
+    private final RejectionPolicy rejectionPolicy;
+    private final int queueCapacity;
+    private final AtomicLong rejected;
+
+    private Dispatcher(Builder builder) {
+        this.rejectionPolicy = builder.rejectionPolicy;
+        this.rejected = new AtomicLong();
+        if (builder.virtualThreads && VirtualThreads.isAvailable()) {
+            this.virtualWorkers = builder.workers != null ? builder.workers : DEFAULT_VIRTUAL_WORKERS;
+            this.virtualExecutor = VirtualThreads.newThreadPerTaskExecutor();
+            this.virtualPermits = new Semaphore(virtualWorkers);
+            this.virtualCompleted = new AtomicLong();
+            this.queueCapacity = 0;
+            this.executor = null;
+            return;
+        }
+        if (builder.virtualThreads) {
+            Logger.getLogger(Dispatcher.class.getName()).log(Level.WARNING, 
+                    "Virtual threads are not supported by this JVM, the dispatcher falls back to platform threads");
+        }
+        int workers = builder.workers != null ? builder.workers : DEFAULT_WORKERS;
+        this.virtualWorkers = 0;
+        this.virtualExecutor = null;
+        this.virtualPermits = null;
+        this.virtualCompleted = null;
+        this.queueCapacity = builder.queueCapacity;
+        this.executor = new ThreadPoolExecutor(
+                workers,
+                workers,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(builder.queueCapacity),
+                newThreadFactory(),
+                newRejectionHandler()
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return a builder with the default configurations
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Submits the task according to the rejection policy
+     * @param task
+     * @return false if the task was dropped
+     * @throws RejectedExecutionException if the task was rejected by the ABORT policy
+     * or the dispatcher is shut down
+     */
+    public boolean execute(Runnable task) {
+        if (virtualExecutor != null) {
+            return executeVirtual(task);
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (DroppedTaskException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a snapshot of the current state of this dispatcher
+     */
+    public DispatcherStats getStats() {
+        if (virtualExecutor != null) {
+            int running = virtualWorkers - virtualPermits.availablePermits();
+            return new DispatcherStats(0, 0, running, running, virtualWorkers, 
+                    virtualCompleted.get(), rejected.get());
+        }
+        return new DispatcherStats(
+                executor.getQueue().size(),
+                queueCapacity,
+                executor.getActiveCount(),
+                executor.getPoolSize(),
+                executor.getMaximumPoolSize(),
+                executor.getCompletedTaskCount(),
+                rejected.get()
+        );
+    }
+
+    /**
+     * @return the policy applied when the workers and the queue are full
+     */
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    /**
+     * Lets the already submitted tasks finish, but does not accept new ones
+     */
+    public void shutdown() {
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        } else {
+            executor.shutdown();
+        }
+    }
+
+    private boolean executeVirtual(Runnable task) {
+        if (virtualExecutor.isShutdown()) {
+            throw new RejectedExecutionException("Dispatcher is shut down");
+        }
+        if (!virtualPermits.tryAcquire()) {
+            rejected.incrementAndGet();
+            switch (rejectionPolicy) {
+                case BLOCK:
+                    if (CURRENT.get() == this) {
+                        // a worker waiting for the other workers could wait forever
+                        task.run();
+                        return true;
+                    }
+                    try {
+                        virtualPermits.acquire();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the dispatcher", ex);
+                    }
+                    break;
+                case CALLER_RUNS:
+                    task.run();
+                    return true;
+                case DROP:
+                    return false;
+                default:
+                    throw new RejectedExecutionException("Dispatcher is saturated");
+            }
+        }
+        try {
+            virtualExecutor.execute(() -> {
+                CURRENT.set(this);
+                try {
+                    task.run();
+                } finally {
+                    virtualCompleted.incrementAndGet();
+                    virtualPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            virtualPermits.release();
+            throw ex;
+        }
+        return true;
+    }
+
+    private ThreadFactory newThreadFactory() {
+        int pool = POOL_COUNTER.incrementAndGet();
+        AtomicInteger threadCounter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(() -> {
+                CURRENT.set(this);
+                r.run();
+            }, "notification-dispatcher-" + pool + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private RejectedExecutionHandler newRejectionHandler() {
+        return (task, pool) -> {
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("Dispatcher is shut down");
+            }
+            rejected.incrementAndGet();
+            switch (rejectionPolicy) {
+                case BLOCK:
+                    if (CURRENT.get() == this) {
+                        // a worker waiting for the other workers could wait forever
+                        task.run();
+                        return;
+                    }
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the dispatcher", ex);
+                    }
+                    return;
+                case CALLER_RUNS:
+                    task.run();
+                    return;
+                case DROP:
+                    throw new DroppedTaskException();
+                default:
+                    throw new RejectedExecutionException("Dispatcher is saturated");
+            }
+        };
+    }
+
+    /**
+     * Signals execute() that the DROP policy discarded the task
+     */
+    private static final class DroppedTaskException extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        DroppedTaskException() {
+            super(null, null);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Configures a Dispatcher
+     */
+    public static final class Builder {
+        private Integer workers;
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private RejectionPolicy rejectionPolicy = DEFAULT_REJECTION_POLICY;
+        private boolean virtualThreads = VirtualThreads.isRequested();
+
+        private Builder() {
+        }
+
+        /**
+         * @param workers - the maximum number of threads pushing notifications at the same time. <br>
+         * Defaults to DEFAULT_WORKERS platform threads or DEFAULT_VIRTUAL_WORKERS virtual threads
+         * @return this builder
+         */
+        public Builder workers(int workers) {
+            if (workers < 1) {
+                throw new IllegalArgumentException("Dispatcher needs at least one worker (value=" + workers + ")");
+            }
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * @param queueCapacity - the maximum number of tasks waiting for a worker. <br>
+         * Not used when running on virtual threads
+         * @return this builder
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("Dispatcher queue capacity must be positive (value=" + queueCapacity + ")");
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * @param rejectionPolicy - what to do with new tasks when the workers and the queue are full
+         * @return this builder
+         */
+        public Builder rejectionPolicy(RejectionPolicy rejectionPolicy) {
+            if (rejectionPolicy == null) {
+                throw new IllegalArgumentException("Rejection policy cannot be null");
+            }
+            this.rejectionPolicy = rejectionPolicy;
+            return this;
+        }
+
+        /**
+         * Runs every task on its own virtual thread, if the JVM supports them (JDK 21+). 
+         * Otherwise, the platform thread pool is used. <br>
+         * Off by default, unless the system property "ro.top.virtualThreads" is set to true
+         * @param virtualThreads
+         * @return this builder
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * @return a new, running dispatcher
+         */
+        public Dispatcher build() {
+            return new Dispatcher(this);
+        }
+    }
+}
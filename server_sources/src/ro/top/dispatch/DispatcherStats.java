@@ -0,0 +1,84 @@
+package ro.top.dispatch;
+
+/**
+ * A snapshot of the state of a Dispatcher
+ * @author Alexandru Topala
+ */
+public final class DispatcherStats {
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final int activeWorkers;
+    private final int poolSize;
+    private final int maxWorkers;
+    private final long completedTasks;
+    private final long rejectedTasks;
+
+    DispatcherStats(int queueDepth, int queueCapacity, int activeWorkers, int poolSize, 
+            int maxWorkers, long completedTasks, long rejectedTasks) {
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.activeWorkers = activeWorkers;
+        this.poolSize = poolSize;
+        this.maxWorkers = maxWorkers;
+        this.completedTasks = completedTasks;
+        this.rejectedTasks = rejectedTasks;
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the maximum number of tasks that can wait for a worker
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of workers currently running a task
+     */
+    public int getActiveWorkers() {
+        return activeWorkers;
+    }
+
+    /**
+     * @return the number of workers currently alive
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return the maximum number of workers
+     */
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * @return the number of tasks run so far
+     */
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * @return the number of tasks the rejection policy had to deal with so far
+     */
+    public long getRejectedTasks() {
+        return rejectedTasks;
+    }
+
+    @Override
+    public String toString() {
+        return "DispatcherStats{queueDepth=" + queueDepth + "/" + queueCapacity 
+                + ", activeWorkers=" + activeWorkers + "/" + maxWorkers 
+                + ", poolSize=" + poolSize 
+                + ", completedTasks=" + completedTasks 
+                + ", rejectedTasks=" + rejectedTasks + '}';
+    }
+}
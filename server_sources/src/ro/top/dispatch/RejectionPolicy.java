@@ -0,0 +1,31 @@
+package ro.top.dispatch;
+
+/**
+ * What a Dispatcher does with a task when all its workers are busy 
+ * and its work queue is full
+ * @author Alexandru Topala
+ */
+public enum RejectionPolicy {
+    /**
+     * The submitting thread waits until there is room in the queue. 
+     * This pushes back on the publishers. 
+     * Tasks submitted from the dispatcher own workers run on the submitting worker instead, 
+     * so the workers never wait for each other
+     */
+    BLOCK,
+    
+    /**
+     * The task runs on the submitting thread
+     */
+    CALLER_RUNS,
+    
+    /**
+     * The task is silently discarded
+     */
+    DROP,
+    
+    /**
+     * The task is discarded and a RejectedExecutionException is thrown to the submitter
+     */
+    ABORT
+}
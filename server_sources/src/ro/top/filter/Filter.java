@@ -0,0 +1,100 @@
+package ro.top.filter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled content filter, deciding whether a notification data is wanted by a subscriber. <br>
+ * The expression compares fields of the data with constants: <br>
+ * <code>price &gt;= 10.5 &amp;&amp; (currency == 'EUR' || currency == 'USD') &amp;&amp; !halted</code> <br>
+ * - fields are Map keys, getters (getX, isX, x()) or public fields, nested with dots: order.side <br>
+ * - constants are numbers, 'strings' or "strings", true, false and null <br>
+ * - comparisons are ==, !=, &lt;, &lt;=, &gt; and &gt;=; a field alone must be a true boolean <br>
+ * - comparisons are combined with &amp;&amp;, ||, ! and parentheses <br>
+ * A comparison involving a missing field or values of different kinds is false. <br>
+ * Compiled filters are cached by expression, so identical filters are compiled once
+ * @author Alexandru Topala
+ */
+public final class Filter {
+    /**
+     * How many distinct expressions are kept compiled; the others are compiled on every use
+     */
+    private static final int MAX_CACHED = 4096;
+    private static final Map<String, Filter> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * A compiled expression node
+     */
+    interface Node {
+        /**
+         * @param data
+         * @return the value of the node, FieldAccess.MISSING for a missing field
+         */
+        Object evaluate(Object data);
+    }
+
+    private final String expression;
+    private final Node root;
+
+    private Filter(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * @param expression
+     * @return the compiled filter
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static Filter compile(String expression) {
+        if (expression == null) {
+            throw new IllegalArgumentException("The filter expression is null");
+        }
+        Filter filter = CACHE.get(expression);
+        if (filter == null) {
+            filter = new Filter(expression, new FilterParser(expression).parse());
+            if (CACHE.size() < MAX_CACHED) {
+                Filter existing = CACHE.putIfAbsent(expression, filter);
+                if (existing != null) {
+                    filter = existing;
+                }
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @param data - the notification data
+     * @return true if the data matches the expression
+     */
+    public boolean test(Object data) {
+        try {
+            return Boolean.TRUE.equals(root.evaluate(data));
+        } catch (RuntimeException ex) {
+            // a getter failed, the data cannot be told to match
+            return false;
+        }
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Filters with the same expression are equal, whether or not they came from the cache
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Filter && expression.equals(((Filter) other).expression);
+    }
+
+    @Override
+    public int hashCode() {
+        return expression.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,168 @@
+package ro.top.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import ro.top.proxy.EncodedPayload;
+
+/**
+ * The last notifications of a topic, kept for a short while so a client
+ * that lost its connection can get only the ones it missed. <br>
+ * The encoded data lives in a fixed direct buffer, outside the heap, written in
+ * a circle: a notification that does not fit at the end starts again from
+ * the beginning, dropping the oldest ones in its way. The offsets and the
+ * timestamps are kept on the heap, in arrays of maxMessages slots. <br>
+ * Nothing here touches the disk, so the offsets start from the clock, in order to
+ * keep growing across server restarts. All the methods are synchronized
+ * @author Alexandru Topala
+ */
+public final class HistoryRing implements TopicRecords {
+    private static final int NO_DATA = -1;
+
+    private final String topicName;
+    private final ByteBuffer buffer;
+    private final int maxMessages;
+    private final long maxAgeMillis;
+
+    /**
+     * Where the notification with a given offset starts in the buffer, and when
+     * it was published, at the slot offset % maxMessages
+     */
+    private final int[] positions;
+    private final long[] timestamps;
+
+    /**
+     * The kept notifications have the offsets from firstOffset to nextOffset, excluded
+     */
+    private long firstOffset;
+    private long nextOffset;
+
+    /**
+     * Where the next notification is written
+     */
+    private int head;
+
+    /**
+     * @param topicName
+     * @param maxMessages - how many notifications are kept
+     * @param maxAgeMillis - how long the notifications are kept
+     * @param bytes - the size of the buffer holding them
+     */
+    public HistoryRing(String topicName, int maxMessages, long maxAgeMillis, int bytes) {
+        this.topicName = topicName;
+        this.buffer = ByteBuffer.allocateDirect(bytes);
+        this.maxMessages = maxMessages;
+        this.maxAgeMillis = maxAgeMillis;
+        this.positions = new int[maxMessages];
+        this.timestamps = new long[maxMessages];
+        this.firstOffset = System.currentTimeMillis() * 1000;
+        this.nextOffset = firstOffset;
+    }
+
+    @Override
+    public String getTopicName() {
+        return topicName;
+    }
+
+    @Override
+    public synchronized long append(EncodedPayload data) {
+        long now = System.currentTimeMillis();
+        int size = 4 + (data != null ? data.size() : 0);
+        if (size > buffer.capacity()) {
+            // too large to be kept, the history restarts after it
+            firstOffset = ++nextOffset;
+            return nextOffset - 1;
+        }
+        expire(now);
+        while (count() >= maxMessages) {
+            firstOffset++;
+        }
+        int position = head;
+        if (position + size > buffer.capacity()) {
+            // the end of the buffer is left unused; the notifications still there are the oldest
+            while (count() > 0 && positionOf(firstOffset) >= head) {
+                firstOffset++;
+            }
+            position = 0;
+        }
+        while (count() > 0 && positionOf(firstOffset) >= position && positionOf(firstOffset) < position + size) {
+            firstOffset++;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+        if (data != null) {
+            data.writeTo(record);
+        } else {
+            record.putInt(NO_DATA);
+        }
+        int slot = slotOf(nextOffset);
+        positions[slot] = position;
+        timestamps[slot] = now;
+        head = position + size;
+        return nextOffset++;
+    }
+
+    @Override
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    @Override
+    public synchronized long getCommittedOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return the oldest offset still kept
+     */
+    public synchronized long getFirstOffset() {
+        expire(System.currentTimeMillis());
+        return firstOffset;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return false;
+    }
+
+    @Override
+    public synchronized List<LogRecord> read(long from, int max) throws IOException {
+        expire(System.currentTimeMillis());
+        long start = Math.max(from, firstOffset);
+        if (start >= nextOffset) {
+            return Collections.emptyList();
+        }
+        long end = Math.min(nextOffset, start + max);
+        List<LogRecord> records = new ArrayList<>((int) (end - start));
+        for (long offset = start; offset < end; offset++) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(positionOf(offset));
+            EncodedPayload data = null;
+            if (record.getInt(record.position()) != NO_DATA) {
+                data = EncodedPayload.readFrom(record);
+            }
+            records.add(new LogRecord(offset, timestamps[slotOf(offset)], data));
+        }
+        return records;
+    }
+
+    private void expire(long now) {
+        while (count() > 0 && timestamps[slotOf(firstOffset)] < now - maxAgeMillis) {
+            firstOffset++;
+        }
+    }
+
+    private long count() {
+        return nextOffset - firstOffset;
+    }
+
+    private int slotOf(long offset) {
+        return (int) (offset % maxMessages);
+    }
+
+    private int positionOf(long offset) {
+        return positions[slotOf(offset)];
+    }
+}
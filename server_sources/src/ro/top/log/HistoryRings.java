@@ -0,0 +1,39 @@
+package ro.top.log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The history rings of the topics of a server, created when a topic is first published. <br>
+ * A ring outlives the deletion of its topic, so the offsets of a topic never go back
+ * @author Alexandru Topala
+ */
+public final class HistoryRings {
+    private final HistorySettings settings;
+    private final Map<String, HistoryRing> rings;
+
+    public HistoryRings(HistorySettings settings) {
+        this.settings = settings;
+        this.rings = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param topicName - a concrete topic
+     * @return the history of the topic, or null if the topic history is not kept
+     */
+    public HistoryRing get(String topicName) {
+        HistoryRing ring = rings.get(topicName);
+        if (ring != null || !settings.isKept(topicName)) {
+            return ring;
+        }
+        return rings.computeIfAbsent(topicName, t -> new HistoryRing(t, 
+                settings.maxMessages, settings.maxAgeMillis, settings.bytesPerTopic));
+    }
+
+    /**
+     * Drops all the histories; their buffers are released by the garbage collector
+     */
+    public void clear() {
+        rings.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package ro.top.log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import ro.top.proxy.TopicNames;
+
+/**
+ * The configuration of the in memory history of the topics, for the clients
+ * catching up after a short outage. <br>
+ * Use HistorySettings.builder() to configure one and pass it to
+ * NotificationController.builder().history(settings)
+ * @author Alexandru Topala
+ */
+public final class HistorySettings {
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_BYTES_PER_TOPIC = 1024 * 1024;
+
+    final List<String> topics;
+    final int maxMessages;
+    final long maxAgeMillis;
+    final int bytesPerTopic;
+
+    private HistorySettings(Builder builder) {
+        this.topics = builder.topics;
+        this.maxMessages = builder.maxMessages;
+        this.maxAgeMillis = builder.maxAgeMillis;
+        this.bytesPerTopic = builder.bytesPerTopic;
+    }
+
+    /**
+     * @return a builder for the history configuration
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param topicName - a concrete topic
+     * @return true if the last notifications of the topic are kept
+     */
+    public boolean isKept(String topicName) {
+        for (String pattern : topics) {
+            if (pattern.equals(topicName) || TopicNames.matches(pattern, topicName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Configures the history of the topics
+     */
+    public static final class Builder {
+        private List<String> topics = Collections.singletonList(TopicNames.ANY_SEGMENTS);
+        private int maxMessages = DEFAULT_MAX_MESSAGES;
+        private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+        private int bytesPerTopic = DEFAULT_BYTES_PER_TOPIC;
+
+        private Builder() {
+        }
+
+        /**
+         * @param patterns - the topics, or topic patterns, whose history is kept. All the topics by default
+         * @return this builder
+         */
+        public Builder topics(String... patterns) {
+            Arrays.asList(patterns).forEach(TopicNames::validate);
+            this.topics = Arrays.asList(patterns.clone());
+            return this;
+        }
+
+        /**
+         * @param maxMessages - how many of the last notifications of a topic are kept
+         * @return this builder
+         */
+        public Builder maxMessages(int maxMessages) {
+            if (maxMessages < 1) {
+                throw new IllegalArgumentException("Messages must be positive (value=" + maxMessages + ")");
+            }
+            this.maxMessages = maxMessages;
+            return this;
+        }
+
+        /**
+         * @param maxAge - how long the notifications of a topic are kept
+         * @param unit
+         * @return this builder
+         */
+        public Builder maxAge(long maxAge, TimeUnit unit) {
+            if (maxAge < 1) {
+                throw new IllegalArgumentException("Age must be positive (value=" + maxAge + ")");
+            }
+            this.maxAgeMillis = unit.toMillis(maxAge);
+            return this;
+        }
+
+        /**
+         * @param bytesPerTopic - the size of the off heap buffer holding the history of a topic;
+         * the oldest notifications are dropped when it is full
+         * @return this builder
+         */
+        public Builder bytesPerTopic(int bytesPerTopic) {
+            if (bytesPerTopic < 1024) {
+                throw new IllegalArgumentException("Bytes per topic must be at least 1024 (value=" + bytesPerTopic + ")");
+            }
+            this.bytesPerTopic = bytesPerTopic;
+            return this;
+        }
+
+        public HistorySettings build() {
+            return new HistorySettings(this);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ro.top.log;
+
+import ro.top.proxy.EncodedPayload;
+
+/**
+ * A notification read back from a topic log
+ * @author Alexandru Topala
+ */
+public final class LogRecord {
+    private final long offset;
+    private final long timestamp;
+    private final EncodedPayload data;
+
+    LogRecord(long offset, long timestamp, EncodedPayload data) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.data = data;
+    }
+
+    /**
+     * @return the position of the notification in the log of its topic
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return when the notification was published, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the encoded data, or null for a notification without data
+     */
+    public EncodedPayload getData() {
+        return data;
+    }
+}
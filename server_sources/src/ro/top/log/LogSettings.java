@@ -0,0 +1,152 @@
+package ro.top.log;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import ro.top.proxy.TopicNames;
+
+/**
+ * The configuration of the durable topic logs of a server. <br>
+ * Use LogSettings.builder(directory) to configure one and pass it to
+ * NotificationController.builder().durableLog(settings)
+ * @author Alexandru Topala
+ */
+public final class LogSettings {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final int DEFAULT_MAX_PENDING_APPENDS = 65536;
+
+    final Path directory;
+    final List<String> topics;
+    final int segmentSize;
+    final long retentionBytes;
+    final long retentionMillis;
+    final int maxPendingAppends;
+    final boolean syncOnCommit;
+
+    private LogSettings(Builder builder) {
+        this.directory = builder.directory;
+        this.topics = builder.topics;
+        this.segmentSize = builder.segmentSize;
+        this.retentionBytes = builder.retentionBytes;
+        this.retentionMillis = builder.retentionMillis;
+        this.maxPendingAppends = builder.maxPendingAppends;
+        this.syncOnCommit = builder.syncOnCommit;
+    }
+
+    /**
+     * @param directory - where the logs are kept, one sub directory per topic
+     * @return a builder for the logs configuration
+     */
+    public static Builder builder(Path directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * @param topicName - a concrete topic
+     * @return true if the notifications of the topic are kept in a log
+     */
+    public boolean isLogged(String topicName) {
+        for (String pattern : topics) {
+            if (pattern.equals(topicName) || TopicNames.matches(pattern, topicName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Configures the durable topic logs.
+     * build() only checks the configuration, the logs are opened by the server
+     */
+    public static final class Builder {
+        private final Path directory;
+        private List<String> topics = Collections.singletonList(TopicNames.ANY_SEGMENTS);
+        private int segmentSize = DEFAULT_SEGMENT_SIZE;
+        private long retentionBytes = DEFAULT_RETENTION_BYTES;
+        private long retentionMillis = DEFAULT_RETENTION_MILLIS;
+        private int maxPendingAppends = DEFAULT_MAX_PENDING_APPENDS;
+        private boolean syncOnCommit = true;
+
+        private Builder(Path directory) {
+            if (directory == null) {
+                throw new IllegalArgumentException("The log directory is null");
+            }
+            this.directory = directory;
+        }
+
+        /**
+         * @param patterns - the topics, or topic patterns, kept in a log. All the topics by default
+         * @return this builder
+         */
+        public Builder topics(String... patterns) {
+            Arrays.asList(patterns).forEach(TopicNames::validate);
+            this.topics = Arrays.asList(patterns.clone());
+            return this;
+        }
+
+        /**
+         * @param segmentSize - the size in bytes of a log segment file; retention drops whole segments
+         * @return this builder
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < 1024) {
+                throw new IllegalArgumentException("Segment size must be at least 1024 bytes (value=" + segmentSize + ")");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Sets how much each topic log keeps. The oldest segments are deleted once
+         * the log grows past maxBytes or once all their notifications are older than maxAge;
+         * the segment being written is always kept
+         * @param maxBytes
+         * @param maxAge
+         * @param unit
+         * @return this builder
+         */
+        public Builder retention(long maxBytes, long maxAge, TimeUnit unit) {
+            if (maxBytes < 1 || maxAge < 1) {
+                throw new IllegalArgumentException("Retention must be positive (bytes=" + maxBytes + ", age=" + maxAge + ")");
+            }
+            this.retentionBytes = maxBytes;
+            this.retentionMillis = unit.toMillis(maxAge);
+            return this;
+        }
+
+        /**
+         * @param maxPendingAppends - how many notifications may wait to be written
+         * before publishing blocks
+         * @return this builder
+         */
+        public Builder maxPendingAppends(int maxPendingAppends) {
+            if (maxPendingAppends < 1) {
+                throw new IllegalArgumentException("Pending appends must be positive (value=" + maxPendingAppends + ")");
+            }
+            this.maxPendingAppends = maxPendingAppends;
+            return this;
+        }
+
+        /**
+         * @param syncOnCommit - true for forcing every group of appends to the disk
+         * before replaying it, false for leaving that to the operating system
+         * @return this builder
+         */
+        public Builder syncOnCommit(boolean syncOnCommit) {
+            this.syncOnCommit = syncOnCommit;
+            return this;
+        }
+
+        public LogSettings build() {
+            return new LogSettings(this);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ro.top.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import ro.top.proxy.EncodedPayload;
+
+/**
+ * One file of a topic log, mapped in memory. <br>
+ * The file is named after the offset of its first record and holds consecutive records: <br>
+ * [int length][int crc][long offset][long timestamp][byte flags][payload, if it has data] <br>
+ * The length is written last and a length of 0 marks the end of the records, so a record
+ * torn by a crash is ignored when the segment is opened again; the crc catches the rest. <br>
+ * Only the writer thread appends; readers read the records up to the committed offset
+ * of the log, through the positions index
+ * @author Alexandru Topala
+ */
+final class Segment {
+    static final String SUFFIX = ".log";
+
+    /**
+     * length, crc, offset, timestamp and flags
+     */
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 1;
+    private static final int CHECKED_FROM = 8;
+    private static final byte HAS_DATA = 1;
+
+    final long baseOffset;
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * The position of each record in the file, by offset - baseOffset
+     */
+    private int[] positions;
+    private int count;
+    private int end;
+    private long lastTimestamp;
+
+    private Segment(long baseOffset, Path path, FileChannel channel, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.positions = new int[1024];
+    }
+
+    /**
+     * @param directory
+     * @param baseOffset - the offset of the first record
+     * @param capacity - the size of the file
+     * @return a new, empty segment
+     * @throws IOException
+     */
+    static Segment create(Path directory, long baseOffset, int capacity) throws IOException {
+        Path path = directory.resolve(String.format("%020d", baseOffset) + SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(baseOffset, path, channel, capacity);
+    }
+
+    /**
+     * Opens an existing segment, keeping its records up to the first invalid one
+     * @param path
+     * @return the segment
+     * @throws IOException
+     */
+    static Segment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Segment " + path + " is too large");
+        }
+        Segment segment = new Segment(baseOffset, path, channel, (int) size);
+        segment.recover();
+        return segment;
+    }
+
+    /**
+     * @param data - null for a notification without data
+     * @return the size of the record of the notification
+     */
+    static int recordSize(EncodedPayload data) {
+        return HEADER_SIZE + (data != null ? 4 + data.size() : 0);
+    }
+
+    /**
+     * @param recordSize
+     * @return true if a record of that size still fits, along with the end mark
+     */
+    boolean fits(int recordSize) {
+        return (long) end + recordSize + 4 <= buffer.capacity();
+    }
+
+    void append(long offset, long timestamp, EncodedPayload data) {
+        int length = recordSize(data);
+        ByteBuffer record = buffer.duplicate();
+        record.position(end + CHECKED_FROM);
+        record.putLong(offset);
+        record.putLong(timestamp);
+        record.put(data != null ? HAS_DATA : 0);
+        if (data != null) {
+            data.writeTo(record);
+        }
+        record.putInt(end + length, 0);
+        record.putInt(end + 4, checksum(end, length));
+        record.putInt(end, length);
+
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        positions[count++] = end;
+        end += length;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * @param offset - an offset of this segment, already committed
+     * @return the record
+     * @throws IOException if the record cannot be read back
+     */
+    LogRecord read(long offset) throws IOException {
+        ByteBuffer record = buffer.duplicate();
+        record.position(positions[(int) (offset - baseOffset)] + CHECKED_FROM);
+        long recordOffset = record.getLong();
+        long timestamp = record.getLong();
+        EncodedPayload data = record.get() == HAS_DATA ? EncodedPayload.readFrom(record) : null;
+        if (recordOffset != offset) {
+            throw new IOException("Record " + recordOffset + " found instead of " + offset + " in " + path);
+        }
+        return new LogRecord(offset, timestamp, data);
+    }
+
+    /**
+     * @return the offset following the last record of this segment
+     */
+    long nextOffset() {
+        return baseOffset + count;
+    }
+
+    /**
+     * @return the bytes taken by the records
+     */
+    int size() {
+        return end;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes and deletes the file. The records already read stay valid
+     * @throws IOException
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private void recover() {
+        while (end + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length < HEADER_SIZE || (long) end + length > buffer.capacity()
+                    || buffer.getInt(end + 4) != checksum(end, length)
+                    || buffer.getLong(end + CHECKED_FROM) != baseOffset + count) {
+                break;
+            }
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = end;
+            lastTimestamp = buffer.getLong(end + CHECKED_FROM + 8);
+            end += length;
+        }
+    }
+
+    private int checksum(int position, int length) {
+        ByteBuffer checked = buffer.duplicate();
+        checked.position(position + CHECKED_FROM);
+        checked.limit(position + length);
+        CRC32 crc = new CRC32();
+        crc.update(checked);
+        return (int) crc.getValue();
+    }
+}
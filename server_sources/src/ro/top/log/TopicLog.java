@@ -0,0 +1,232 @@
+package ro.top.log;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.proxy.EncodedPayload;
+
+/**
+ * The append only log of the notifications of one topic, made of segment files. <br>
+ * Appending only assigns the offset and hands the notification to the writer thread
+ * of the TopicLogs, which writes and forces whole groups of appends at once. A notification
+ * can be read back once its group is committed
+ * @author Alexandru Topala
+ */
+public final class TopicLog implements TopicRecords {
+    private final String topicName;
+    private final Path directory;
+    private final TopicLogs logs;
+
+    /**
+     * key - the offset of the first record of the segment
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments;
+
+    /**
+     * The segment being written, only used by the writer thread
+     */
+    private Segment active;
+
+    /**
+     * The offset the next append gets, guarded by this
+     */
+    private long nextOffset;
+
+    /**
+     * The offsets below are written and may be read
+     */
+    private volatile long committedOffset;
+    private volatile boolean failed;
+
+    private TopicLog(String topicName, Path directory, TopicLogs logs) {
+        this.topicName = topicName;
+        this.directory = directory;
+        this.logs = logs;
+        this.segments = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Opens the log of the topic, recovering the segments already on the disk
+     */
+    static TopicLog open(String topicName, Path directory, TopicLogs logs) throws IOException {
+        Files.createDirectories(directory);
+        TopicLog log = new TopicLog(topicName, directory, logs);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + Segment.SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            log.segments.put(segment.baseOffset, segment);
+            log.active = segment;
+        }
+        if (log.active != null) {
+            log.nextOffset = log.active.nextOffset();
+            log.committedOffset = log.nextOffset;
+        }
+        return log;
+    }
+
+    @Override
+    public String getTopicName() {
+        return topicName;
+    }
+
+    /**
+     * Assigns the next offset to the notification and queues it for writing.
+     * Blocks while too many appends are waiting to be written
+     * @param data - the encoded data, null for a notification without data
+     * @return the offset of the notification
+     */
+    @Override
+    public synchronized long append(EncodedPayload data) {
+        long offset = nextOffset++;
+        logs.enqueue(this, offset, System.currentTimeMillis(), data);
+        return offset;
+    }
+
+    /**
+     * @return the offset the next notification will get
+     */
+    @Override
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return the offset following the last notification that may be read
+     */
+    @Override
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    /**
+     * @return the oldest offset still kept
+     */
+    public long getFirstOffset() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first != null ? first.getKey() : committedOffset;
+    }
+
+    /**
+     * @return true if writing failed; the notifications appended since then are not kept
+     */
+    @Override
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Reads committed notifications. The offsets deleted by the retention are skipped
+     * @param from - the first offset to read
+     * @param max - the maximum number of notifications to read
+     * @return the notifications, in offset order, empty if none is committed from that offset on
+     * @throws IOException
+     */
+    @Override
+    public List<LogRecord> read(long from, int max) throws IOException {
+        long end = committedOffset;
+        if (from >= end) {
+            return Collections.emptyList();
+        }
+        Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+        if (entry == null) {
+            entry = segments.firstEntry();
+        }
+        List<LogRecord> records = new ArrayList<>(Math.min(max, 256));
+        long offset = from;
+        while (entry != null && records.size() < max && offset < end) {
+            Segment segment = entry.getValue();
+            offset = Math.max(offset, segment.baseOffset);
+            if (offset >= segment.nextOffset()) {
+                entry = segments.higherEntry(entry.getKey());
+                continue;
+            }
+            records.add(segment.read(offset++));
+        }
+        return records;
+    }
+
+    /**
+     * Writes one notification into the active segment, starting a new segment when it is full.
+     * Called only by the writer thread
+     * @return the segment written
+     */
+    Segment write(long offset, long timestamp, EncodedPayload data, int segmentSize) {
+        if (failed) {
+            return null;
+        }
+        try {
+            int size = Segment.recordSize(data);
+            if (active == null || !active.fits(size)) {
+                active = Segment.create(directory, offset, Math.max(segmentSize, size + 4));
+                segments.put(offset, active);
+            }
+            active.append(offset, timestamp, data);
+            return active;
+        } catch (IOException | RuntimeException ex) {
+            failed = true;
+            Logger.getLogger(TopicLog.class.getName()).log(Level.SEVERE,
+                    "Log of topic " + topicName + " could not be written, it keeps no notification from offset " + offset, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Makes the written notifications readable. Called only by the writer thread
+     * @param next - the offset following the last written notification
+     */
+    void commit(long next) {
+        if (!failed) {
+            committedOffset = next;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while the log is too large or they are too old.
+     * Called only by the writer thread
+     */
+    void applyRetention(long maxBytes, long maxAgeMillis, long now) {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size();
+        }
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || (total <= maxBytes && segment.getLastTimestamp() >= now - maxAgeMillis)) {
+                break;
+            }
+            iterator.remove();
+            total -= segment.size();
+            try {
+                segment.delete();
+            } catch (IOException ex) {
+                Logger.getLogger(TopicLog.class.getName()).log(Level.WARNING,
+                        "Segment " + segment.path + " of topic " + topicName + " could not be deleted", ex);
+            }
+        }
+    }
+
+    void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException ex) {
+                Logger.getLogger(TopicLog.class.getName()).log(Level.WARNING,
+                        "Segment " + segment.path + " of topic " + topicName + " could not be closed", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ro.top.log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.proxy.EncodedPayload;
+
+/**
+ * The durable logs of the topics of a server. <br>
+ * All the appends go through a bounded queue to a single writer thread, which
+ * takes everything that piled up, writes it into the mapped segments, forces
+ * each touched segment once and only then commits the offsets. This way publishing
+ * never waits for the disk, unless the writer falls behind by more than the queue,
+ * and a burst of notifications costs one sync. <br>
+ * The writer also applies the retention, about once per second. <br>
+ * A topic log is opened, and its segments recovered, when it is first used
+ * @author Alexandru Topala
+ */
+public final class TopicLogs {
+    private static final int MAX_GROUP_SIZE = 4096;
+    private static final long RETENTION_INTERVAL = 1000;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private static final class Append {
+        final TopicLog log;
+        final long offset;
+        final long timestamp;
+        final EncodedPayload data;
+
+        Append(TopicLog log, long offset, long timestamp, EncodedPayload data) {
+            this.log = log;
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Stops the writer once everything queued before it is written
+     */
+    private static final Append CLOSE = new Append(null, 0, 0, null);
+
+    private final LogSettings settings;
+    private final Map<String, TopicLog> logs;
+    private final BlockingQueue<Append> pending;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Creates the logs directory, if needed, and starts the writer thread
+     * @param settings
+     * @throws IOException
+     */
+    public TopicLogs(LogSettings settings) throws IOException {
+        this.settings = settings;
+        this.logs = new ConcurrentHashMap<>();
+        this.pending = new ArrayBlockingQueue<>(settings.maxPendingAppends);
+        Files.createDirectories(settings.directory);
+        this.writer = new Thread(this::write, "topic-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @param topicName - a concrete topic
+     * @return the log of the topic, or null if the topic is not logged or its log cannot be opened
+     */
+    public TopicLog get(String topicName) {
+        TopicLog log = logs.get(topicName);
+        if (log != null || closed || !settings.isLogged(topicName)) {
+            return log;
+        }
+        try {
+            return logs.computeIfAbsent(topicName, t -> {
+                try {
+                    return TopicLog.open(t, directoryOf(t), this);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            Logger.getLogger(TopicLogs.class.getName()).log(Level.SEVERE,
+                    "Log of topic " + topicName + " could not be opened, its notifications are not kept", ex.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Writes everything appended so far, stops the writer and closes the logs
+     */
+    public void close() {
+        closed = true;
+        try {
+            pending.put(CLOSE);
+            writer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        logs.values().forEach(TopicLog::close);
+        logs.clear();
+    }
+
+    void enqueue(TopicLog log, long offset, long timestamp, EncodedPayload data) {
+        if (closed) {
+            throw new IllegalStateException("The topic logs are closed");
+        }
+        try {
+            pending.put(new Append(log, offset, timestamp, data));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while appending to the log of topic " + log.getTopicName(), ex);
+        }
+    }
+
+    private Path directoryOf(String topicName) {
+        try {
+            return settings.directory.resolve("topic-" + URLEncoder.encode(topicName, "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void write() {
+        List<Append> group = new ArrayList<>(MAX_GROUP_SIZE);
+        Set<Segment> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<TopicLog, Long> written = new LinkedHashMap<>();
+        long lastRetention = System.currentTimeMillis();
+        boolean running = true;
+        while (running) {
+            try {
+                Append first = pending.poll(RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    group.add(first);
+                    pending.drainTo(group, MAX_GROUP_SIZE - 1);
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+            for (Append append : group) {
+                if (append == CLOSE) {
+                    running = false;
+                    continue;
+                }
+                Segment segment = append.log.write(append.offset, append.timestamp, append.data, settings.segmentSize);
+                if (segment != null) {
+                    touched.add(segment);
+                    written.put(append.log, append.offset + 1);
+                }
+            }
+            if (settings.syncOnCommit) {
+                for (Segment segment : touched) {
+                    try {
+                        segment.force();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(TopicLogs.class.getName()).log(Level.WARNING,
+                                "Segment " + segment.path + " could not be forced to the disk", ex);
+                    }
+                }
+            }
+            written.forEach(TopicLog::commit);
+            group.clear();
+            touched.clear();
+            written.clear();
+
+            long now = System.currentTimeMillis();
+            if (now - lastRetention >= RETENTION_INTERVAL) {
+                lastRetention = now;
+                logs.values().forEach(log -> log.applyRetention(settings.retentionBytes, settings.retentionMillis, now));
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ro.top.log;
+
+import java.io.IOException;
+import java.util.List;
+import ro.top.proxy.EncodedPayload;
+
+/**
+ * The notifications kept for a topic, numbered by consecutive offsets, 
+ * either durably in a TopicLog or for a short while in a HistoryRing. <br>
+ * Holding the monitor of the records while appending and handing the notification to the
+ * subscribers keeps the offsets in order for every subscriber
+ * @author Alexandru Topala
+ */
+public interface TopicRecords {
+    
+    public String getTopicName();
+    
+    /**
+     * @param data - the encoded data, null for a notification without data
+     * @return the offset of the notification
+     */
+    public long append(EncodedPayload data);
+    
+    /**
+     * @return the offset the next notification will get
+     */
+    public long getNextOffset();
+    
+    /**
+     * @return the offset following the last notification that may be read
+     */
+    public long getCommittedOffset();
+    
+    /**
+     * @return true if the notifications appended from some point on are not kept
+     */
+    public boolean isFailed();
+    
+    /**
+     * Reads the kept notifications. The offsets no longer kept are skipped
+     * @param from - the first offset to read
+     * @param max - the maximum number of notifications to read
+     * @return the notifications, in offset order, empty if none is readable from that offset on
+     * @throws IOException
+     */
+    public List<LogRecord> read(long from, int max) throws IOException;
+}
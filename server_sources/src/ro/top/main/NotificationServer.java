@@ -12,6 +12,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import ro.top.gui.ServerFrame;
 import ro.top.service.NotificationController;
+import ro.top.transport.ServerTransport;
 
 /**
  * The main class for push notification server api.
@@ -40,6 +41,20 @@ public final class NotificationServer {
         start(port, runWithGui, null, null);
     }
     
+    /**
+     * Starts the Notification Server on this localhost, on the specified PORT, 
+     * reachable through the given transport
+     * @param port where to start the server process
+     * @param runWithGui tells whether or not the server should start its gui. <br>
+     * It is highly recommended to set this to true if you are not integrating this jar
+     * into another application
+     * @param transport how the clients reach the server (RmiServerTransport, NioServerTransport). <br>
+     * The clients must use the matching client transport
+     */
+    public static void start(int port, boolean runWithGui, ServerTransport transport) {
+        start(NotificationController.builder().port(port).transport(transport), runWithGui, null, null);
+    }
+    
     /**
      * Obtains and filters the ip addresses of all network interfaces and returns 
      * the right local ip address (starting with "192.") 
@@ -77,8 +92,21 @@ public final class NotificationServer {
      * @param redirectErr redirect the standard error stream
      */
     public static void start(int port, boolean runWithGui, OutputStream redirectOut, OutputStream redirectErr) {        
+        start(NotificationController.builder().port(port), runWithGui, redirectOut, redirectErr);
+    }
+    
+    /**
+     * Starts the Notification Server on this localhost, configured by the given builder
+     * @param configuration the server configurations (port, dispatcher, ...)
+     * @param runWithGui tells whether or not the server should start its gui. <br>
+     * It is highly recommended to set this to true if you are not integrating this jar
+     * into another application
+     * @param redirectOut redirect the standard output stream
+     * @param redirectErr redirect the standard error stream
+     */
+    public static void start(NotificationController.Builder configuration, boolean runWithGui, OutputStream redirectOut, OutputStream redirectErr) {        
         ExecutorService service = Executors.newSingleThreadExecutor();
-        service.submit(new MainTask(port, runWithGui, redirectOut, redirectErr));
+        service.submit(new MainTask(configuration, runWithGui, redirectOut, redirectErr));
         service.shutdown();
     }
     
@@ -99,12 +127,12 @@ public final class NotificationServer {
     
     private static class MainTask implements Runnable {
         private final boolean runWithGui;
-        private final int port;
+        private final NotificationController.Builder configuration;
         private final OutputStream redirectOut;
         private final OutputStream redirectErr;
         
-        public MainTask(int port, boolean runWithGui, OutputStream redirectOut, OutputStream redirectErr) {
-            this.port = port;
+        public MainTask(NotificationController.Builder configuration, boolean runWithGui, OutputStream redirectOut, OutputStream redirectErr) {
+            this.configuration = configuration;
             this.runWithGui = runWithGui;
             this.redirectOut = redirectOut;
             this.redirectErr = redirectErr;
@@ -118,9 +146,9 @@ public final class NotificationServer {
                 } catch (SocketException ex) {
                     Logger.getLogger(NotificationServer.class.getName()).log(Level.SEVERE, null, ex);
                 }
-                ServerFrame frame = new ServerFrame(port, redirectOut, redirectErr);
+                ServerFrame frame = new ServerFrame(configuration.getPort(), redirectOut, redirectErr);
             }
-            NotificationController.getInstance(port);
+            configuration.build();
         }        
     }
     
@@ -2,6 +2,7 @@ package ro.top.proxy;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * The proxy through the server can send push-notifications to a client
@@ -23,4 +24,26 @@ public interface ClientNotificationProxy extends Remote {
      */
     public void receiveDataNotification(Object data, String name) throws RemoteException;
     
+    /**
+     * Receive a notification with data attached, already encoded by the server
+     * @param data - the encoded notification data
+     * @param name - the name of the topic
+     * @throws java.rmi.RemoteException
+     */
+    public void receiveEncodedDataNotification(EncodedPayload data, String name) throws RemoteException;
+    
+    /**
+     * Receive several notifications at once, in the order they were published
+     * @param notifications
+     * @throws java.rmi.RemoteException
+     */
+    public void receiveNotifications(List<Notification> notifications) throws RemoteException;
+    
+    /**
+     * Receive the outcomes of the confirmed publishes of this client
+     * @param reports
+     * @throws java.rmi.RemoteException
+     */
+    public void receiveDeliveryReports(List<DeliveryReport> reports) throws RemoteException;
+    
 }
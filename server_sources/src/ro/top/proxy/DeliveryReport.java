@@ -0,0 +1,110 @@
+package ro.top.proxy;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The outcome of a confirmed publish, sent back by the server to the publisher
+ * once every subscriber the notification was meant for either received it or failed. <br>
+ * The server sends the reports that pile up for a publisher together, in a single message
+ * @author Alexandru Topala
+ */
+public final class DeliveryReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long publishId;
+    private final String topicName;
+    private final int delivered;
+    private final int failed;
+    private final int filtered;
+    private final long latencyNanos;
+
+    /**
+     * @param publishId - the id the publisher gave to the publish
+     * @param topicName - the topic published on
+     * @param delivered - how many subscribers received the notification
+     * @param failed - how many subscribers could not receive it
+     * @param filtered - how many subscribers did not want it, according to their filters
+     * @param latencyNanos - the time from the server receiving the publish to the last outcome
+     */
+    public DeliveryReport(long publishId, String topicName, int delivered, int failed, int filtered, 
+            long latencyNanos) {
+        this.publishId = publishId;
+        this.topicName = topicName;
+        this.delivered = delivered;
+        this.failed = failed;
+        this.filtered = filtered;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public long getPublishId() {
+        return publishId;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    /**
+     * @return how many subscribers received the notification
+     */
+    public int getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return how many subscribers could not receive the notification: unreachable, 
+     * evicted or with a full outbox
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return how many subscribers were skipped because their filters rejected the data
+     */
+    public int getFiltered() {
+        return filtered;
+    }
+
+    /**
+     * @return the nanoseconds from the server receiving the publish to the last subscriber 
+     * receiving the notification or failing
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Writes the report in a compact binary form
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(publishId);
+        out.writeUTF(topicName);
+        out.writeInt(delivered);
+        out.writeInt(failed);
+        out.writeInt(filtered);
+        out.writeLong(latencyNanos);
+    }
+
+    /**
+     * Reads a report written by writeTo
+     * @param in
+     * @return the report
+     * @throws IOException
+     */
+    public static DeliveryReport readFrom(DataInput in) throws IOException {
+        return new DeliveryReport(in.readLong(), in.readUTF(), in.readInt(), in.readInt(), in.readInt(), 
+                in.readLong());
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReport{publishId=" + publishId + ", topic=" + topicName + ", delivered=" + delivered 
+                + ", failed=" + failed + ", filtered=" + filtered + ", latencyNanos=" + latencyNanos + '}';
+    }
+}
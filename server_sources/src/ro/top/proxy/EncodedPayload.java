@@ -0,0 +1,118 @@
+package ro.top.proxy;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import ro.top.codec.PayloadCodecs;
+
+/**
+ * Notification data already serialized into bytes.
+ * The server encodes the data of a notification only once and sends the same
+ * bytes to every subscriber, instead of letting RMI serialize the whole 
+ * object graph again for each of them. <br>
+ * The data is encoded by the codecs of PayloadCodecs
+ * @author Alexandru Topala
+ */
+public final class EncodedPayload implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final byte[] bytes;
+    
+    private EncodedPayload(byte[] bytes) {
+        this.bytes = bytes;
+    }
+    
+    /**
+     * Serializes the given data with the default codec
+     * @param data - the notification data
+     * @return the encoded data
+     * @throws IOException if the data could not be serialized
+     */
+    public static EncodedPayload encode(Object data) throws IOException {
+        return new EncodedPayload(PayloadCodecs.encode(data));
+    }
+    
+    /**
+     * Deserializes the data, with the codec that encoded it
+     * @return a new copy of the notification data
+     * @throws IOException
+     * @throws ClassNotFoundException if the data class is unknown to this side
+     */
+    public Object decode() throws IOException, ClassNotFoundException {
+        return PayloadCodecs.decode(bytes);
+    }
+    
+    /**
+     * @return the id of the codec that encoded the data
+     */
+    public byte getCodecId() {
+        return PayloadCodecs.codecIdOf(bytes);
+    }
+    
+    /**
+     * Writes the encoded data, prefixed by its length, to a non-RMI transport
+     * @param out
+     * @throws IOException 
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads encoded data written by writeTo
+     * @param in
+     * @return the encoded data
+     * @throws IOException 
+     */
+    public static EncodedPayload readFrom(DataInput in) throws IOException {
+        int length = in.readInt();
+        // the transports read from a frame already in memory, which knows the bytes left
+        if (length < 0 || (in instanceof InputStream && length > ((InputStream) in).available())) {
+            throw new IOException("Invalid payload length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new EncodedPayload(bytes);
+    }
+    
+    /**
+     * Writes the encoded data, prefixed by its length, into a buffer
+     * @param out
+     */
+    public void writeTo(ByteBuffer out) {
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+    
+    /**
+     * Reads encoded data written by writeTo
+     * @param in
+     * @return the encoded data
+     * @throws IOException 
+     */
+    public static EncodedPayload readFrom(ByteBuffer in) throws IOException {
+        try {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("Invalid payload length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new EncodedPayload(bytes);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated payload", ex);
+        }
+    }
+    
+    /**
+     * @return the size in bytes of the encoded data
+     */
+    public int size() {
+        return bytes.length;
+    }
+}
@@ -0,0 +1,98 @@
+package ro.top.proxy;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * How a client subscribes to a topic, sent along with the subscription. <br>
+ * <code>SubscribeOptions.defaults().filter("price &gt; 10").fromOffset(0)</code>
+ * @author Alexandru Topala
+ */
+public final class SubscribeOptions implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Receive only the notifications published after subscribing
+     */
+    public static final long LIVE = -1;
+
+    private String filter;
+    private long fromOffset = LIVE;
+
+    private SubscribeOptions() {
+    }
+
+    /**
+     * @return options for a plain subscription, receiving every notification of the topic
+     */
+    public static SubscribeOptions defaults() {
+        return new SubscribeOptions();
+    }
+
+    /**
+     * Only the data notifications matching the filter will be pushed to the client.
+     * Notifications without data are always pushed. See ro.top.filter.Filter for the syntax
+     * @param expression - the filter, null for none
+     * @return these options
+     */
+    public SubscribeOptions filter(String expression) {
+        this.filter = expression;
+        return this;
+    }
+
+    /**
+     * Replays the notifications kept in the durable log of the topic, starting 
+     * with the given offset, before the live ones. The offsets older than the log 
+     * retention are skipped. Only available for concrete topics kept in a log
+     * @param offset - the first offset to receive, LIVE for no replay
+     * @return these options
+     */
+    public SubscribeOptions fromOffset(long offset) {
+        this.fromOffset = offset < 0 ? LIVE : offset;
+        return this;
+    }
+
+    /**
+     * @return the first offset to replay, or LIVE
+     */
+    public long getFromOffset() {
+        return fromOffset;
+    }
+
+    /**
+     * @return the filter expression, or null if there is none
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Writes the options in a compact binary form
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(filter != null);
+        if (filter != null) {
+            out.writeUTF(filter);
+        }
+        out.writeLong(fromOffset);
+    }
+
+    /**
+     * Reads options written by writeTo
+     * @param in
+     * @return the options
+     * @throws IOException
+     */
+    public static SubscribeOptions readFrom(DataInput in) throws IOException {
+        SubscribeOptions options = new SubscribeOptions();
+        if (in.readBoolean()) {
+            options.filter = in.readUTF();
+        }
+        options.fromOffset = in.readLong();
+        return options;
+    }
+}
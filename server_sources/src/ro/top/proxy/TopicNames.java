@@ -0,0 +1,85 @@
+package ro.top.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Topic names are made of segments separated by dots, like "prices.eu.EURUSD". <br>
+ * A subscription may use wildcards in place of whole segments: <br>
+ * - "*" matches exactly one segment: "prices.*.EURUSD" <br>
+ * - "#" matches any number of segments, none included, and must be the last one: "prices.#" <br>
+ * Notifications are always published to concrete topics, without wildcards
+ * @author Alexandru Topala
+ */
+public final class TopicNames {
+    public static final char SEPARATOR = '.';
+    public static final String ANY_SEGMENT = "*";
+    public static final String ANY_SEGMENTS = "#";
+
+    private TopicNames() {
+    }
+
+    /**
+     * @param topicName
+     * @return true if the name contains wildcards
+     */
+    public static boolean isPattern(String topicName) {
+        for (String segment : segments(topicName)) {
+            if (ANY_SEGMENT.equals(segment) || ANY_SEGMENTS.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param topicName
+     * @throws IllegalArgumentException if "#" is used before the last segment
+     */
+    public static void validate(String topicName) {
+        List<String> segments = segments(topicName);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (ANY_SEGMENTS.equals(segments.get(i))) {
+                throw new IllegalArgumentException("\"" + ANY_SEGMENTS
+                        + "\" may only be the last segment of a topic (topic=" + topicName + ")");
+            }
+        }
+    }
+
+    /**
+     * @param pattern - a topic name, with or without wildcards
+     * @param topicName - a concrete topic name
+     * @return true if a subscription to the pattern covers the topic
+     */
+    public static boolean matches(String pattern, String topicName) {
+        List<String> patternSegments = segments(pattern);
+        List<String> topicSegments = segments(topicName);
+        for (int i = 0; i < patternSegments.size(); i++) {
+            String segment = patternSegments.get(i);
+            if (ANY_SEGMENTS.equals(segment)) {
+                return true;
+            }
+            if (i == topicSegments.size()
+                    || !(ANY_SEGMENT.equals(segment) || segment.equals(topicSegments.get(i)))) {
+                return false;
+            }
+        }
+        return patternSegments.size() == topicSegments.size();
+    }
+
+    /**
+     * @param topicName
+     * @return the segments of the name, in order
+     */
+    public static List<String> segments(String topicName) {
+        List<String> segments = new ArrayList<>(4);
+        int start = 0;
+        int end;
+        while ((end = topicName.indexOf(SEPARATOR, start)) >= 0) {
+            segments.add(topicName.substring(start, end));
+            start = end + 1;
+        }
+        segments.add(topicName.substring(start));
+        return segments;
+    }
+}
@@ -0,0 +1,108 @@
+package ro.top.service;
+
+/**
+ * Stops calling a client that keeps failing. <br>
+ * After failureThreshold consecutive failed pushes the circuit opens and the client 
+ * is not called anymore; its notifications wait in its outbox. Once every probe interval
+ * a single push is let through as a probe: if it succeeds the circuit closes again, 
+ * otherwise it stays open until the next probe
+ * @author Alexandru Topala
+ */
+final class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long probeMillis;
+
+    /**
+     * Guarded by this, as are the fields below
+     */
+    private State state = State.CLOSED;
+    private int failures;
+
+    /**
+     * When the circuit opened after the last successful push, 0 while closed
+     */
+    private long openedAt;
+    private long probeAt;
+
+    /**
+     * @param failureThreshold - how many consecutive failures open the circuit
+     * @param probeMillis - how long the circuit stays open before a probe
+     */
+    CircuitBreaker(int failureThreshold, long probeMillis) {
+        this.failureThreshold = failureThreshold;
+        this.probeMillis = probeMillis;
+    }
+
+    /**
+     * @param now
+     * @return true if the client may be called; an open circuit lets a single probe through
+     */
+    synchronized boolean allowsCall(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < probeAt) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // a probe is already on its way
+                return false;
+        }
+    }
+
+    /**
+     * Gives back the probe let through by allowsCall when there was nothing to push, 
+     * so the next call may probe right away
+     */
+    synchronized void releaseProbe() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        openedAt = 0;
+    }
+
+    /**
+     * @param now
+     * @return true if the circuit is open after this failure
+     */
+    synchronized boolean onFailure(long now) {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            if (openedAt == 0) {
+                openedAt = now;
+            }
+            state = State.OPEN;
+            probeAt = now + probeMillis;
+        }
+        return state == State.OPEN;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @param now
+     * @return how long the client has been unreachable, 0 if the circuit is closed
+     */
+    synchronized long getOpenMillis(long now) {
+        return openedAt == 0 ? 0 : now - openedAt;
+    }
+
+    /**
+     * @return when the next probe may be sent
+     */
+    synchronized long getProbeAt() {
+        return probeAt;
+    }
+}
@@ -0,0 +1,484 @@
+package ro.top.service;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.filter.Filter;
+import ro.top.log.LogRecord;
+import ro.top.log.TopicRecords;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.DeliveryReport;
+import ro.top.proxy.Notification;
+
+/**
+ * The bounded queue of notifications waiting to be pushed to one client.
+ * Publishing only enqueues here; a single drain task per outbox, run on the
+ * shared dispatcher, pushes the notifications to the client in publish order.
+ * This way a slow client only delays its own notifications.
+ * <br>
+ * The drain task pushes everything that piled up in batches, with one remote call 
+ * per batch. With a batch window configured, it also waits that long for more
+ * notifications before pushing an incomplete batch.
+ * <br>
+ * Ranges of topic logs or histories being replayed are pushed before anything in the queue, 
+ * so the live notifications of a replayed topic follow its log in offset order.
+ * A long replay holds back the live notifications, which may fill the queue meanwhile.
+ * <br>
+ * A client that keeps failing is not called anymore, see CircuitBreaker: the notifications 
+ * wait in the queue, without holding any thread, until a probe gets through. A client still 
+ * unreachable after the give up time is reported as lost. The batch of a failed push is 
+ * dropped, since the client may have received it before the timeout; a failed replay 
+ * batch is pushed again, the client ignores the offsets it already has.
+ * <br>
+ * The reports of the confirmed publishes of the client wait in the outbox as well and are
+ * pushed together, ahead of the notifications.
+ * @author Alexandru Topala
+ */
+final class ClientOutbox {
+    /**
+     * How many notifications a drain task pushes before giving its thread
+     * to other outboxes
+     */
+    private static final int DRAIN_BUDGET = 256;
+    
+    /**
+     * How long a replay waits for the log writer to commit the offsets it needs
+     */
+    private static final long LOG_POLL_MILLIS = 1;
+
+    /**
+     * How many delivery reports may be pushed in a single call
+     */
+    private static final int MAX_REPORTS = 4096;
+
+    /**
+     * While the outbox keeps dropping, how often the drops are logged again
+     */
+    private static final long DROP_LOG_MILLIS = 10000;
+
+    /**
+     * A range of the records of a topic still to be pushed
+     */
+    private static final class Replay {
+        final TopicRecords log;
+        final Filter filter;
+        final long end;
+        long next;
+
+        Replay(TopicRecords log, long from, long end, Filter filter) {
+            this.log = log;
+            this.next = from;
+            this.end = end;
+            this.filter = filter;
+        }
+
+        boolean isDone() {
+            return next >= end;
+        }
+
+        /**
+         * Reads the next committed notifications of the range, keeping those the filter accepts
+         * @return how many notifications were read, 0 if the next one is not committed yet
+         */
+        int read(List<Delivery> batch, int max) {
+            List<LogRecord> records;
+            try {
+                records = log.read(next, (int) Math.min(max, end - next));
+            } catch (IOException ex) {
+                Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE,
+                        "Log of topic " + log.getTopicName() + " could not be read from offset " + next 
+                                + ", the replay stops there", ex);
+                next = end;
+                return 0;
+            }
+            if (records.isEmpty() && (log.isFailed() || next < log.getCommittedOffset())) {
+                // the rest of the range is no longer kept
+                next = end;
+            }
+            int read = 0;
+            for (LogRecord record : records) {
+                if (record.getOffset() >= end) {
+                    next = end;
+                    break;
+                }
+                next = record.getOffset() + 1;
+                read++;
+                if (accepts(record)) {
+                    Notification notification = record.getData() != null
+                            ? Notification.of(record.getData(), log.getTopicName())
+                            : Notification.of(log.getTopicName());
+                    batch.add(Delivery.of(notification.atOffset(record.getOffset())));
+                }
+            }
+            return read;
+        }
+
+        private boolean accepts(LogRecord record) {
+            if (filter == null || record.getData() == null) {
+                return true;
+            }
+            try {
+                return filter.test(record.getData().decode());
+            } catch (IOException | ClassNotFoundException ex) {
+                return false;
+            }
+        }
+    }
+
+    private final String clientId;
+    private final ClientNotificationProxy proxy;
+    private final OutboxSettings settings;
+    private final BlockingQueue<Delivery> queue;
+    private final Queue<Replay> replays;
+    private final Queue<DeliveryReport> reports;
+    private final Consumer<String> onConnectionLost;
+    private final Consumer<String> onPushed;
+    private final AtomicBoolean scheduled;
+    private final AtomicLong dropped;
+
+    /**
+     * When the drops were last logged, 0 while the outbox accepts notifications
+     */
+    private final AtomicLong dropLoggedAt;
+    private final CircuitBreaker breaker;
+    private volatile boolean closed;
+
+    /**
+     * @param clientId - the client this outbox pushes to
+     * @param proxy - the proxy of the client
+     * @param settings - the outboxes configuration
+     * @param onConnectionLost - called with the client id when a push fails
+     * @param onPushed - called with the client id after the client received a batch
+     */
+    ClientOutbox(String clientId, ClientNotificationProxy proxy, OutboxSettings settings,
+            Consumer<String> onConnectionLost, Consumer<String> onPushed) {
+        this.clientId = clientId;
+        this.proxy = proxy;
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(settings.capacity);
+        this.replays = new ConcurrentLinkedQueue<>();
+        this.reports = new ConcurrentLinkedQueue<>();
+        this.onConnectionLost = onConnectionLost;
+        this.onPushed = onPushed;
+        this.scheduled = new AtomicBoolean();
+        this.dropped = new AtomicLong();
+        this.dropLoggedAt = new AtomicLong();
+        this.breaker = new CircuitBreaker(settings.failureThreshold, settings.probeMillis);
+    }
+
+    /**
+     * Enqueues the delivery without waiting for the client
+     * @param delivery
+     * @return false if the outbox is full or closed and the delivery was dropped
+     */
+    boolean offer(Delivery delivery) {
+        if (closed) {
+            return false;
+        }
+        if (!queue.offer(delivery)) {
+            long count = dropped.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long loggedAt = dropLoggedAt.get();
+            if ((loggedAt == 0 || now - loggedAt >= DROP_LOG_MILLIS) && dropLoggedAt.compareAndSet(loggedAt, now)) {
+                Logger.getLogger(NotificationController.class.getName()).log(Level.WARNING,
+                        "Outbox of client {0} is full, notifications are dropped ({1} so far, last for topic {2})",
+                        new Object[]{clientId, count, delivery.getTopicName()});
+            }
+            return false;
+        }
+        if (dropLoggedAt.get() != 0 && dropLoggedAt.getAndSet(0) != 0) {
+            Logger.getLogger(NotificationController.class.getName()).log(Level.INFO,
+                    "Outbox of client {0} accepts notifications again ({1} dropped so far)",
+                    new Object[]{clientId, dropped.get()});
+        }
+        schedule(true);
+        return true;
+    }
+
+    /**
+     * Pushes the notifications kept for a topic, before any notification 
+     * offered from now on
+     * @param log - the log or the history of the topic
+     * @param from - the first offset to push
+     * @param end - the offset following the last one to push
+     * @param filter - the filter of the subscription, null for none
+     */
+    void replay(TopicRecords log, long from, long end, Filter filter) {
+        if (closed || from >= end) {
+            return;
+        }
+        replays.add(new Replay(log, from, end, filter));
+        schedule(false);
+    }
+
+    /**
+     * Queues the report of a confirmed publish of this client
+     * @param report
+     */
+    void report(DeliveryReport report) {
+        if (closed) {
+            return;
+        }
+        reports.add(report);
+        schedule(true);
+    }
+
+    /**
+     * @return the number of notifications waiting to be pushed
+     */
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return true if nothing is waiting or being pushed
+     */
+    boolean isIdle() {
+        return queue.isEmpty() && replays.isEmpty() && reports.isEmpty() && !scheduled.get();
+    }
+
+    /**
+     * @return the number of notifications dropped because the outbox was full or their push failed
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return true if the client is not called anymore, until a probe gets through
+     */
+    boolean isCircuitOpen() {
+        return breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Discards everything still waiting and stops accepting new notifications
+     */
+    void close() {
+        closed = true;
+        discard();
+    }
+
+    /**
+     * Drops everything waiting, counting the confirmed notifications as failed
+     */
+    private void discard() {
+        List<Delivery> discarded = new ArrayList<>(queue.size());
+        queue.drainTo(discarded);
+        discarded.forEach(Delivery::failed);
+        replays.clear();
+        reports.clear();
+    }
+
+    private void schedule(boolean allowWindow) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (allowWindow && settings.batchWindowMillis > 0 && queue.size() < settings.maxBatchSize) {
+            try {
+                settings.batchTimer.schedule(this::submitDrain, settings.batchWindowMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ex) {
+                // the server is stopping, push right away
+            }
+        }
+        submitDrain();
+    }
+
+    private void submitDrain() {
+        boolean accepted;
+        try {
+            accepted = settings.dispatcher.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            accepted = false;
+        }
+        if (!accepted) {
+            // the notifications stay queued until the next offer schedules a new drain
+            scheduled.set(false);
+            Logger.getLogger(NotificationController.class.getName()).log(Level.WARNING,
+                    "Dispatcher rejected the outbox of client {0}, {1} notifications are waiting",
+                    new Object[]{clientId, queue.size()});
+        }
+    }
+
+    private void drain() {
+        List<Delivery> batch = new ArrayList<>(Math.min(settings.maxBatchSize, DRAIN_BUDGET));
+        long retryDelay = 0;
+        try {
+            int pushed = 0;
+            while (pushed < DRAIN_BUDGET && !closed) {
+                if (reports.isEmpty() && replays.isEmpty() && queue.isEmpty()) {
+                    // nothing to push, a probe would find nothing to send
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                if (!breaker.allowsCall(now)) {
+                    retryDelay = Math.max(1, breaker.getProbeAt() - now);
+                    break;
+                }
+                if (!reports.isEmpty()) {
+                    int sent;
+                    try {
+                        sent = pushReports();
+                        breaker.onSuccess();
+                    } catch (RemoteException ex) {
+                        retryDelay = onPushFailed(ex);
+                        if (retryDelay != 0) {
+                            break;
+                        }
+                        continue;
+                    }
+                    pushed += sent;
+                    continue;
+                }
+                batch.clear();
+                // a probe risks a single notification
+                int max = breaker.getState() == CircuitBreaker.State.HALF_OPEN ? 1
+                        : Math.min(settings.maxBatchSize, DRAIN_BUDGET - pushed);
+                Replay replay = replays.peek();
+                long replayFrom = 0;
+                int read = 0;
+                if (replay != null) {
+                    replayFrom = replay.next;
+                    read = replay.read(batch, max);
+                    if (!replay.isDone() && read == 0) {
+                        breaker.releaseProbe();
+                        retryDelay = LOG_POLL_MILLIS;
+                        break;
+                    }
+                    if (batch.isEmpty()) {
+                        // everything read was filtered out
+                        breaker.releaseProbe();
+                        if (replay.isDone()) {
+                            replays.poll();
+                        }
+                        pushed += read;
+                        continue;
+                    }
+                } else {
+                    queue.drainTo(batch, max);
+                    if (batch.isEmpty()) {
+                        breaker.releaseProbe();
+                        break;
+                    }
+                }
+                try {
+                    push(batch);
+                    breaker.onSuccess();
+                } catch (RemoteException ex) {
+                    if (replay != null) {
+                        replay.next = replayFrom;
+                    } else {
+                        dropped.addAndGet(batch.size());
+                        batch.forEach(Delivery::failed);
+                    }
+                    retryDelay = onPushFailed(ex);
+                    if (retryDelay != 0) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.forEach(Delivery::delivered);
+                if (replay != null && replay.isDone()) {
+                    replays.poll();
+                }
+                pushed += Math.max(read, batch.size());
+            }
+            if (pushed > 0) {
+                onPushed.accept(clientId);
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        if (closed) {
+            return;
+        }
+        if (retryDelay > 0) {
+            scheduleRetry(retryDelay);
+        } else if (!queue.isEmpty() || !replays.isEmpty() || !reports.isEmpty()) {
+            schedule(false);
+        }
+    }
+
+    /**
+     * Counts the failure against the circuit breaker and reports the client as lost 
+     * once it has been unreachable for too long
+     * @return 0 for going on with the next push, else how long to wait before draining again,
+     * or -1 if the client is lost and everything waiting was dropped
+     */
+    private long onPushFailed(RemoteException ex) {
+        long now = System.currentTimeMillis();
+        if (!breaker.onFailure(now)) {
+            Logger.getLogger(NotificationController.class.getName()).log(Level.WARNING,
+                    "Push to client {0} failed: {1}", new Object[]{clientId, ex.getMessage()});
+            return 0;
+        }
+        if (breaker.getOpenMillis(now) < settings.giveUpMillis) {
+            Logger.getLogger(NotificationController.class.getName()).log(Level.WARNING,
+                    "Client {0} is unreachable, it will be probed again in {1} ms: {2}", 
+                    new Object[]{clientId, settings.probeMillis, ex.getMessage()});
+            return settings.probeMillis;
+        }
+        Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE,
+                "Connection with client " + clientId + " was unexpectedly closed. Client will be removed...",
+                ex.getMessage());
+        // the rest would most likely fail the same way
+        discard();
+        onConnectionLost.accept(clientId);
+        return -1;
+    }
+
+    /**
+     * Pushes the reports waiting, in a single call
+     * @return how many reports were pushed
+     */
+    private int pushReports() throws RemoteException {
+        List<DeliveryReport> outcomes = new ArrayList<>();
+        DeliveryReport report;
+        while (outcomes.size() < MAX_REPORTS && (report = reports.poll()) != null) {
+            outcomes.add(report);
+        }
+        if (!outcomes.isEmpty()) {
+            proxy.receiveDeliveryReports(outcomes);
+        }
+        return outcomes.size();
+    }
+
+    /**
+     * Drains again once the log writer has likely committed the offsets the replay needs,
+     * or once the client may be probed
+     */
+    private void scheduleRetry(long delayMillis) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            settings.batchTimer.schedule(this::submitDrain, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // the server is stopping
+            scheduled.set(false);
+        }
+    }
+
+    private void push(List<Delivery> batch) throws RemoteException {
+        if (batch.size() == 1) {
+            batch.get(0).deliverTo(proxy);
+            return;
+        }
+        List<Notification> notifications = new ArrayList<>(batch.size());
+        batch.forEach(delivery -> notifications.add(delivery.getNotification()));
+        proxy.receiveNotifications(notifications);
+    }
+}
@@ -0,0 +1,87 @@
+package ro.top.service;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import ro.top.proxy.ClientNotificationProxy;
+
+/**
+ * Everything the server knows about one registered client. <br>
+ * Inside the server a client is identified by its handle, a small integer
+ * holding its slot in the ClientTable and the generation of that slot; 
+ * the String id is only used by the clients
+ * @author Alexandru Topala
+ */
+final class ClientRecord {
+    final int handle;
+    final String id;
+    final String socket;
+
+    /**
+     * The topics this client subscribed to
+     */
+    final Set<String> topics;
+
+    /**
+     * null until the proxy of a client registered by socket is looked up
+     */
+    private volatile ClientNotificationProxy proxy;
+
+    /**
+     * null until the client subscribes to a topic
+     */
+    private volatile ClientOutbox outbox;
+    
+    /**
+     * When the client is considered lost unless its lease is renewed, in milliseconds
+     */
+    private volatile long leaseExpiry;
+
+    ClientRecord(int handle, String id, String socket, ClientNotificationProxy proxy) {
+        this.handle = handle;
+        this.id = id;
+        this.socket = socket;
+        this.proxy = proxy;
+        this.topics = ConcurrentHashMap.newKeySet();
+    }
+
+    ClientNotificationProxy getProxy() {
+        return proxy;
+    }
+
+    void setProxy(ClientNotificationProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    /**
+     * @param until - the new expiry of the lease; an earlier one is ignored
+     */
+    void renewLease(long until) {
+        if (until > leaseExpiry) {
+            leaseExpiry = until;
+        }
+    }
+
+    ClientOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Creates the outbox of this client, unless it already has one
+     * @param settings
+     * @param onConnectionLost
+     * @param onPushed
+     * @return the outbox of this client
+     */
+    synchronized ClientOutbox openOutbox(OutboxSettings settings, Consumer<String> onConnectionLost, 
+            Consumer<String> onPushed) {
+        if (outbox == null) {
+            outbox = new ClientOutbox(id, proxy, settings, onConnectionLost, onPushed);
+        }
+        return outbox;
+    }
+}
@@ -0,0 +1,161 @@
+package ro.top.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import ro.top.proxy.ClientNotificationProxy;
+
+/**
+ * The registered clients, in an array indexed by the slots of their handles. <br>
+ * The slot of an unregistered client is reused by the next one, with its generation 
+ * increased. A handle carries both, so a handle still referenced by an in-flight 
+ * notification does not match the record of the client that reused its slot.
+ * Lookups by handle take no lock; the String ids are kept as aliases
+ * @author Alexandru Topala
+ */
+final class ClientTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The low bits of a handle are its slot, the other ones its generation. 
+     * The sign bit stays clear, the subscriber sets use -1 for free entries
+     */
+    private static final int SLOT_BITS = 22;
+    private static final int MAX_SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = MAX_SLOTS - 1;
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+    private final Map<String, ClientRecord> byId;
+
+    /**
+     * Written under the table lock and reassigned after every change,
+     * so the readers see the records it holds
+     */
+    private volatile ClientRecord[] records;
+
+    /**
+     * The generation the next record of each slot gets, guarded by the table lock
+     */
+    private int[] generations;
+
+    /**
+     * The slots freed by the unregistered clients, reused last freed first, guarded by the table lock
+     */
+    private int[] freeSlots;
+    private int freeCount;
+    private int usedSlots;
+
+    ClientTable() {
+        this.byId = new ConcurrentHashMap<>();
+        this.records = new ClientRecord[INITIAL_CAPACITY];
+        this.generations = new int[INITIAL_CAPACITY];
+        this.freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Allocates a handle for the client and stores its record
+     * @param id - the id the client knows itself by
+     * @param socket - the socket of the client
+     * @param proxy - the proxy of the client, or null if it must be looked up later
+     * @return the record of the client
+     * @throws IllegalStateException if MAX_SLOTS clients are registered already
+     */
+    ClientRecord register(String id, String socket, ClientNotificationProxy proxy) {
+        ClientRecord record;
+        synchronized (this) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else if (usedSlots < MAX_SLOTS) {
+                slot = usedSlots++;
+            } else {
+                throw new IllegalStateException("Too many registered clients (" + MAX_SLOTS + ")");
+            }
+            ClientRecord[] current = records;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.min(current.length * 2, MAX_SLOTS));
+                generations = Arrays.copyOf(generations, current.length);
+            }
+            record = new ClientRecord(generations[slot] << SLOT_BITS | slot, id, socket, proxy);
+            current[slot] = record;
+            records = current;
+        }
+        byId.put(id, record);
+        return record;
+    }
+
+    /**
+     * @param handle
+     * @return the record of the client, or null if it is not registered anymore
+     */
+    ClientRecord get(int handle) {
+        ClientRecord[] current = records;
+        int slot = handle & SLOT_MASK;
+        if (slot >= current.length) {
+            return null;
+        }
+        ClientRecord record = current[slot];
+        return record != null && record.handle == handle ? record : null;
+    }
+
+    /**
+     * @param id
+     * @return the record of the client, or null if it is not registered
+     */
+    ClientRecord get(String id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @param id
+     * @return the record of the removed client, or null if it was not registered
+     */
+    ClientRecord remove(String id) {
+        ClientRecord record = byId.remove(id);
+        if (record != null) {
+            synchronized (this) {
+                free(record);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * @return the outboxes the registered clients opened so far
+     */
+    Stream<ClientOutbox> outboxes() {
+        return byId.values().stream().map(ClientRecord::getOutbox).filter(Objects::nonNull);
+    }
+
+    /**
+     * Removes all the clients. The generations of the slots keep increasing
+     */
+    synchronized void clear() {
+        byId.clear();
+        for (ClientRecord record : records) {
+            if (record != null) {
+                free(record);
+            }
+        }
+    }
+
+    /**
+     * Called holding the table lock
+     */
+    private void free(ClientRecord record) {
+        ClientRecord[] current = records;
+        int slot = record.handle & SLOT_MASK;
+        if (current[slot] != record) {
+            return;
+        }
+        current[slot] = null;
+        records = current;
+        generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+}
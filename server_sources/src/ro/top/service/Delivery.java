@@ -0,0 +1,121 @@
+package ro.top.service;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
+
+/**
+ * A notification waiting in a client outbox to be pushed to that client.
+ * The same instance is shared by all the outboxes a publish fans out to,
+ * so it must stay immutable. A confirmed publish carries the tracker collecting
+ * the outcome of every outbox
+ * @author Alexandru Topala
+ */
+final class Delivery {
+    private final Notification notification;
+
+    /**
+     * null unless the publisher asked for a report
+     */
+    private final DeliveryTracker tracker;
+
+    private Delivery(Notification notification, DeliveryTracker tracker) {
+        this.notification = notification;
+        this.tracker = tracker;
+    }
+
+    /**
+     * @param topicName - the name of the topic
+     * @return a delivery for a notification without data
+     */
+    static Delivery of(String topicName) {
+        return new Delivery(Notification.of(topicName), null);
+    }
+
+    /**
+     * @param data - notification data, encoded once for all the subscribers
+     * @param topicName - the name of the topic
+     * @return a delivery for a notification with data attached
+     */
+    static Delivery of(EncodedPayload data, String topicName) {
+        return new Delivery(Notification.of(data, topicName), null);
+    }
+
+    /**
+     * @param notification - a notification read back from a topic log
+     * @return a delivery for the notification
+     */
+    static Delivery of(Notification notification) {
+        return new Delivery(notification, null);
+    }
+
+    /**
+     * @param offset - the offset of the notification in the log of its topic
+     * @return a delivery for the same notification, carrying the offset
+     */
+    Delivery atOffset(long offset) {
+        return new Delivery(notification.atOffset(offset), tracker);
+    }
+
+    /**
+     * @param tracker - collects the outcomes for the publisher
+     * @return a delivery for the same notification, reporting its outcomes to the tracker
+     */
+    Delivery trackedBy(DeliveryTracker tracker) {
+        return new Delivery(notification, tracker);
+    }
+
+    /**
+     * @return the tracker of a confirmed publish, null for any other notification
+     */
+    DeliveryTracker getTracker() {
+        return tracker;
+    }
+
+    /**
+     * Counts the notification as received by one more subscriber, for a confirmed publish
+     */
+    void delivered() {
+        if (tracker != null) {
+            tracker.delivered();
+        }
+    }
+
+    /**
+     * Counts the notification as lost for one more subscriber, for a confirmed publish
+     */
+    void failed() {
+        if (tracker != null) {
+            tracker.failed();
+        }
+    }
+
+    String getTopicName() {
+        return notification.getTopicName();
+    }
+
+    /**
+     * @return the notification, as it is sent in a batch
+     */
+    Notification getNotification() {
+        return notification;
+    }
+
+    /**
+     * Pushes this notification alone through the given client proxy
+     * @param proxy
+     * @throws RemoteException
+     */
+    void deliverTo(ClientNotificationProxy proxy) throws RemoteException {
+        if (notification.getOffset() != Notification.NO_OFFSET) {
+            // only the batch call carries the offset
+            proxy.receiveNotifications(Collections.singletonList(notification));
+        } else if (notification.hasData()) {
+            proxy.receiveEncodedDataNotification(notification.getData(), notification.getTopicName());
+        } else {
+            proxy.receiveNotification(notification.getTopicName());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ro.top.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import ro.top.proxy.DeliveryReport;
+
+/**
+ * Counts the outcomes of a confirmed publish, across all the outboxes it fanned out to. <br>
+ * Every subscriber the notification is handed to is expected first and then counted as 
+ * delivered or failed by its outbox; once the publish is sealed and nothing is expected 
+ * anymore, the report is handed over, exactly once
+ * @author Alexandru Topala
+ */
+final class DeliveryTracker {
+    private final long publishId;
+    private final String topicName;
+    private final long startNanos;
+    private final Consumer<DeliveryReport> onComplete;
+
+    /**
+     * The outcomes still expected, plus one until the publish is sealed
+     */
+    private final AtomicInteger pending;
+    private final AtomicInteger delivered;
+    private final AtomicInteger failed;
+    private volatile int filtered;
+
+    /**
+     * @param publishId - the id the publisher gave to the publish
+     * @param topicName
+     * @param onComplete - receives the report
+     */
+    DeliveryTracker(long publishId, String topicName, Consumer<DeliveryReport> onComplete) {
+        this.publishId = publishId;
+        this.topicName = topicName;
+        this.startNanos = System.nanoTime();
+        this.onComplete = onComplete;
+        this.pending = new AtomicInteger(1);
+        this.delivered = new AtomicInteger();
+        this.failed = new AtomicInteger();
+    }
+
+    /**
+     * Expects the outcome of one more subscriber
+     */
+    void expect() {
+        pending.incrementAndGet();
+    }
+
+    void delivered() {
+        delivered.incrementAndGet();
+        release();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+        release();
+    }
+
+    /**
+     * @param count - how many subscribers were skipped by their filters
+     */
+    void filtered(int count) {
+        filtered = count;
+    }
+
+    /**
+     * Called once the publish was handed to all its subscribers
+     */
+    void seal() {
+        release();
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            onComplete.accept(new DeliveryReport(publishId, topicName, delivered.get(), failed.get(), 
+                    filtered, System.nanoTime() - startNanos));
+        }
+    }
+}
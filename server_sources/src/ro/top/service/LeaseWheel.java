@@ -0,0 +1,87 @@
+package ro.top.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Finds the clients whose leases expired, with a hashed timing wheel. <br>
+ * Every client sits in the bucket of the tick its lease was due to expire at.
+ * Renewing a lease only moves the expiry time kept by the client, so it takes no lock;
+ * when the wheel reaches the bucket, a renewed client is moved to the bucket of its new
+ * expiry and only the others are reported. This way every tick handles only the clients
+ * that were due in it, however many clients are registered. <br>
+ * Expiries further away than a turn of the wheel just go around it
+ * @author Alexandru Topala
+ */
+final class LeaseWheel {
+    private final long tickMillis;
+    private final List<ClientRecord>[] buckets;
+
+    /**
+     * The last tick handled, guarded by this
+     */
+    private long currentTick;
+
+    /**
+     * @param size - the number of buckets
+     * @param tickMillis - the time covered by a bucket
+     * @param now - the current time, in milliseconds
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    LeaseWheel(int size, long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Starts watching the lease of a client
+     * @param client
+     */
+    synchronized void schedule(ClientRecord client) {
+        place(client);
+    }
+
+    /**
+     * Handles all the ticks up to now
+     * @param now - the current time, in milliseconds
+     * @param stillRegistered - tells whether a client is still registered; the others are dropped
+     * @return the clients whose leases expired
+     */
+    synchronized List<ClientRecord> advance(long now, Predicate<ClientRecord> stillRegistered) {
+        long target = now / tickMillis;
+        List<ClientRecord> expired = new ArrayList<>();
+        // after a long pause every bucket is handled once, the expiry times are absolute anyway
+        long from = Math.max(currentTick + 1, target - buckets.length + 1);
+        currentTick = target;
+        for (long tick = from; tick <= target; tick++) {
+            int index = (int) (tick % buckets.length);
+            List<ClientRecord> due = buckets[index];
+            if (due.isEmpty()) {
+                continue;
+            }
+            buckets[index] = new ArrayList<>();
+            for (ClientRecord client : due) {
+                if (!stillRegistered.test(client)) {
+                    continue;
+                }
+                if (client.getLeaseExpiry() <= now) {
+                    expired.add(client);
+                } else {
+                    place(client);
+                }
+            }
+        }
+        return expired;
+    }
+
+    private void place(ClientRecord client) {
+        // the bucket after the expiry, so the lease is over when the bucket is handled
+        long tick = Math.max(client.getLeaseExpiry() / tickMillis + 1, currentTick + 1);
+        buckets[(int) (tick % buckets.length)].add(client);
+    }
+}
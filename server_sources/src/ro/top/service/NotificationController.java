@@ -1,6 +1,7 @@
 
 package ro.top.service;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.NetworkInterface;
@@ -10,91 +11,214 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import ro.top.dispatch.Dispatcher;
+import ro.top.filter.Filter;
 import ro.top.exception.UninitializedNotificationServerException;
 import ro.top.exception.UnregistredUserException;
+import ro.top.log.HistoryRings;
+import ro.top.log.HistorySettings;
+import ro.top.log.LogSettings;
+import ro.top.log.TopicLogs;
+import ro.top.log.TopicRecords;
 import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
+import ro.top.proxy.SubscribeOptions;
+import ro.top.proxy.TopicNames;
+import ro.top.transport.RmiServerTransport;
+import ro.top.transport.ServerTransport;
+import ro.top.transport.TimeoutSocketFactory;
 
 /**
  *
  * @author Alexandru Topala
  */
 public final class NotificationController {
-    private static final String NOTIFICATION_SERVER_NAME = "PushNotificationServerTop";
     private static final String CLIENT_NAME_PREFIX = "ClientNotificationServer";
+    
+    /**
+     * Stands for data that could not be decoded, it has no fields for the filters
+     */
+    private static final Object UNDECODABLE = new Object();
     private static NotificationController singleton;
-    private static long idGenerater = 0;
+    private static final AtomicLong idGenerater = new AtomicLong();
     public static final int DEFAULT_SERVER_PORT = 4444;
     public final int PORT;
    
     
     /**
-     * key - the auto-generated client id
-     * value - the proxy of key client
+     * The registered clients: their proxies, sockets, outboxes and topics
      */
-    private final Map<String, Optional<ClientNotificationProxy>> clientsRegistry;
+    private final ClientTable clients;
     
     /**
-     * key - the auto-generated client id
-     * value - the client socket
+     * key - the topic
+     * value - the handles of the clients that subscribed to key topic
      */
-    private final Map<String, String> clientsSocket;
+    private final Map<String, SubscriberSet> clientsSubscriptions;
     
     /**
-     * key - the topic
-     * value - a list formed the clients ids that subscribed to key topic
+     * The subscriptions to topic patterns, like "prices.eu.*" or "prices.#"
+     */
+    private final TopicTrie patternSubscriptions;
+    
+    /**
+     * How many notifications may wait for a single client before new ones get dropped
+     */
+    public final static int DEFAULT_OUTBOX_CAPACITY = 1024;
+    
+    /**
+     * How many notifications may be pushed to a client in a single call
+     */
+    public final static int DEFAULT_MAX_BATCH_SIZE = 64;
+    
+    /**
+     * After how many consecutive failed pushes a client is not called anymore, 
+     * and how often, in milliseconds, it is probed then
+     */
+    public final static int DEFAULT_FAILURE_THRESHOLD = 3;
+    public final static long DEFAULT_PROBE_MILLIS = 2000;
+    private final OutboxSettings outboxSettings;
+    
+    /**
+     * How long, in milliseconds, stopServer waits for the pending notifications to be pushed
+     */
+    private final static long STOP_FLUSH_TIMEOUT = 5000;
+    
+    /**
+     * How long a client stays registered without any sign of life, by default
      */
-    private final Map<String, List<String>> clientsSubscriptions;
+    public final static long DEFAULT_LEASE_MILLIS = 30000;
+    private final long leaseMillis;
     
     /**
-     * A queue with clients that unexpectedly closed the connection with the server
-     * The clients from this queue will be deleted from the server at every DELETE_INTERVAL seconds
+     * The leases are checked at every LEASE_TICK milliseconds, by a wheel that 
+     * covers LEASE_WHEEL_SIZE ticks
+     */
+    private final static long LEASE_TICK = 1000;
+    private final static int LEASE_WHEEL_SIZE = 512;
+    private final LeaseWheel leases;
+    
+    /**
+     * A set with clients that unexpectedly closed the connection with the server
+     * The clients from this queue will be deleted from the server at the next LEASE_TICK,
+     * along with the clients whose leases expired
      */
-    private final static int DELETE_INTERVAL = 30;
     private final Set<String> lostClients;
     private final ScheduledExecutorService lostClientsRemover;
     
     /**
-     * The executor that asynchronously notify the clients 
+     * The dispatcher that runs the outboxes drain tasks
      */
-    private ExecutorService notificationPusher;
+    private final Dispatcher notificationPusher;
     
-    private NotificationController(int port) {
-        try {
-            this.PORT = port;
-            init(port);
-        } catch(MalformedURLException | RemoteException e) {
-            e.printStackTrace();
-            throw new UninitializedNotificationServerException();
-        }
-        clientsRegistry = new ConcurrentHashMap<>();
-        clientsSocket = new ConcurrentHashMap<>();
+    /**
+     * Delays the outboxes drain tasks by the batch window
+     */
+    private final ScheduledExecutorService batchTimer;
+    
+    /**
+     * Exposes this server to the clients
+     */
+    private final ServerTransport transport;
+    
+    /**
+     * The durable logs of the topics, null if the notifications are not kept
+     */
+    private final TopicLogs logs;
+    
+    /**
+     * The last notifications of the topics, kept in memory for the clients 
+     * catching up after an outage, null if no history is kept
+     */
+    private final HistoryRings histories;
+    
+    /**
+     * How many bytes of retained data are kept by default, for all the topics
+     */
+    public final static long DEFAULT_MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+    
+    /**
+     * The last data of the retained topics, null if no topic is retained
+     */
+    private final RetainedValues retained;
+    
+    /**
+     * How many lanes publish the queued notifications by default, 
+     * and how many notifications may wait in each of them
+     */
+    public final static int DEFAULT_PUBLISH_LANES = 4;
+    public final static int DEFAULT_PUBLISH_QUEUE_CAPACITY = 4096;
+    
+    /**
+     * Publishes the notifications acknowledged as soon as they are queued
+     */
+    private final PublishLanes publishLanes;
+    
+    private NotificationController(Builder builder) {
+        this.PORT = builder.port;
+        clients = new ClientTable();
         clientsSubscriptions = new ConcurrentHashMap<>();
-        lostClients = new HashSet<>();
+        patternSubscriptions = new TopicTrie();
+        lostClients = ConcurrentHashMap.newKeySet();
+        leaseMillis = builder.leaseMillis;
+        leases = new LeaseWheel(LEASE_WHEEL_SIZE, LEASE_TICK, System.currentTimeMillis());
+        histories = builder.historySettings != null ? new HistoryRings(builder.historySettings) : null;
+        retained = builder.retainRules.isEmpty() ? null 
+                : new RetainedValues(builder.retainRules, builder.maxRetainedBytes);
+        publishLanes = new PublishLanes(builder.publishLanes, builder.publishQueueCapacity);
         
-        notificationPusher = Executors.newCachedThreadPool();
+        notificationPusher = builder.dispatcher != null ? builder.dispatcher : Dispatcher.builder().build();
+        batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "notification-batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        outboxSettings = new OutboxSettings(builder.outboxCapacity, builder.maxBatchSize, 
+                builder.batchWindowMillis, builder.failureThreshold, builder.probeMillis, leaseMillis,
+                notificationPusher, batchTimer);
         
         lostClientsRemover = Executors.newScheduledThreadPool(4);
         lostClientsRemover.scheduleWithFixedDelay(() -> deleteAllLostClients(), 
-                DELETE_INTERVAL,
-                DELETE_INTERVAL,
-                TimeUnit.SECONDS
+                LEASE_TICK,
+                LEASE_TICK,
+                TimeUnit.MILLISECONDS
         );
+        
+        transport = builder.transport != null ? builder.transport : new RmiServerTransport();
+        TopicLogs topicLogs = null;
+        try {
+            topicLogs = builder.logSettings != null ? new TopicLogs(builder.logSettings) : null;
+            transport.start(PORT, new NotificationService());
+        } catch(IOException e) {
+            e.printStackTrace();
+            if (topicLogs != null) {
+                topicLogs.close();
+            }
+            publishLanes.close();
+            notificationPusher.shutdown();
+            batchTimer.shutdown();
+            lostClientsRemover.shutdown();
+            throw new UninitializedNotificationServerException();
+        }
+        logs = topicLogs;
     }
     
     /**
@@ -104,15 +228,18 @@ public final class NotificationController {
      */
     public static NotificationController getInstance(int port) {
         if (singleton == null) {
-            synchronized(NotificationController.class) {
-                if (singleton == null) {
-                    singleton = new NotificationController(port);
-                }
-            }
+            return builder().port(port).build();
         }
         return singleton;
     }
     
+    /**
+     * @return a builder for configuring the notification server before starting it
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+    
     
     /**
      * Initialize the notification server using the default PORT = 4444
@@ -122,210 +249,514 @@ public final class NotificationController {
         return getInstance(DEFAULT_SERVER_PORT);
     }
         
-    private void init(int port) throws RemoteException, MalformedURLException {
-        Registry registry;
-        try {
-            registry = LocateRegistry.createRegistry(port);
-        } catch (RemoteException e) {
-            registry = LocateRegistry.getRegistry("localhost", port);
-        }
-        registry.rebind(NOTIFICATION_SERVER_NAME, new NotificationService());
-        Logger.getLogger(NotificationController.class.getName())
-                .log(Level.INFO,"Server registry named " + NOTIFICATION_SERVER_NAME + " started successfully at {0}", port);
-        //Naming.rebind("rmi://localhost" + PORT + "/" + NOTIFICATION_SERVER_NAME, new NotificationService());
-    }    
-    
     String registerClient(String clientSocket) {
-        String clientName = CLIENT_NAME_PREFIX + idGenerater++;
-        clientsRegistry.put(clientName, Optional.empty());
-        clientsSocket.put(clientName, clientSocket);
+        return registerClient(clientSocket, null);
+    }
+    
+    String registerClient(String clientSocket, ClientNotificationProxy callback) {
+        String clientName = CLIENT_NAME_PREFIX + idGenerater.getAndIncrement();
+        ClientRecord client = clients.register(clientName, clientSocket, callback);
+        client.renewLease(System.currentTimeMillis() + leaseMillis);
+        leases.schedule(client);
         return clientName;
     }
     
+    /**
+     * Keeps the client registered for another lease
+     * @param clientId
+     * @return the lease duration, in milliseconds, or -1 if the client is not registered
+     */
+    long renewLease(String clientId) {
+        ClientRecord client = clients.get(clientId);
+        if (client == null) {
+            return -1;
+        }
+        client.renewLease(System.currentTimeMillis() + leaseMillis);
+        return leaseMillis;
+    }
+    
     void unregisterClient(String clientName) {
-        clientsRegistry.remove(clientName);
-        clientsSocket.remove(clientName);
-        clientsSubscriptions.forEach((k, v) -> v.removeIf(s -> s.equals(clientName)));
+        ClientRecord client = forgetClient(clientName);
+        if (client == null) {
+            return;
+        }
+        client.topics.forEach(topicName -> removeSubscribers(topicName, Collections.singleton(client.handle)));
+    }
+    
+    /**
+     * Unregisters all the given clients at once. 
+     * Each affected topic is updated only once, no matter how many of its subscribers are evicted
+     * @param clientNames
+     */
+    void evictClients(Collection<String> clientNames) {
+        Map<String, Set<Integer>> evictedByTopic = new HashMap<>();
+        clientNames.forEach(clientName -> {
+            ClientRecord client = forgetClient(clientName);
+            if (client != null) {
+                client.topics.forEach(topicName -> evictedByTopic
+                        .computeIfAbsent(topicName, t -> new HashSet<>())
+                        .add(client.handle));
+            }
+        });
+        evictedByTopic.forEach(this::removeSubscribers);
+    }
+    
+    private void removeSubscribers(String topicName, Collection<Integer> handles) {
+        if (TopicNames.isPattern(topicName)) {
+            patternSubscriptions.remove(topicName, handles);
+            return;
+        }
+        SubscriberSet subscribers = clientsSubscriptions.get(topicName);
+        if (subscribers != null) {
+            subscribers.removeAll(handles);
+        }
+    }
+    
+    /**
+     * Removes the client from the table and closes its outbox, leaving its subscriptions
+     * @return the record of the client, or null if the client was not registered
+     */
+    private ClientRecord forgetClient(String clientName) {
+        ClientRecord client = clients.remove(clientName);
+        if (client != null && client.getOutbox() != null) {
+            client.getOutbox().close();
+        }
+        return client;
     }
     
     void subscribe(String topicName, String clientId) throws UnregistredUserException, NotBoundException, MalformedURLException, MalformedURLException, RemoteException {
-        if (clientsRegistry.get(clientId) == null) {
-            throw new UnregistredUserException();
+        subscribe(topicName, clientId, SubscribeOptions.defaults());
+    }
+    
+    void subscribe(String topicName, String clientId, SubscribeOptions options) throws UnregistredUserException, NotBoundException, MalformedURLException, RemoteException {
+        Filter filter = options.getFilter() != null ? Filter.compile(options.getFilter()) : null;
+        boolean replay = options.getFromOffset() != SubscribeOptions.LIVE;
+        TopicRecords log = replay ? recordsOf(topicName) : null;
+        if (replay && log == null) {
+            throw new IllegalArgumentException("Topic " + topicName + " is not kept in a log or a history, it cannot be replayed");
         }
-        Optional<ClientNotificationProxy> optionalProxy = clientsRegistry.get(clientId);
-        if (!optionalProxy.isPresent()) {
-            String clientSocket = clientsSocket.get(clientId);
-            optionalProxy = Optional.of(getProxy(clientSocket, clientId));
-            clientsRegistry.put(clientId, optionalProxy);
+        ClientRecord client = clients.get(clientId);
+        if (client == null) {
+            throw new UnregistredUserException();
         }
+        client.renewLease(System.currentTimeMillis() + leaseMillis);
+        ClientOutbox outbox = outboxOf(client);
         
-        if (!clientsSubscriptions.containsKey(topicName)) {
-            clientsSubscriptions.put(topicName, new CopyOnWriteArrayList<>());
+        if (TopicNames.isPattern(topicName)) {
+            client.topics.add(topicName);
+            if (retained == null) {
+                patternSubscriptions.add(topicName, client.handle, filter);
+                return;
+            }
+            retained.withAllLocks(() -> {
+                if (patternSubscriptions.add(topicName, client.handle, filter)) {
+                    deliverRetained(topicName, outbox, filter);
+                }
+            });
+            return;
+        }
+        if (!replay) {
+            if (retained == null || !retained.isRetained(topicName)) {
+                addSubscriber(topicName, client, filter);
+                return;
+            }
+            // the retained values reach the new subscriber before any newer live notification
+            synchronized (retained.lockFor(topicName)) {
+                if (addSubscriber(topicName, client, filter)) {
+                    deliverRetained(topicName, outbox, filter);
+                }
+            }
+            return;
         }
+        // nothing is published on the topic meanwhile, so the live notifications
+        // start right after the replayed ones
+        synchronized (log) {
+            addSubscriber(topicName, client, filter);
+            outbox.replay(log, options.getFromOffset(), log.getNextOffset(), filter);
+        }
+    }
+    
+    /**
+     * Subscribes the client to all the topics, or to none of them if any subscription fails
+     * @param topicNames
+     * @param clientId
+     */
+    void subscribeAll(List<String> topicNames, String clientId) throws UnregistredUserException, NotBoundException, MalformedURLException, RemoteException {
+        int subscribed = 0;
+        try {
+            for (String topicName : topicNames) {
+                subscribe(topicName, clientId);
+                subscribed++;
+            }
+        } catch (UnregistredUserException | NotBoundException | RemoteException | RuntimeException ex) {
+            unsubscribeAll(topicNames.subList(0, subscribed), clientId);
+            throw ex;
+        }
+    }
+    
+    void unsubscribeAll(List<String> topicNames, String clientId) {
+        topicNames.forEach(topicName -> unsubscribe(topicName, clientId));
+    }
+    
+    /**
+     * @return true if the client was not subscribed to the topic already
+     */
+    private boolean addSubscriber(String topicName, ClientRecord client, Filter filter) {
+        client.topics.add(topicName);
+        boolean[] added = new boolean[1];
+        // adding inside compute, so a concurrent unsubscribe cannot drop the set meanwhile
+        clientsSubscriptions.compute(topicName, (t, subscribers) -> {
+            SubscriberSet set = subscribers != null ? subscribers : new SubscriberSet();
+            added[0] = set.add(client.handle, filter);
+            return set;
+        });
         
-        if (!clientsSubscriptions.get(topicName).contains(clientId)) {
-            clientsSubscriptions.get(topicName).add(clientId);
+        if (added[0]) {
             // TODO: remove these
-            System.out.println(clientId + " vrea si el sa stie"); // DEBUG
+            System.out.println(client.id + " vrea si el sa stie"); // DEBUG
+        }
+        return added[0];
+    }
+    
+    /**
+     * Hands the values retained for the topic, or for the topics matching the pattern,
+     * to the outbox of a new subscriber
+     */
+    private void deliverRetained(String topicName, ClientOutbox outbox, Filter filter) {
+        for (Delivery delivery : retained.deliveriesFor(topicName)) {
+            Notification notification = delivery.getNotification();
+            if (filter == null || filter.test(decodeOnce(notification.getData(), notification.getTopicName()).get())) {
+                outbox.offer(delivery);
+            }
+        }
+    }
+    
+    /**
+     * @return the outbox of the client, opened on its first use
+     */
+    private ClientOutbox outboxOf(ClientRecord client) throws NotBoundException, MalformedURLException, RemoteException {
+        if (client.getProxy() == null) {
+            client.setProxy(getProxy(client.socket, client.id));
         }
+        return client.openOutbox(outboxSettings, this::markLost, this::renewLease);
     }
     
     void unsubscribe(String topicName, String clientId) {
-        if (!clientsSubscriptions.containsKey(topicName)) {
+        ClientRecord client = clients.get(clientId);
+        if (client == null) {
             return;
         }
-        
-        clientsSubscriptions.get(topicName).remove(clientId);
-        if (clientsSubscriptions.get(topicName).isEmpty()) {
-            clientsSubscriptions.remove(topicName);
+        client.renewLease(System.currentTimeMillis() + leaseMillis);
+        client.topics.remove(topicName);
+        if (TopicNames.isPattern(topicName)) {
+            patternSubscriptions.remove(topicName, Collections.singleton(client.handle));
+            return;
         }
+        clientsSubscriptions.computeIfPresent(topicName, (t, subscribers) -> {
+            subscribers.remove(client.handle);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
     }
     
     void deleteTopic(String topicName, boolean notifySubscribers, Object data) {
-        if (!clientsSubscriptions.containsKey(topicName)) {
+        if (data == null || !notifySubscribers) {
+            deleteTopic(topicName, notifySubscribers, (EncodedPayload) null);
             return;
         }
-        
+        EncodedPayload payload = encode(data, topicName);
+        if (payload != null) {
+            deleteTopic(topicName, notifySubscribers, payload);
+        }
+    }
+    
+    void deleteTopic(String topicName, boolean notifySubscribers, EncodedPayload data) {
+        if (retained != null && !TopicNames.isPattern(topicName)) {
+            retained.remove(topicName);
+        }
+        SubscriberSet subscribers = TopicNames.isPattern(topicName) 
+                ? patternSubscriptions.removeAll(topicName) 
+                : clientsSubscriptions.remove(topicName);
+        if (subscribers == null) {
+            return;
+        }
+        int[] handles = subscribers.snapshot().handles;
+        for (int handle : handles) {
+            ClientRecord client = clients.get(handle);
+            if (client != null) {
+                client.topics.remove(topicName);
+            }
+        }
         if (!notifySubscribers) {
-            clientsSubscriptions.remove(topicName);
             return;
         }
         
-        List<Callable<String>> tasks = new ArrayList<>();
-        
-        clientsSubscriptions.get(topicName).forEach(cid -> {
-            clientsRegistry.get(cid).ifPresent(proxy -> {
-                tasks.add(() -> {
-                    try {   
-                       if (data == null)
-                           proxy.receiveNotification(topicName); 
-                       else 
-                           proxy.receiveDataNotification(data, topicName);
-                    } catch (RemoteException e) {
-                        Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, 
-                                           "Connection with client " + cid + " was unexpectedly closed. Client will be removed...", 
-                                           e.getMessage());
-
-                       synchronized (NotificationController.class) {
-                           lostClients.add(cid);
-                       }
-                       return "fail";
-                    }
-                    return "success";
-                });
-            });
-        });
-        
-        try {
-            notificationPusher.invokeAll(tasks);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, "Clients were not notified", ex);
-            
-        }
+        enqueue(handles, data == null ? Delivery.of(topicName) : Delivery.of(data, topicName));
     }
     
     boolean exists(String topicName) {
-        return clientsSubscriptions.containsKey(topicName);
+        return clientsSubscriptions.containsKey(topicName) || patternSubscriptions.get(topicName) != null;
     }
     
     void notifyTopic(String topicName) {
-        if (!exists(topicName)) {
+        publish(topicName, Delivery.of(topicName), null, recordsOf(topicName));
+    }
+    
+    void dataNotifyTopic(Object data, String topicName) {
+        TopicRecords log = recordsOf(topicName);
+        if (log == null && !hasSubscriptions(topicName) 
+                && (retained == null || !retained.isRetained(topicName))) {
             return;
         }
         
-        List<Callable<String>> tasks = new ArrayList<>();
-        
-        clientsSubscriptions.get(topicName).forEach(
-            cid -> clientsRegistry.get(cid).ifPresent(
-                proxy ->  {
-                    tasks.add(() -> {
-                        try {
-                            //TODO : remove those
-                            proxy.receiveNotification(topicName);
-                            System.out.println("Client " + cid + " was notified...successfully"); // DEBUG
-                        } catch (Exception ex) {
-                            System.out.println("Client " + cid + " was notified...not"); // DEBUG
-                            Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, 
-                                    "Connection with client " + cid + " was unexpectedly closed. Client will be removed...", 
-                                    ex.getMessage());
-
-                            synchronized (NotificationController.class) {
-                                lostClients.add(cid);                                    
-                            }
-                            return "fail";
-                        }
-                        return "success";
-                    });
-                }
-            )
-        );
-        
+        EncodedPayload payload = encode(data, topicName);
+        if (payload == null) {
+            return;
+        }
+        publish(topicName, Delivery.of(payload, topicName), () -> data, log);
+    }
+    
+    void dataNotifyTopic(EncodedPayload data, String topicName) {
+        publish(topicName, Delivery.of(data, topicName), decodeOnce(data, topicName), recordsOf(topicName));
+    }
+    
+    /**
+     * Queues the notification for publishing and returns right away, however many 
+     * subscribers the topic has. The queued notifications of a topic are published 
+     * in the order they were queued; they may interleave with the ones published directly
+     * @param data - the encoded data, null for a notification without data
+     * @param topicName
+     * @return the sequence number of the notification
+     */
+    long publishQueued(EncodedPayload data, String topicName) {
+        return publishLanes.accept(topicName, data == null 
+                ? () -> notifyTopic(topicName) 
+                : () -> dataNotifyTopic(data, topicName));
+    }
+    
+    /**
+     * Publishes the notifications one after the other, each one as if it had been 
+     * published on its own
+     * @param notifications 
+     */
+    void publishBatch(List<Notification> notifications) {
+        for (Notification notification : notifications) {
+            if (notification.hasData()) {
+                dataNotifyTopic(notification.getData(), notification.getTopicName());
+            } else {
+                notifyTopic(notification.getTopicName());
+            }
+        }
+    }
+    
+    /**
+     * Publishes the notification and sends the publisher a report once every subscriber 
+     * received it or failed
+     * @param data - null for a notification without data
+     * @param topicName
+     * @param clientId - the publisher
+     * @param publishId - the id of the report
+     */
+    void publishConfirmed(EncodedPayload data, String topicName, String clientId, long publishId) 
+            throws UnregistredUserException, NotBoundException, MalformedURLException, RemoteException {
+        ClientRecord publisher = clients.get(clientId);
+        if (publisher == null) {
+            throw new UnregistredUserException();
+        }
+        publisher.renewLease(System.currentTimeMillis() + leaseMillis);
+        ClientOutbox reports = outboxOf(publisher);
+        DeliveryTracker tracker = new DeliveryTracker(publishId, topicName, reports::report);
+        Delivery delivery = data != null ? Delivery.of(data, topicName) : Delivery.of(topicName);
         try {
-            notificationPusher.invokeAll(tasks);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, "Clients were not notified", ex);
+            publish(topicName, delivery.trackedBy(tracker), data != null ? decodeOnce(data, topicName) : null, 
+                    recordsOf(topicName));
+        } finally {
+            tracker.seal();
         }
     }
     
-    void dataNotifyTopic(Object data, String topicName) {
-        if (!exists(topicName)) {
+    /**
+     * @param data - supplies the data for the filters, null for a notification without data
+     * @param log - the log or the history of the topic, null if neither is kept
+     */
+    private void publish(String topicName, Delivery delivery, Supplier<Object> data, TopicRecords log) {
+        if (log == null) {
+            fanOut(topicName, delivery, data);
             return;
         }
-        
-        List<Callable<String>> tasks = new ArrayList<>();
-        
-        clientsSubscriptions.get(topicName).forEach(
-            cid -> clientsRegistry.get(cid).ifPresent(
-                proxy -> {
-                    tasks.add(() -> {
-                        try {
-                            // TODO: remove those
-                            proxy.receiveDataNotification(data, topicName);
-                            System.out.println("Client " + cid + " was notified...successfully"); // DEBUG
-                        } catch (RemoteException ex) { 
-                            System.out.println("Client " + cid + " was notified...not"); // DEBUG
-                            Logger.getGlobal().log(Level.SEVERE, 
-                                    "Connection with client " + cid + " was unexpectedly closed. Client will be removed...", 
-                                    ex.getMessage());
-                            synchronized (NotificationController.class) {
-                                lostClients.add(cid);
-                            }
-                            return "fail";
-                        }
-                        return "success";
-                    });
+        // the offsets reach every outbox in order, and a subscriber replaying 
+        // the log cannot miss what is published meanwhile
+        synchronized (log) {
+            long offset = log.append(delivery.getNotification().getData());
+            fanOut(topicName, delivery.atOffset(offset), data);
+        }
+    }
+    
+    /**
+     * Hands the delivery to the subscribers of the topic, retaining its data first if the topic is retained
+     */
+    private void fanOut(String topicName, Delivery delivery, Supplier<Object> data) {
+        EncodedPayload payload = delivery.getNotification().getData();
+        if (retained == null || payload == null || !retained.isRetained(topicName)) {
+            enqueue(topicName, delivery, data);
+            return;
+        }
+        synchronized (retained.lockFor(topicName)) {
+            retained.put(topicName, payload, data != null ? data : decodeOnce(payload, topicName));
+            enqueue(topicName, delivery, data);
+        }
+    }
+    
+    private void enqueue(String topicName, Delivery delivery, Supplier<Object> data) {
+        List<SubscriberSet.Snapshot> matched = subscriptionsOf(topicName);
+        int[] handles = SubscriberSet.select(matched, data);
+        if (delivery.getTracker() != null && data != null) {
+            delivery.getTracker().filtered(SubscriberSet.select(matched, null).length - handles.length);
+        }
+        if (handles.length > 0) {
+            enqueue(handles, delivery);
+        }
+    }
+    
+    /**
+     * @param topicName
+     * @return the durable log of the topic, else its history, or null if neither is kept
+     */
+    private TopicRecords recordsOf(String topicName) {
+        if (TopicNames.isPattern(topicName)) {
+            return null;
+        }
+        TopicRecords log = logs != null ? logs.get(topicName) : null;
+        if (log == null && histories != null) {
+            log = histories.get(topicName);
+        }
+        return log;
+    }
+    
+    private boolean hasSubscriptions(String topicName) {
+        return clientsSubscriptions.containsKey(topicName) || !patternSubscriptions.isEmpty();
+    }
+    
+    /**
+     * @param topicName - a concrete topic
+     * @return the subscribers of the topic itself and of the patterns matching it; 
+     * SubscriberSet.select picks the clients whose filters accept the data
+     */
+    private List<SubscriberSet.Snapshot> subscriptionsOf(String topicName) {
+        List<SubscriberSet.Snapshot> matched = new ArrayList<>(2);
+        SubscriberSet subscribers = clientsSubscriptions.get(topicName);
+        if (subscribers != null) {
+            matched.add(subscribers.snapshot());
+        }
+        if (!patternSubscriptions.isEmpty()) {
+            patternSubscriptions.collect(topicName, matched);
+        }
+        return matched;
+    }
+    
+    /**
+     * The data is decoded only if some subscriber has a filter, and then only once. 
+     * Data that cannot be decoded here matches no filter
+     */
+    private Supplier<Object> decodeOnce(EncodedPayload data, String topicName) {
+        Object[] decoded = new Object[1];
+        boolean[] done = new boolean[1];
+        return () -> {
+            if (!done[0]) {
+                done[0] = true;
+                try {
+                    decoded[0] = data.decode();
+                } catch (IOException | ClassNotFoundException ex) {
+                    Logger.getLogger(NotificationController.class.getName()).log(Level.WARNING, 
+                            "Data for topic " + topicName + " could not be decoded, subscribers with filters were not notified", ex);
+                    decoded[0] = UNDECODABLE;
                 }
-            )
-        );
-        
+            }
+            return decoded[0];
+        };
+    }
+    
+    /**
+     * Serializes the data once, so the same bytes can be sent to all the subscribers
+     * @return the encoded data or null if the data could not be serialized
+     */
+    private EncodedPayload encode(Object data, String topicName) {
         try {
-            notificationPusher.invokeAll(tasks);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, "Clients were not notified", ex);
+            return EncodedPayload.encode(data);
+        } catch (IOException ex) {
+            Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, 
+                    "Data for topic " + topicName + " could not be serialized. Clients were not notified", ex);
+            return null;
         }
     }
     
-    int getSubscribersCountForTopic(String topicName) {
-        if (!exists(topicName)) {
-            return 0;
+    /**
+     * Hands the delivery to the outbox of every given client, without waiting 
+     * for any of them to actually receive it
+     */
+    private void enqueue(int[] handles, Delivery delivery) {
+        DeliveryTracker tracker = delivery.getTracker();
+        for (int handle : handles) {
+            ClientRecord client = clients.get(handle);
+            ClientOutbox outbox = client != null ? client.getOutbox() : null;
+            if (tracker != null) {
+                tracker.expect();
+            }
+            if (outbox == null || !outbox.offer(delivery)) {
+                delivery.failed();
+            }
         }
-        return clientsSubscriptions.get(topicName).size();
+    }
+    
+    int getSubscribersCountForTopic(String topicName) {
+        SubscriberSet subscribers = TopicNames.isPattern(topicName) 
+                ? patternSubscriptions.get(topicName) 
+                : clientsSubscriptions.get(topicName);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+    
+    /**
+     * @return the dispatcher pushing the notifications of this server
+     */
+    public Dispatcher getDispatcher() {
+        return notificationPusher;
+    }
+    
+    /**
+     * @return the number of notifications waiting in all the clients outboxes
+     */
+    public long getPendingNotificationsCount() {
+        return clients.outboxes().mapToLong(ClientOutbox::size).sum();
+    }
+    
+    /**
+     * @return the number of queued notifications not published yet
+     */
+    public int getQueuedNotificationsCount() {
+        return publishLanes.size();
     }
     
     public void stopServer(boolean notifySubscribers, Object data) {
+        publishLanes.close();
         clientsSubscriptions.keySet().forEach(topicName -> deleteTopic(topicName, notifySubscribers, data));
         clientsSubscriptions.clear();
-        clientsSocket.clear();
-        clientsRegistry.clear();
-        try {
-            Registry registry = LocateRegistry.getRegistry("localhost", PORT);
-            registry.unbind(NOTIFICATION_SERVER_NAME);
-            System.out.println(Arrays.asList(registry.list()));
-            
-        } catch (RemoteException | NotBoundException ex) {
-            Logger.getLogger(NotificationController.class.getName()).log(Level.SEVERE, null, ex);
+        patternSubscriptions.patterns().forEach(pattern -> deleteTopic(pattern, notifySubscribers, data));
+        awaitOutboxes(STOP_FLUSH_TIMEOUT);
+        clients.outboxes().forEach(ClientOutbox::close);
+        clients.clear();
+        transport.stop();
+        if (logs != null) {
+            logs.close();
+        }
+        if (retained != null) {
+            retained.clear();
+        }
+        if (histories != null) {
+            histories.clear();
         }
         
+        notificationPusher.shutdown();
+        batchTimer.shutdown();
+        lostClientsRemover.shutdown();
         singleton = null;
         
         Logger.getGlobal().info("Top's Notification Server closed");
@@ -335,21 +766,286 @@ public final class NotificationController {
         String [] socket = clientSocket.split(":");
         String host = socket[0];
         int port = Integer.parseInt(socket[1]);
-        Registry registry = LocateRegistry.getRegistry(host, port);
+        Registry registry = LocateRegistry.getRegistry(host, port, new TimeoutSocketFactory());
         return (ClientNotificationProxy) registry.lookup(clientId);
         //return (ClientNotificationProxy) Naming.lookup("rmi://" + clientSocket + "/" + clientId);
     }
     
+    private void markLost(String clientId) {
+        lostClients.add(clientId);
+    }
+    
+    private void awaitOutboxes(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (!clients.outboxes().allMatch(ClientOutbox::isIdle)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     private void deleteAllLostClients() {
-        synchronized (NotificationController.class) {
-            if (lostClients.isEmpty()) {
-                return;
+        List<ClientRecord> expired = leases.advance(System.currentTimeMillis(), 
+                client -> clients.get(client.id) == client);
+        if (lostClients.isEmpty() && expired.isEmpty()) {
+            return;
+        }
+        Set<String> evicted = new LinkedHashSet<>(lostClients);
+        lostClients.removeAll(evicted);
+        expired.forEach(client -> evicted.add(client.id));
+        evicted.forEach(cid -> {
+            ClientRecord client = clients.get(cid);
+            Logger.getGlobal().log(Level.INFO, "Client {0} : {1} it is now deleted", 
+                    new Object[]{cid, client != null ? client.socket : null});
+        });
+        evictClients(evicted);
+    }
+    
+    /**
+     * Configures the notification server. 
+     * build() starts the server, unless it is already running
+     */
+    public static final class Builder {
+        private int port = DEFAULT_SERVER_PORT;
+        private int outboxCapacity = DEFAULT_OUTBOX_CAPACITY;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private long batchWindowMillis = 0;
+        private Dispatcher dispatcher;
+        private ServerTransport transport;
+        private LogSettings logSettings;
+        private HistorySettings historySettings;
+        private final List<RetainedValues.Rule> retainRules = new ArrayList<>();
+        private long maxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+        private long leaseMillis = DEFAULT_LEASE_MILLIS;
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long probeMillis = DEFAULT_PROBE_MILLIS;
+        private int publishLanes = DEFAULT_PUBLISH_LANES;
+        private int publishQueueCapacity = DEFAULT_PUBLISH_QUEUE_CAPACITY;
+        
+        private Builder() {
+        }
+        
+        /**
+         * @param port - where to start the server process on this localhost
+         * @return this builder
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+        
+        /**
+         * @return the port where the server process will be started
+         */
+        public int getPort() {
+            return port;
+        }
+        
+        /**
+         * @param dispatcher - the dispatcher that will push the notifications to the clients. <br>
+         * It is shut down when the server stops
+         * @return this builder
+         */
+        public Builder dispatcher(Dispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+            return this;
+        }
+        
+        /**
+         * @param transport - how the clients reach the server, RmiServerTransport by default. <br>
+         * The clients must use the matching client transport
+         * @return this builder
+         */
+        public Builder transport(ServerTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+        
+        /**
+         * @param outboxCapacity - how many notifications may wait for a single client
+         * before new ones get dropped
+         * @return this builder
+         */
+        public Builder outboxCapacity(int outboxCapacity) {
+            if (outboxCapacity < 1) {
+                throw new IllegalArgumentException("Outbox capacity must be positive (value=" + outboxCapacity + ")");
+            }
+            this.outboxCapacity = outboxCapacity;
+            return this;
+        }
+        
+        /**
+         * @param maxBatchSize - how many notifications may be pushed to a client in a single call
+         * @return this builder
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be positive (value=" + maxBatchSize + ")");
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+        
+        /**
+         * Sets how long the notifications for a client are collected before being pushed
+         * together, unless a full batch is ready sooner. <br>
+         * By default there is no window: the notifications are pushed right away and 
+         * only those that piled up meanwhile are batched
+         * @param window
+         * @param unit
+         * @return this builder
+         */
+        public Builder batchWindow(long window, TimeUnit unit) {
+            if (window < 0) {
+                throw new IllegalArgumentException("Batch window cannot be negative (value=" + window + ")");
+            }
+            this.batchWindowMillis = unit.toMillis(window);
+            return this;
+        }
+        
+        /**
+         * Keeps the notifications of the selected topics in durable logs, on the disk. 
+         * Clients may then subscribe from an offset and get the kept notifications 
+         * replayed before the live ones. <br>
+         * By default no notification is kept
+         * @param logSettings - null for keeping nothing
+         * @return this builder
+         */
+        public Builder durableLog(LogSettings logSettings) {
+            this.logSettings = logSettings;
+            return this;
+        }
+        
+        /**
+         * Keeps the last notifications of the selected topics in memory, outside the heap. 
+         * A client back after a short outage subscribes from the offset following the last 
+         * one it received and gets only the notifications it missed, if they are still kept. <br>
+         * The topics kept in a durable log are caught up from their log instead. 
+         * By default no history is kept
+         * @param historySettings - null for keeping nothing
+         * @return this builder
+         */
+        public Builder history(HistorySettings historySettings) {
+            this.historySettings = historySettings;
+            return this;
+        }
+        
+        /**
+         * Keeps the last data published on the topics matching the pattern and hands it
+         * to every new subscriber of those topics, right when it subscribes
+         * @param pattern - a topic or a topic pattern
+         * @return this builder
+         */
+        public Builder retain(String pattern) {
+            retainRules.add(new RetainedValues.Rule(pattern, null));
+            return this;
+        }
+        
+        /**
+         * Keeps the last data published on the topics matching the pattern for every value
+         * of a field of the data, like the last price of every symbol, and hands all of 
+         * them to every new subscriber of those topics, right when it subscribes
+         * @param pattern - a topic or a topic pattern
+         * @param keyField - the field of the data keying the values, nested with dots: order.symbol
+         * @return this builder
+         */
+        public Builder retain(String pattern, String keyField) {
+            if (keyField == null) {
+                throw new IllegalArgumentException("The key field is null");
+            }
+            retainRules.add(new RetainedValues.Rule(pattern, keyField));
+            return this;
+        }
+        
+        /**
+         * @param maxRetainedBytes - how many bytes of retained data are kept, for all the topics; 
+         * the least recently used values are evicted first
+         * @return this builder
+         */
+        public Builder maxRetainedBytes(long maxRetainedBytes) {
+            if (maxRetainedBytes < 1) {
+                throw new IllegalArgumentException("Retained bytes must be positive (value=" + maxRetainedBytes + ")");
+            }
+            this.maxRetainedBytes = maxRetainedBytes;
+            return this;
+        }
+        
+        /**
+         * Sets how long a client stays registered without any sign of life. 
+         * Every request of the client and every notification pushed to it renews its lease; 
+         * a quiet client renews it with heartbeats. A client whose lease expired is
+         * unregistered within a second. By default the lease lasts 30 seconds
+         * @param lease
+         * @param unit
+         * @return this builder
+         */
+        public Builder leaseTimeout(long lease, TimeUnit unit) {
+            if (unit.toMillis(lease) < LEASE_TICK) {
+                throw new IllegalArgumentException("Lease must last at least " + LEASE_TICK + " ms (value=" + unit.toMillis(lease) + ")");
+            }
+            this.leaseMillis = unit.toMillis(lease);
+            return this;
+        }
+        
+        /**
+         * Sets when a client that keeps failing stops being called. After failureThreshold 
+         * consecutive failed pushes, the notifications for the client wait in its outbox and 
+         * a single push is tried every probe interval; the first one that gets through 
+         * resumes the pushes. A client still unreachable after a whole lease is removed. <br>
+         * By default 3 failures open the circuit and the client is probed every 2 seconds. 
+         * How long a push may take is set by the client, see TimeoutSocketFactory
+         * @param failureThreshold
+         * @param probeInterval
+         * @param unit
+         * @return this builder
+         */
+        public Builder circuitBreaker(int failureThreshold, long probeInterval, TimeUnit unit) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("Failure threshold must be positive (value=" + failureThreshold + ")");
+            }
+            if (unit.toMillis(probeInterval) < 1) {
+                throw new IllegalArgumentException("Probe interval must be at least 1 ms (value=" + unit.toMillis(probeInterval) + ")");
+            }
+            this.failureThreshold = failureThreshold;
+            this.probeMillis = unit.toMillis(probeInterval);
+            return this;
+        }
+        
+        /**
+         * Sets how the notifications queued for publishing are handled. The topics are spread 
+         * over the lanes, each publishing its notifications on a thread of its own; queueing 
+         * a notification only waits while its lane is full. <br>
+         * By default 4 lanes hold up to 4096 notifications each
+         * @param lanes
+         * @param capacity - how many notifications may wait in a lane
+         * @return this builder
+         */
+        public Builder publishQueue(int lanes, int capacity) {
+            if (lanes < 1) {
+                throw new IllegalArgumentException("Publish lanes must be positive (value=" + lanes + ")");
+            }
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Publish queue capacity must be positive (value=" + capacity + ")");
+            }
+            this.publishLanes = lanes;
+            this.publishQueueCapacity = capacity;
+            return this;
+        }
+        
+        /**
+         * Starts the notification server with this configuration
+         * @return singleton - the already running server, if there is one
+         */
+        public NotificationController build() {
+            synchronized(NotificationController.class) {
+                if (singleton == null) {
+                    singleton = new NotificationController(this);
+                }
+                return singleton;
             }
-            lostClients.forEach(cid -> {
-                Logger.getGlobal().log(Level.INFO, "Client {0} : {1} it is now deleted", new Object[]{cid, clientsSocket.get(cid)});
-                unregisterClient(cid);
-            });
-            lostClients.clear();
         }
     }
 }
@@ -1,20 +1,25 @@
 package ro.top.service;
 
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
 import ro.top.proxy.NotificationProxy;
+import ro.top.proxy.SubscribeOptions;
 import static ro.top.service.NotificationController.getInstance;
 
 /**
- * The implementation for the NotificationProxy interface
+ * The implementation for the NotificationProxy interface. 
+ * The server transport exposes it to the clients
  * @author Alexandru Topala
  */
-public class NotificationService extends UnicastRemoteObject implements NotificationProxy {
-    private static final long serialVersionUID = 1L;
+public class NotificationService implements NotificationProxy {
     
-    public NotificationService() throws RemoteException {        
+    public NotificationService() {        
     }
    
     @Override
@@ -25,6 +30,21 @@ public class NotificationService extends UnicastRemoteObject implements Notifica
         getInstance().subscribe(name, clientId);
     }
 
+    @Override
+    public void subscribe(String name, String clientId, SubscribeOptions options) throws Exception {
+        getInstance().subscribe(name, clientId, options);
+    }
+
+    @Override
+    public void subscribeAll(List<String> names, String clientId) throws Exception {
+        getInstance().subscribeAll(names, clientId);
+    }
+
+    @Override
+    public void unsubscribeAll(List<String> names, String clientId) {
+        getInstance().unsubscribeAll(names, clientId);
+    }
+
     @Override
     public void unsubscribe(String name, String clientId) {
         // TODO : delete that
@@ -54,6 +74,20 @@ public class NotificationService extends UnicastRemoteObject implements Notifica
         // TODO : delete that
         Logger.getGlobal().log(Level.INFO, "Topic {0} was delete with {1}", new Object[]{name, data});
         
+        if (data instanceof EncodedPayload) {
+            getInstance().deleteTopic(name, true, (EncodedPayload) data);
+            return;
+        }
+        getInstance().deleteTopic(name, true, data);
+    }
+
+    /**
+     * Deletes the specified topic, notifying all the subscribers with the 
+     * specified data, already encoded by the transport
+     * @param name the name of the topic
+     * @param data data for the subscribers
+     */
+    public void deleteTopic(String name, EncodedPayload data) {
         getInstance().deleteTopic(name, true, data);
     }
 
@@ -70,9 +104,38 @@ public class NotificationService extends UnicastRemoteObject implements Notifica
         // TODO : delete that
         Logger.getGlobal().log(Level.INFO, "Topic {0} was notified with {1}", new Object[]{name, data});
         
+        // the clients send the data already encoded, with their payload codec
+        if (data instanceof EncodedPayload) {
+            getInstance().dataNotifyTopic((EncodedPayload) data, name);
+            return;
+        }
         getInstance().dataNotifyTopic(data, name);
     }
 
+    /**
+     * Send this data, already encoded by the transport, to all subscribers of specified topic
+     * @param data - the data to be sent to the listeners
+     * @param name - the name of the topic
+     */
+    public void dataNotifyTopic(EncodedPayload data, String name) {
+        getInstance().dataNotifyTopic(data, name);
+    }
+
+    @Override
+    public long publishQueued(EncodedPayload data, String name) {
+        return getInstance().publishQueued(data, name);
+    }
+
+    @Override
+    public void publishBatch(List<Notification> notifications) {
+        getInstance().publishBatch(notifications);
+    }
+
+    @Override
+    public void publishConfirmed(EncodedPayload data, String name, String clientId, long publishId) throws Exception {
+        getInstance().publishConfirmed(data, name, clientId, publishId);
+    }
+
     @Override
     public boolean exists(String topicName) {
         return getInstance().exists(topicName);
@@ -91,6 +154,33 @@ public class NotificationService extends UnicastRemoteObject implements Notifica
         return getInstance().registerClient(clientSocket);
     }
 
+    @Override
+    public String registerClient(ClientNotificationProxy callback) {
+        String clientHost;
+        try {
+            clientHost = RemoteServer.getClientHost();
+        } catch (ServerNotActiveException ex) {
+            clientHost = "unknown";
+        }
+        return registerClient(clientHost, callback);
+    }
+
+    /**
+     * Registers a client that can be reached through the given callback, 
+     * without looking it up in a registry
+     * @param clientSocket - the address of the client, for logging
+     * @param callback - the proxy through which the client receives notifications
+     * @return clientId - the auto-generated client id
+     */
+    public String registerClient(String clientSocket, ClientNotificationProxy callback) {
+        return getInstance().registerClient(clientSocket, callback);
+    }
+
+    @Override
+    public long renewLease(String clientId) {
+        return getInstance().renewLease(clientId);
+    }
+
     @Override
     public void unregisterClient(String clientId) {
         // TODO : delete that
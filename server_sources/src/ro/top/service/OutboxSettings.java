@@ -0,0 +1,43 @@
+package ro.top.service;
+
+import java.util.concurrent.ScheduledExecutorService;
+import ro.top.dispatch.Dispatcher;
+
+/**
+ * The configuration and resources shared by all the client outboxes of a server
+ * @author Alexandru Topala
+ */
+final class OutboxSettings {
+    final int capacity;
+    final int maxBatchSize;
+    final long batchWindowMillis;
+    final int failureThreshold;
+    final long probeMillis;
+    final long giveUpMillis;
+    final Dispatcher dispatcher;
+    final ScheduledExecutorService batchTimer;
+
+    /**
+     * @param capacity - the maximum number of notifications waiting for a client
+     * @param maxBatchSize - the maximum number of notifications pushed in a single call
+     * @param batchWindowMillis - how long an outbox waits for more notifications before
+     * pushing an incomplete batch, 0 for pushing right away
+     * @param failureThreshold - how many consecutive failed pushes open the circuit of a client
+     * @param probeMillis - how often a client with an open circuit is probed
+     * @param giveUpMillis - how long a client may stay unreachable before it is removed
+     * @param dispatcher - the dispatcher running the drain tasks
+     * @param batchTimer - delays the drain tasks by the batch window and until the probes
+     */
+    OutboxSettings(int capacity, int maxBatchSize, long batchWindowMillis, 
+            int failureThreshold, long probeMillis, long giveUpMillis,
+            Dispatcher dispatcher, ScheduledExecutorService batchTimer) {
+        this.capacity = capacity;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindowMillis = batchWindowMillis;
+        this.failureThreshold = failureThreshold;
+        this.probeMillis = probeMillis;
+        this.giveUpMillis = giveUpMillis;
+        this.dispatcher = dispatcher;
+        this.batchTimer = batchTimer;
+    }
+}
@@ -0,0 +1,144 @@
+package ro.top.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the notifications accepted without waiting for their fan-out. <br>
+ * A topic always goes to the same lane, so the queued notifications of a topic are
+ * published in the order they were accepted. Every lane has a bounded queue and its own
+ * thread, which takes everything that piled up and publishes it; accepting a notification
+ * only waits when the queue of its lane is full. <br>
+ * The sequence numbers are given in the order the notifications are accepted, across all the topics
+ * @author Alexandru Topala
+ */
+final class PublishLanes {
+    private static final int MAX_GROUP_SIZE = 256;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Stops the thread of a lane once everything queued before it is published
+     */
+    private static final Runnable CLOSE = () -> {};
+
+    private final Lane[] lanes;
+    private final AtomicLong sequence;
+    private volatile boolean closed;
+
+    private static final class Lane {
+        final BlockingQueue<Runnable> pending;
+        final Thread publisher;
+
+        Lane(int capacity, Thread publisher) {
+            this.pending = new ArrayBlockingQueue<>(capacity);
+            this.publisher = publisher;
+        }
+    }
+
+    /**
+     * Starts the threads of the lanes
+     * @param count - the number of lanes
+     * @param capacity - how many notifications may wait in a lane
+     */
+    PublishLanes(int count, int capacity) {
+        this.lanes = new Lane[count];
+        this.sequence = new AtomicLong();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            Thread publisher = new Thread(() -> publish(lanes[index]), "notification-publish-lane-" + i);
+            publisher.setDaemon(true);
+            lanes[i] = new Lane(capacity, publisher);
+        }
+        for (Lane lane : lanes) {
+            lane.publisher.start();
+        }
+    }
+
+    /**
+     * Queues the publish of a notification. Blocks while the lane of the topic is full
+     * @param topicName - picks the lane
+     * @param publish - publishes the notification
+     * @return the sequence number of the notification
+     * @throws IllegalStateException if the lanes are closed
+     */
+    long accept(String topicName, Runnable publish) {
+        Lane lane = lanes[(topicName.hashCode() & 0x7fffffff) % lanes.length];
+        // the numbers of a topic follow the order of its queue
+        synchronized (lane) {
+            if (closed) {
+                throw new IllegalStateException("The server is stopping, the notification for topic "
+                        + topicName + " was not accepted");
+            }
+            long number = sequence.incrementAndGet();
+            try {
+                lane.pending.put(publish);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while queueing a notification for topic " + topicName, ex);
+            }
+            return number;
+        }
+    }
+
+    /**
+     * @return the number of notifications accepted but not published yet
+     */
+    int size() {
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.pending.size();
+        }
+        return size;
+    }
+
+    /**
+     * Stops accepting notifications and waits for the queued ones to be published
+     */
+    void close() {
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                closed = true;
+            }
+        }
+        try {
+            for (Lane lane : lanes) {
+                lane.pending.put(CLOSE);
+            }
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            for (Lane lane : lanes) {
+                lane.publisher.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(Lane lane) {
+        List<Runnable> group = new ArrayList<>(MAX_GROUP_SIZE);
+        while (true) {
+            try {
+                group.add(lane.pending.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            lane.pending.drainTo(group, MAX_GROUP_SIZE - 1);
+            for (Runnable publish : group) {
+                if (publish == CLOSE) {
+                    return;
+                }
+                try {
+                    publish.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(PublishLanes.class.getName()).log(Level.SEVERE,
+                            "A queued notification could not be published", ex);
+                }
+            }
+            group.clear();
+        }
+    }
+}
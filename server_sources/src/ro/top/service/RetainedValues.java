@@ -0,0 +1,269 @@
+package ro.top.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import ro.top.filter.FieldAccess;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.TopicNames;
+
+/**
+ * The last data published on the retained topics, per topic or per topic and key,
+ * kept encoded so a new subscriber gets it without any serialization. <br>
+ * The values are bounded by their total size; the least recently published
+ * or delivered ones are evicted first. <br>
+ * Storing a value and handing it to the current subscribers happen under the
+ * lock of the topic, and so do adding a subscriber and handing it the retained values,
+ * so a subscriber never gets a retained value after the live one replacing it
+ * @author Alexandru Topala
+ */
+final class RetainedValues {
+    /**
+     * The bytes counted for every value, besides its data
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int LOCK_STRIPES = 64;
+    private static final int MAX_CACHED_TOPICS = 65536;
+
+    /**
+     * Which topics are retained and how their values are keyed
+     */
+    static final class Rule {
+        final String pattern;
+
+        /**
+         * null for keeping a single value per topic
+         */
+        final FieldAccess key;
+
+        Rule(String pattern, String keyField) {
+            TopicNames.validate(pattern);
+            this.pattern = pattern;
+            this.key = keyField != null ? FieldAccess.of(keyField) : null;
+        }
+
+        boolean covers(String topicName) {
+            return pattern.equals(topicName) || TopicNames.matches(pattern, topicName);
+        }
+    }
+
+    private static final class Key {
+        final String topicName;
+        final Object key;
+
+        Key(String topicName, Object key) {
+            this.topicName = topicName;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return topicName.equals(that.topicName) && Objects.equals(key, that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return topicName.hashCode() * 31 + Objects.hashCode(key);
+        }
+    }
+
+    private static final Rule NOT_RETAINED = new Rule(TopicNames.ANY_SEGMENTS, null);
+
+    private final List<Rule> rules;
+    private final long maxBytes;
+    private final Object[] locks;
+
+    /**
+     * key - a topic
+     * value - the rule retaining it, NOT_RETAINED if none does
+     */
+    private final Map<String, Rule> rulesByTopic;
+
+    /**
+     * All the values, from the least recently used. Guarded by this, as are the fields below
+     */
+    private final LinkedHashMap<Key, EncodedPayload> values;
+    private final Map<String, Set<Key>> keysByTopic;
+    private long bytes;
+
+    /**
+     * @param rules - which topics are retained
+     * @param maxBytes - the maximum size of the values kept
+     */
+    RetainedValues(List<Rule> rules, long maxBytes) {
+        this.rules = new ArrayList<>(rules);
+        this.maxBytes = maxBytes;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.rulesByTopic = new ConcurrentHashMap<>();
+        this.values = new LinkedHashMap<>(16, 0.75f, true);
+        this.keysByTopic = new HashMap<>();
+    }
+
+    /**
+     * @param topicName - a concrete topic
+     * @return true if the data published on the topic is retained
+     */
+    boolean isRetained(String topicName) {
+        return ruleOf(topicName) != NOT_RETAINED;
+    }
+
+    /**
+     * @param topicName - a concrete topic
+     * @return the lock ordering the publishes and the new subscribers of the topic
+     */
+    Object lockFor(String topicName) {
+        return locks[(topicName.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Runs the action holding the locks of all the topics, for the subscribers of patterns
+     * @param action
+     */
+    void withAllLocks(Runnable action) {
+        withLocks(0, action);
+    }
+
+    private void withLocks(int from, Runnable action) {
+        if (from == locks.length) {
+            action.run();
+            return;
+        }
+        synchronized (locks[from]) {
+            withLocks(from + 1, action);
+        }
+    }
+
+    /**
+     * Keeps the data as the last value of the topic, or of its key
+     * @param topicName - a retained topic
+     * @param payload - the encoded data
+     * @param data - supplies the decoded data, for reading the key
+     */
+    void put(String topicName, EncodedPayload payload, Supplier<Object> data) {
+        Rule rule = ruleOf(topicName);
+        Key key = new Key(topicName, rule.key != null ? rule.key.read(data.get()) : null);
+        synchronized (this) {
+            EncodedPayload previous = values.put(key, payload);
+            bytes += size(payload) - (previous != null ? size(previous) : 0);
+            if (previous == null) {
+                keysByTopic.computeIfAbsent(topicName, t -> new LinkedHashSet<>()).add(key);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @param topicName - a topic or a pattern
+     * @return the values retained for the topic, or for all the topics matching the pattern
+     */
+    synchronized List<Delivery> deliveriesFor(String topicName) {
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Delivery> deliveries = new ArrayList<>();
+        if (!TopicNames.isPattern(topicName)) {
+            addDeliveries(topicName, deliveries);
+            return deliveries;
+        }
+        for (String retainedTopic : new ArrayList<>(keysByTopic.keySet())) {
+            if (TopicNames.matches(topicName, retainedTopic)) {
+                addDeliveries(retainedTopic, deliveries);
+            }
+        }
+        return deliveries;
+    }
+
+    private void addDeliveries(String topicName, List<Delivery> deliveries) {
+        Set<Key> keys = keysByTopic.get(topicName);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            // get marks the value as recently used
+            deliveries.add(Delivery.of(values.get(key), topicName));
+        }
+    }
+
+    /**
+     * Forgets the values of a deleted topic
+     * @param topicName
+     */
+    synchronized void remove(String topicName) {
+        Set<Key> keys = keysByTopic.remove(topicName);
+        if (keys != null) {
+            keys.forEach(key -> bytes -= size(values.remove(key)));
+        }
+    }
+
+    synchronized void clear() {
+        values.clear();
+        keysByTopic.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of values kept
+     */
+    synchronized int size() {
+        return values.size();
+    }
+
+    /**
+     * @return the bytes counted for the values kept
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, EncodedPayload>> eldest = values.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, EncodedPayload> entry = eldest.next();
+            eldest.remove();
+            bytes -= size(entry.getValue());
+            Set<Key> keys = keysByTopic.get(entry.getKey().topicName);
+            keys.remove(entry.getKey());
+            if (keys.isEmpty()) {
+                keysByTopic.remove(entry.getKey().topicName);
+            }
+        }
+    }
+
+    private Rule ruleOf(String topicName) {
+        Rule rule = rulesByTopic.get(topicName);
+        if (rule != null) {
+            return rule;
+        }
+        rule = NOT_RETAINED;
+        for (Rule candidate : rules) {
+            if (candidate.covers(topicName)) {
+                rule = candidate;
+                break;
+            }
+        }
+        if (rulesByTopic.size() < MAX_CACHED_TOPICS) {
+            rulesByTopic.put(topicName, rule);
+        }
+        return rule;
+    }
+
+    private static long size(EncodedPayload payload) {
+        return payload.size() + ENTRY_OVERHEAD;
+    }
+}
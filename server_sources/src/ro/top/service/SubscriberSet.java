@@ -0,0 +1,300 @@
+package ro.top.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+import ro.top.filter.Filter;
+
+/**
+ * The handles of the clients subscribed to a topic. <br>
+ * Membership, add and remove take constant time: the handles are kept in a dense
+ * array, a removed handle is replaced by the last one, and their positions are kept
+ * in an open addressing table, so no boxing is involved. <br>
+ * The dispatch path iterates over a snapshot, without locking. The snapshot is
+ * rebuilt only when it is read after a change, so a burst of joins and leaves
+ * costs a single copy. <br>
+ * Each client may have a content filter, kept in an array parallel to the handles
+ * @author Alexandru Topala
+ */
+final class SubscriberSet {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int[] EMPTY = new int[0];
+    private static final int FREE = -1;
+
+    /**
+     * The handles and the filters of the subscribed clients at some moment. 
+     * The arrays are shared, so they must not be modified
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY_SNAPSHOT = new Snapshot(EMPTY, null);
+
+        final int[] handles;
+
+        /**
+         * null if none of the clients has a filter
+         */
+        final Filter[] filters;
+
+        private Snapshot(int[] handles, Filter[] filters) {
+            this.handles = handles;
+            this.filters = filters;
+        }
+    }
+
+    private int[] members;
+    private Filter[] filters;
+    private int size;
+    private int filtered;
+
+    /**
+     * Open addressing table, with linear probing: slots holds the handles
+     * and positions their position in members
+     */
+    private int[] slots;
+    private int[] positions;
+
+    /**
+     * The members at the time of the last read, null once they changed
+     */
+    private volatile Snapshot snapshot;
+
+    SubscriberSet() {
+        this.members = new int[INITIAL_CAPACITY];
+        this.filters = new Filter[INITIAL_CAPACITY];
+        this.slots = newSlots(INITIAL_CAPACITY * 2);
+        this.positions = new int[INITIAL_CAPACITY * 2];
+        this.snapshot = Snapshot.EMPTY_SNAPSHOT;
+    }
+
+    /**
+     * @param handle
+     * @return true if the client was not subscribed already
+     */
+    boolean add(int handle) {
+        return add(handle, null);
+    }
+
+    /**
+     * Subscribes the client, or replaces its filter if it is subscribed already
+     * @param handle
+     * @param filter - null for receiving all the notifications
+     * @return true if the client was not subscribed already
+     */
+    synchronized boolean add(int handle, Filter filter) {
+        int slot = find(handle);
+        if (slot >= 0) {
+            setFilter(positions[slot], filter);
+            return false;
+        }
+        if (size == members.length) {
+            members = Arrays.copyOf(members, size * 2);
+            filters = Arrays.copyOf(filters, size * 2);
+            rehash(members.length * 2);
+        }
+        insert(handle, size);
+        members[size] = handle;
+        setFilter(size++, filter);
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * @param handle
+     * @return true if the client was subscribed
+     */
+    synchronized boolean remove(int handle) {
+        int slot = find(handle);
+        if (slot < 0) {
+            return false;
+        }
+        int position = positions[slot];
+        delete(slot);
+        setFilter(position, null);
+        int last = members[--size];
+        if (position != size) {
+            members[position] = last;
+            filters[position] = filters[size];
+            filters[size] = null;
+            positions[find(last)] = position;
+        }
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * @param handles
+     * @return true if any of the clients was subscribed
+     */
+    synchronized boolean removeAll(Collection<Integer> handles) {
+        boolean changed = false;
+        for (int handle : handles) {
+            changed |= remove(handle);
+        }
+        return changed;
+    }
+
+    synchronized boolean contains(int handle) {
+        return find(handle) >= 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the subscribed clients at the time of the call
+     */
+    Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = new Snapshot(Arrays.copyOf(members, size), 
+                        filtered > 0 ? Arrays.copyOf(filters, size) : null);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Selects the clients that should receive a notification
+     * @param matched - the snapshots of all the subscriptions covering the notification topic
+     * @param data - supplies the notification data, null for notifications without data, 
+     * which bypass the filters
+     * @return the handles of the clients whose filters accept the data, each handle only once
+     */
+    static int[] select(List<Snapshot> matched, Supplier<Object> data) {
+        int[][] selected = new int[matched.size()][];
+        int count = 0;
+        for (Snapshot candidates : matched) {
+            int[] handles = data == null || candidates.filters == null 
+                    ? candidates.handles 
+                    : accepted(candidates, data);
+            if (handles.length > 0) {
+                selected[count++] = handles;
+            }
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        return count == 1 ? selected[0] : union(selected, count);
+    }
+
+    private static int[] accepted(Snapshot candidates, Supplier<Object> data) {
+        int[] handles = new int[candidates.handles.length];
+        int count = 0;
+        for (int i = 0; i < candidates.handles.length; i++) {
+            Filter filter = candidates.filters[i];
+            if (filter == null || filter.test(data.get())) {
+                handles[count++] = candidates.handles[i];
+            }
+        }
+        return count == handles.length ? handles : Arrays.copyOf(handles, count);
+    }
+
+    /**
+     * A client subscribed both to the topic and to patterns covering it gets the notification once
+     */
+    private static int[] union(int[][] selected, int count) {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += selected[i].length;
+        }
+        int[] all = new int[length];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(selected[i], 0, all, position, selected[i].length);
+            position += selected[i].length;
+        }
+        Arrays.sort(all);
+        int unique = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[unique++] = all[i];
+            }
+        }
+        return unique == all.length ? all : Arrays.copyOf(all, unique);
+    }
+
+    private void setFilter(int position, Filter filter) {
+        Filter previous = filters[position];
+        if (previous == filter) {
+            return;
+        }
+        filtered += (filter != null ? 1 : 0) - (previous != null ? 1 : 0);
+        filters[position] = filter;
+        snapshot = null;
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, FREE);
+        return slots;
+    }
+
+    private int indexFor(int handle) {
+        // handles are sequential, spread them over the table
+        return (handle * 0x9E3779B9) & (slots.length - 1);
+    }
+
+    /**
+     * @return the slot of the handle, or -1 if it is not a member
+     */
+    private int find(int handle) {
+        int mask = slots.length - 1;
+        for (int i = indexFor(handle); slots[i] != FREE; i = (i + 1) & mask) {
+            if (slots[i] == handle) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int handle, int position) {
+        int mask = slots.length - 1;
+        int i = indexFor(handle);
+        while (slots[i] != FREE) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = handle;
+        positions[i] = position;
+    }
+
+    /**
+     * Frees the slot and moves back the entries probed past it, so no tombstones are needed
+     */
+    private void delete(int slot) {
+        int mask = slots.length - 1;
+        int free = slot;
+        slots[free] = FREE;
+        for (int i = (free + 1) & mask; slots[i] != FREE; i = (i + 1) & mask) {
+            int home = indexFor(slots[i]);
+            // the entry may fill the gap only if the gap lies between its home and i
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                slots[free] = slots[i];
+                positions[free] = positions[i];
+                slots[i] = FREE;
+                free = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldSlots = slots;
+        int[] oldPositions = positions;
+        slots = newSlots(capacity);
+        positions = new int[capacity];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != FREE) {
+                insert(oldSlots[i], oldPositions[i]);
+            }
+        }
+    }
+}
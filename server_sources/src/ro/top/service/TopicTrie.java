@@ -0,0 +1,157 @@
+package ro.top.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import ro.top.filter.Filter;
+import ro.top.proxy.TopicNames;
+
+/**
+ * The subscriptions to topic patterns, in a trie with one level per segment. <br>
+ * Matching a published topic walks the trie segment by segment, following the
+ * literal child and the "*" child and collecting the "#" children on the way,
+ * so its cost depends on the depth of the topic and on the patterns that actually
+ * match it, not on the number of subscriptions. <br>
+ * Matching takes no lock; changes are serialized
+ * @author Alexandru Topala
+ */
+final class TopicTrie {
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        volatile SubscriberSet subscribers;
+    }
+
+    private final Node root;
+
+    /**
+     * key - the pattern
+     * value - the handles of the clients that subscribed to key pattern,
+     * the same set the trie node of the pattern holds
+     */
+    private final Map<String, SubscriberSet> patterns;
+
+    TopicTrie() {
+        this.root = new Node();
+        this.patterns = new ConcurrentHashMap<>();
+    }
+
+    boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * @param pattern
+     * @return the subscribers of the pattern, or null if nobody subscribed to it
+     */
+    SubscriberSet get(String pattern) {
+        return patterns.get(pattern);
+    }
+
+    /**
+     * @return the patterns with at least one subscriber
+     */
+    Set<String> patterns() {
+        return patterns.keySet();
+    }
+
+    /**
+     * @param pattern
+     * @param handle
+     * @param filter - null for receiving all the notifications
+     * @return true if the client was not subscribed to the pattern already
+     */
+    synchronized boolean add(String pattern, int handle, Filter filter) {
+        TopicNames.validate(pattern);
+        Node node = root;
+        for (String segment : TopicNames.segments(pattern)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+        if (node.subscribers == null) {
+            node.subscribers = new SubscriberSet();
+            patterns.put(pattern, node.subscribers);
+        }
+        return node.subscribers.add(handle, filter);
+    }
+
+    /**
+     * Removes the clients from the pattern, dropping the pattern once nobody is subscribed to it
+     * @param pattern
+     * @param handles
+     */
+    synchronized void remove(String pattern, Collection<Integer> handles) {
+        SubscriberSet subscribers = patterns.get(pattern);
+        if (subscribers == null) {
+            return;
+        }
+        subscribers.removeAll(handles);
+        if (subscribers.isEmpty()) {
+            removeAll(pattern);
+        }
+    }
+
+    /**
+     * @param pattern
+     * @return the subscribers the pattern had, or null if nobody subscribed to it
+     */
+    synchronized SubscriberSet removeAll(String pattern) {
+        SubscriberSet subscribers = patterns.remove(pattern);
+        if (subscribers == null) {
+            return null;
+        }
+        List<String> segments = TopicNames.segments(pattern);
+        Node[] path = new Node[segments.size() + 1];
+        path[0] = root;
+        for (int i = 0; i < segments.size(); i++) {
+            path[i + 1] = path[i].children.get(segments.get(i));
+        }
+        path[segments.size()].subscribers = null;
+        // drop the nodes left without subscribers and children, from the leaf up
+        for (int i = segments.size(); i > 0; i--) {
+            Node node = path[i];
+            if (node.subscribers != null || !node.children.isEmpty()) {
+                break;
+            }
+            path[i - 1].children.remove(segments.get(i - 1));
+        }
+        return subscribers;
+    }
+
+    /**
+     * Collects the subscribers of all the patterns matching the topic
+     * @param topicName - a concrete topic
+     * @param matched - where to add the snapshots of the matching patterns subscribers
+     */
+    void collect(String topicName, List<SubscriberSet.Snapshot> matched) {
+        collect(root, TopicNames.segments(topicName), 0, matched);
+    }
+
+    private static void collect(Node node, List<String> segments, int depth, List<SubscriberSet.Snapshot> matched) {
+        Node anySegments = node.children.get(TopicNames.ANY_SEGMENTS);
+        if (anySegments != null) {
+            add(anySegments.subscribers, matched);
+        }
+        if (depth == segments.size()) {
+            add(node.subscribers, matched);
+            return;
+        }
+        Node literal = node.children.get(segments.get(depth));
+        if (literal != null) {
+            collect(literal, segments, depth + 1, matched);
+        }
+        Node anySegment = node.children.get(TopicNames.ANY_SEGMENT);
+        if (anySegment != null) {
+            collect(anySegment, segments, depth + 1, matched);
+        }
+    }
+
+    private static void add(SubscriberSet subscribers, List<SubscriberSet.Snapshot> matched) {
+        if (subscribers != null) {
+            SubscriberSet.Snapshot snapshot = subscribers.snapshot();
+            if (snapshot.handles.length > 0) {
+                matched.add(snapshot);
+            }
+        }
+    }
+}
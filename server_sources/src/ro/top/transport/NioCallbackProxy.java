@@ -0,0 +1,68 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.List;
+import ro.top.proxy.ClientNotificationProxy;
+import ro.top.proxy.DeliveryReport;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
+
+/**
+ * Pushes notifications to a client over its NIO connection. 
+ * A push only waits for the connection to accept the frame, not for the client to process it
+ * @author Alexandru Topala
+ */
+final class NioCallbackProxy implements ClientNotificationProxy {
+    private final NioConnection connection;
+
+    NioCallbackProxy(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void receiveNotification(String name) throws RemoteException {
+        push(Collections.singletonList(Notification.of(name)));
+    }
+
+    @Override
+    public void receiveDataNotification(Object data, String name) throws RemoteException {
+        try {
+            push(Collections.singletonList(Notification.of(EncodedPayload.encode(data), name)));
+        } catch (IOException ex) {
+            throw new RemoteException("Data for topic " + name + " could not be serialized", ex);
+        }
+    }
+
+    @Override
+    public void receiveEncodedDataNotification(EncodedPayload data, String name) throws RemoteException {
+        push(Collections.singletonList(Notification.of(data, name)));
+    }
+
+    @Override
+    public void receiveNotifications(List<Notification> notifications) throws RemoteException {
+        push(notifications);
+    }
+
+    @Override
+    public void receiveDeliveryReports(List<DeliveryReport> reports) throws RemoteException {
+        try {
+            Protocol.FrameWriter out = new Protocol.FrameWriter(Protocol.REPORTS, 0);
+            Protocol.writeReports(out, reports);
+            connection.send(out.toBuffer());
+        } catch (IOException ex) {
+            throw new RemoteException("Connection with " + connection.getRemoteAddress() + " was lost", ex);
+        }
+    }
+
+    private void push(List<Notification> notifications) throws RemoteException {
+        try {
+            Protocol.FrameWriter out = new Protocol.FrameWriter(Protocol.PUSH, 0);
+            Protocol.writeNotifications(out, notifications);
+            connection.send(out.toBuffer());
+        } catch (IOException ex) {
+            throw new RemoteException("Connection with " + connection.getRemoteAddress() + " was lost", ex);
+        }
+    }
+}
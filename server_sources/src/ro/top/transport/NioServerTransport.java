@@ -0,0 +1,269 @@
+package ro.top.transport;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.SubscribeOptions;
+import ro.top.service.NotificationService;
+
+/**
+ * A selector based TCP transport speaking the binary Protocol. <br>
+ * Every client keeps one persistent connection to the server, used both for its
+ * requests and for the notifications pushed to it. A single thread does all the
+ * network I/O; the requests are handled on a worker pool, so several requests of
+ * the same client may be in flight at once. <br>
+ * The pool has a fixed number of workers and a bounded queue; a connection sending 
+ * requests faster than they are handled, once the queue is full, is closed. <br>
+ * The clients registered through a connection are unregistered when it closes
+ * @author Alexandru Topala
+ */
+public final class NioServerTransport implements ServerTransport {
+    public static final int DEFAULT_WORKERS = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger WORKER_COUNTER = new AtomicInteger();
+
+    private final int workerCount;
+    private final int queueCapacity;
+    private NioReactor reactor;
+    private ServerSocketChannel serverChannel;
+    private ThreadPoolExecutor workers;
+    private NotificationService service;
+    private volatile boolean stopping;
+
+    /**
+     * The requests are handled by DEFAULT_WORKERS threads, with up to DEFAULT_QUEUE_CAPACITY waiting
+     */
+    public NioServerTransport() {
+        this(DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param workers - how many requests may be handled at the same time
+     * @param queueCapacity - how many requests may wait for a worker
+     */
+    public NioServerTransport(int workers, int queueCapacity) {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid request pool: workers=" + workers 
+                    + ", queueCapacity=" + queueCapacity);
+        }
+        this.workerCount = workers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void start(int port, NotificationService service) throws IOException {
+        this.service = service;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "notification-nio-worker-" + WORKER_COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        workers.allowCoreThreadTimeOut(true);
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        this.reactor = new NioReactor("notification-nio-server-" + port);
+        reactor.execute(() -> {
+            try {
+                serverChannel.register(reactor.selector(), SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (IOException ex) {
+                Logger.getLogger(NioServerTransport.class.getName()).log(Level.SEVERE, "Server channel could not be registered", ex);
+            }
+        });
+        Logger.getLogger(NioServerTransport.class.getName())
+                .log(Level.INFO, "NIO notification server started successfully at {0}", port);
+    }
+
+    @Override
+    public void stop() {
+        if (reactor == null) {
+            return;
+        }
+        stopping = true;
+        reactor.close();
+        try {
+            serverChannel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(NioServerTransport.class.getName()).log(Level.WARNING, null, ex);
+        }
+        workers.shutdown();
+        reactor = null;
+    }
+
+    private void handle(NioConnection connection, Protocol.Frame frame) {
+        Protocol.FrameWriter response = new Protocol.FrameWriter(Protocol.RESPONSE, frame.correlationId);
+        try {
+            // any request is a sign of life of the clients sharing the connection
+            registeredClients(connection).forEach(service::renewLease);
+            DataInputStream in = frame.body;
+            switch (frame.type) {
+                case Protocol.REGISTER:
+                    String clientId = service.registerClient(in.readUTF(), new NioCallbackProxy(connection));
+                    registeredClients(connection).add(clientId);
+                    response.writeUTF(clientId);
+                    break;
+                case Protocol.UNREGISTER:
+                    String unregistered = in.readUTF();
+                    registeredClients(connection).remove(unregistered);
+                    service.unregisterClient(unregistered);
+                    break;
+                case Protocol.SUBSCRIBE:
+                    service.subscribe(in.readUTF(), in.readUTF());
+                    break;
+                case Protocol.SUBSCRIBE_WITH_OPTIONS:
+                    service.subscribe(in.readUTF(), in.readUTF(), SubscribeOptions.readFrom(in));
+                    break;
+                case Protocol.SUBSCRIBE_ALL:
+                    List<String> subscribed = Protocol.readTopics(in);
+                    service.subscribeAll(subscribed, in.readUTF());
+                    break;
+                case Protocol.UNSUBSCRIBE_ALL:
+                    List<String> unsubscribed = Protocol.readTopics(in);
+                    service.unsubscribeAll(unsubscribed, in.readUTF());
+                    break;
+                case Protocol.UNSUBSCRIBE:
+                    service.unsubscribe(in.readUTF(), in.readUTF());
+                    break;
+                case Protocol.DELETE_TOPIC:
+                    String topicName = in.readUTF();
+                    byte mode = in.readByte();
+                    if (mode == Protocol.DELETE_WITH_DATA) {
+                        service.deleteTopic(topicName, EncodedPayload.readFrom(in));
+                    } else {
+                        service.deleteTopic(topicName, mode == Protocol.DELETE_NOTIFYING);
+                    }
+                    break;
+                case Protocol.NOTIFY:
+                    service.notifyTopic(in.readUTF());
+                    break;
+                case Protocol.DATA_NOTIFY:
+                    String notified = in.readUTF();
+                    service.dataNotifyTopic(EncodedPayload.readFrom(in), notified);
+                    break;
+                case Protocol.EXISTS:
+                    response.writeBoolean(service.exists(in.readUTF()));
+                    break;
+                case Protocol.SUBSCRIBERS_COUNT:
+                    response.writeInt(service.getSubscribersCount(in.readUTF()));
+                    break;
+                case Protocol.PUBLISH_CONFIRMED:
+                    String published = in.readUTF();
+                    String publisher = in.readUTF();
+                    long publishId = in.readLong();
+                    service.publishConfirmed(in.readBoolean() ? EncodedPayload.readFrom(in) : null, 
+                            published, publisher, publishId);
+                    break;
+                case Protocol.PUBLISH_QUEUED:
+                    String queued = in.readUTF();
+                    response.writeLong(service.publishQueued(in.readBoolean() ? EncodedPayload.readFrom(in) : null, queued));
+                    break;
+                case Protocol.PUBLISH_BATCH:
+                    service.publishBatch(Protocol.readNotifications(in));
+                    break;
+                case Protocol.RENEW_LEASE:
+                    response.writeLong(service.renewLease(in.readUTF()));
+                    break;
+                default:
+                    throw new IOException("Unknown request type " + frame.type);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(NioServerTransport.class.getName()).log(Level.WARNING,
+                    "Request from " + connection.getRemoteAddress() + " failed", ex);
+            response = new Protocol.FrameWriter(Protocol.ERROR, frame.correlationId);
+            try {
+                response.writeUTF(String.valueOf(ex.getMessage()));
+            } catch (IOException never) {
+                throw new IllegalStateException(never);
+            }
+        }
+        try {
+            connection.send(response.toBuffer());
+        } catch (IOException ex) {
+            Logger.getLogger(NioServerTransport.class.getName()).log(Level.FINE,
+                    "Response to " + connection.getRemoteAddress() + " could not be sent", ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> registeredClients(NioConnection connection) {
+        return (Set<String>) connection.getAttachment();
+    }
+
+    private final class Acceptor implements NioReactor.Handler {
+        private final NioConnection.Listener listener = new NioConnection.Listener() {
+            @Override
+            public void onFrame(NioConnection connection, Protocol.Frame frame) {
+                try {
+                    workers.execute(() -> handle(connection, frame));
+                } catch (RejectedExecutionException ex) {
+                    // the reactor cannot wait for a worker, it does the I/O of every connection
+                    if (!stopping) {
+                        Logger.getLogger(NioServerTransport.class.getName()).log(Level.WARNING,
+                                "Too many requests waiting, connection from {0} closed", connection.getRemoteAddress());
+                    }
+                    connection.close();
+                }
+            }
+
+            @Override
+            public void onClosed(NioConnection connection) {
+                if (stopping) {
+                    return;
+                }
+                for (String clientId : registeredClients(connection)) {
+                    try {
+                        workers.execute(() -> {
+                            Logger.getLogger(NioServerTransport.class.getName()).log(Level.INFO,
+                                    "Connection of client {0} closed", clientId);
+                            service.unregisterClient(clientId);
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        // the lease of the client expires instead
+                        Logger.getLogger(NioServerTransport.class.getName()).log(Level.WARNING,
+                                "Client {0} will be evicted when its lease expires", clientId);
+                    }
+                }
+            }
+        };
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.socket().setTcpNoDelay(true);
+                    NioConnection connection = new NioConnection(channel, reactor, listener);
+                    connection.setAttachment(new CopyOnWriteArraySet<String>());
+                    connection.start();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(NioServerTransport.class.getName()).log(Level.WARNING, "Client connection could not be accepted", ex);
+            }
+        }
+
+        @Override
+        public void onReactorClosed() {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(NioServerTransport.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+}
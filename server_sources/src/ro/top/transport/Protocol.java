@@ -0,0 +1,222 @@
+package ro.top.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import ro.top.proxy.DeliveryReport;
+import ro.top.proxy.EncodedPayload;
+import ro.top.proxy.Notification;
+
+/**
+ * The binary protocol spoken by the NIO transport. <br>
+ * Every message is a frame:
+ * [int length of the rest][byte type][int correlation id][body]. <br>
+ * A request from the client gets a RESPONSE or an ERROR frame carrying the
+ * same correlation id, so several requests can be in flight on the same connection.
+ * PUSH frames from the server carry notifications and REPORTS frames the outcomes of
+ * confirmed publishes; neither is answered.
+ * <br>
+ * The same class exists, unchanged, on the client side
+ * @author Alexandru Topala
+ */
+final class Protocol {
+    /**
+     * Frames larger than this are treated as a corrupted stream
+     */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    static final int HEADER_SIZE = 4 + 1 + 4;
+
+    // requests, client -> server
+    static final byte REGISTER = 1;
+    static final byte UNREGISTER = 2;
+    static final byte SUBSCRIBE = 3;
+    static final byte UNSUBSCRIBE = 4;
+    static final byte DELETE_TOPIC = 5;
+    static final byte NOTIFY = 6;
+    static final byte DATA_NOTIFY = 7;
+    static final byte EXISTS = 8;
+    static final byte SUBSCRIBERS_COUNT = 9;
+    static final byte SUBSCRIBE_WITH_OPTIONS = 10;
+    static final byte RENEW_LEASE = 11;
+    static final byte PUBLISH_CONFIRMED = 12;
+    static final byte PUBLISH_QUEUED = 13;
+    static final byte SUBSCRIBE_ALL = 14;
+    static final byte UNSUBSCRIBE_ALL = 15;
+    static final byte PUBLISH_BATCH = 16;
+
+    // notifications, server -> client
+    static final byte PUSH = 20;
+    static final byte REPORTS = 21;
+
+    // replies, server -> client
+    static final byte RESPONSE = 30;
+    static final byte ERROR = 31;
+
+    // how a DELETE_TOPIC request treats the subscribers
+    static final byte DELETE_SILENTLY = 0;
+    static final byte DELETE_NOTIFYING = 1;
+    static final byte DELETE_WITH_DATA = 2;
+
+    private Protocol() {
+    }
+
+    /**
+     * Writes the topics of a SUBSCRIBE_ALL or UNSUBSCRIBE_ALL request
+     * @param out
+     * @param topicNames
+     * @throws IOException
+     */
+    static void writeTopics(DataOutputStream out, List<String> topicNames) throws IOException {
+        out.writeInt(topicNames.size());
+        for (String topicName : topicNames) {
+            out.writeUTF(topicName);
+        }
+    }
+
+    /**
+     * Reads the topics written by writeTopics
+     * @param in
+     * @return the topics
+     * @throws IOException
+     */
+    static List<String> readTopics(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid topics count " + count);
+        }
+        List<String> topicNames = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            topicNames.add(in.readUTF());
+        }
+        return topicNames;
+    }
+
+    /**
+     * Writes the body of a PUSH frame or of a PUBLISH_BATCH request
+     * @param out
+     * @param notifications
+     * @throws IOException
+     */
+    static void writeNotifications(DataOutputStream out, List<Notification> notifications) throws IOException {
+        out.writeInt(notifications.size());
+        for (Notification notification : notifications) {
+            out.writeUTF(notification.getTopicName());
+            out.writeLong(notification.getOffset());
+            out.writeBoolean(notification.hasData());
+            if (notification.hasData()) {
+                notification.getData().writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Reads the body of a PUSH frame or of a PUBLISH_BATCH request
+     * @param in
+     * @return the notifications, in the order they were written
+     * @throws IOException
+     */
+    static List<Notification> readNotifications(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid notifications count " + count);
+        }
+        List<Notification> notifications = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String topicName = in.readUTF();
+            long offset = in.readLong();
+            Notification notification = in.readBoolean()
+                    ? Notification.of(EncodedPayload.readFrom(in), topicName)
+                    : Notification.of(topicName);
+            notifications.add(notification.atOffset(offset));
+        }
+        return notifications;
+    }
+
+    /**
+     * Writes the body of a REPORTS frame
+     * @param out
+     * @param reports
+     * @throws IOException
+     */
+    static void writeReports(DataOutputStream out, List<DeliveryReport> reports) throws IOException {
+        out.writeInt(reports.size());
+        for (DeliveryReport report : reports) {
+            report.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads the body of a REPORTS frame
+     * @param in
+     * @return the reports, in the order they were written
+     * @throws IOException
+     */
+    static List<DeliveryReport> readReports(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid reports count " + count);
+        }
+        List<DeliveryReport> reports = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            reports.add(DeliveryReport.readFrom(in));
+        }
+        return reports;
+    }
+
+    /**
+     * A frame being written. Call toBuffer() once the body is complete
+     */
+    static final class FrameWriter extends DataOutputStream {
+
+        FrameWriter(byte type, int correlationId) {
+            super(new Buffer());
+            try {
+                writeInt(0);
+                writeByte(type);
+                writeInt(correlationId);
+            } catch (IOException ex) {
+                // never thrown by an in-memory buffer
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * @return the complete frame, ready to be written to a channel
+         */
+        ByteBuffer toBuffer() {
+            ByteBuffer frame = ((Buffer) out).wrap();
+            frame.putInt(0, frame.remaining() - 4);
+            return frame;
+        }
+
+        private static final class Buffer extends ByteArrayOutputStream {
+            Buffer() {
+                super(128);
+            }
+
+            ByteBuffer wrap() {
+                return ByteBuffer.wrap(buf, 0, count);
+            }
+        }
+    }
+
+    /**
+     * A frame that was read from a channel
+     */
+    static final class Frame {
+        final byte type;
+        final int correlationId;
+        final DataInputStream body;
+
+        Frame(byte type, int correlationId, byte[] body) {
+            this.type = type;
+            this.correlationId = correlationId;
+            this.body = new DataInputStream(new ByteArrayInputStream(body));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ro.top.service.NotificationService;
+
+/**
+ * The RMI transport: the service is bound in an RMI registry created on the 
+ * server port and the clients are reached through their remote proxies
+ * @author Alexandru Topala
+ */
+public final class RmiServerTransport implements ServerTransport {
+    private static final String NOTIFICATION_SERVER_NAME = "PushNotificationServerTop";
+    
+    private Registry registry;
+    private NotificationService service;
+
+    @Override
+    public void start(int port, NotificationService service) throws IOException {
+        Registry registry;
+        try {
+            registry = LocateRegistry.createRegistry(port);
+        } catch (RemoteException e) {
+            registry = LocateRegistry.getRegistry("localhost", port);
+        }
+        // the stub carries the factory, so the calls of the clients time out instead of hanging
+        registry.rebind(NOTIFICATION_SERVER_NAME, UnicastRemoteObject.exportObject(service, 0, 
+                new TimeoutSocketFactory(), null));
+        this.registry = registry;
+        this.service = service;
+        Logger.getLogger(RmiServerTransport.class.getName())
+                .log(Level.INFO,"Server registry named " + NOTIFICATION_SERVER_NAME + " started successfully at {0}", port);
+    }
+
+    @Override
+    public void stop() {
+        if (registry == null) {
+            return;
+        }
+        try {
+            registry.unbind(NOTIFICATION_SERVER_NAME);
+            UnicastRemoteObject.unexportObject(service, true);
+        } catch (NoSuchObjectException ex) {
+            Logger.getLogger(RmiServerTransport.class.getName()).log(Level.WARNING, null, ex);
+        } catch (RemoteException | NotBoundException ex) {
+            Logger.getLogger(RmiServerTransport.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        registry = null;
+        service = null;
+    }
+}
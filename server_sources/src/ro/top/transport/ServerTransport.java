@@ -0,0 +1,27 @@
+package ro.top.transport;
+
+import java.io.IOException;
+import ro.top.service.NotificationService;
+
+/**
+ * The way clients reach the notification server and the server pushes
+ * notifications back to them. <br>
+ * RmiServerTransport is the default one; NioServerTransport is a lighter alternative
+ * that must be paired with NioClientTransport on the client side
+ * @author Alexandru Topala
+ */
+public interface ServerTransport {
+    
+    /**
+     * Starts accepting clients, forwarding their requests to the given service
+     * @param port - where to listen on this localhost
+     * @param service - handles the requests of the clients
+     * @throws IOException if the transport could not be started
+     */
+    public void start(int port, NotificationService service) throws IOException;
+    
+    /**
+     * Stops accepting clients and releases the transport resources
+     */
+    public void stop();
+}